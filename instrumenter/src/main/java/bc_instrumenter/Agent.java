@@ -0,0 +1,213 @@
+package bc_instrumenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.ProtectionDomain;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.objectweb.asm.ClassReader;
+
+import com.google.common.io.Files;
+
+/**
+ * Java agent that instruments the application classes while they are loaded
+ * instead of writing an instrumented copy of the class directory up front.
+ * Classes that are never loaded are never instrumented.
+ *
+ * Usage:
+ * -javaagent:instrumenter.jar=classDir=DIR[,dumpDir=DIR][,option=value]*
+ *
+ * 'classDir' is the directory that contains the application classes (the
+ * same directory that would be passed to Main). If 'dumpDir' is given, each
+ * instrumented class is also written to that directory so that the trace
+ * extractor can load the bytecode that was actually executed. All other
+ * arguments are passed on to Options.
+ *
+ * Chicory starts the traced program in a JVM of its own, so the agent is
+ * passed to the traced JVM through JAVA_TOOL_OPTIONS (see
+ * util.DaikonRunner). The JVM of the Chicory launcher reads that variable
+ * as well. The agent does nothing in that JVM, so that only the traced
+ * program is instrumented.
+ *
+ * @author schaef
+ *
+ */
+public class Agent implements ClassFileTransformer {
+
+	public static final String classDirOption = "classDir";
+	public static final String dumpDirOption = "dumpDir";
+
+	// Keep in sync with util.DaikonRunner
+	public static final String chicoryMainClass = "daikon.Chicory";
+
+	private final Main instrumenter = new Main();
+	private final File dumpDir;
+	private final InstrumentationCache cache;
+
+	/**
+	 * Loader for the verifier that runs before a class is cached. The
+	 * verifier loads the types it checks. If it used the loader of the
+	 * program, the application classes would be defined before the agent
+	 * could instrument them. So it uses a loader of its own that sees
+	 * 'classDir' and the class path, but not the loader of the program.
+	 */
+	private final ClassLoader verifierLoader;
+
+	public Agent(File classDir, File dumpDir) {
+		this.dumpDir = dumpDir;
+		Main.applicationClassNames.clear();
+		Main.applicationHierarchy.clear();
+		// We only need the names of the application classes (and the code
+		// for the pattern and reachability analysis); nothing is loaded here.
+		final ReachabilityAnalysis analysis = Options.v().needsClassHierarchy()
+				? new ReachabilityAnalysis(ClassLoader.getSystemClassLoader()) : null;
+		for (Iterator<File> iter = FileUtils.iterateFiles(classDir, new String[] { "class" }, true); iter
+				.hasNext();) {
+			File classFile = iter.next();
+			try {
+				final byte[] classBytes = Files.toByteArray(classFile);
+				Main.applicationClassNames.add(new ClassReader(classBytes).getClassName());
+				Main.addToHierarchy(classBytes);
+				if (analysis != null) {
+					analysis.addClass(classBytes);
+				}
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+		Main.methodFilter = Main.createMethodFilter(analysis);
+		// the support classes would have to be complete before the first
+		// instrumented class is loaded.
+		if (Options.v().useSharedWrappers()) {
+			System.err.println("Shared wrappers are not supported by the agent; using per-class wrappers.");
+		}
+		Main.sharedWrappers = null;
+		verifierLoader = createVerifierLoader(classDir);
+		cache = (Options.v().getCacheDir() == null) ? null
+				: new InstrumentationCache(Options.v().getCacheDir(), Main.applicationClassNames,
+						Main.applicationHierarchy, Main.methodFilter);
+		if (cache != null) {
+			// the classes are instrumented while the program runs, so the
+			// counts are only complete when the JVM exits.
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					System.err.println("Instrumentation cache: " + cache.getHits() + " hits, " + cache.getMisses()
+							+ " misses");
+				}
+			});
+		}
+	}
+
+	public static void premain(String agentArgs, Instrumentation inst) {
+		if (isChicoryLauncher()) {
+			return;
+		}
+		File classDir = null;
+		File dumpDir = null;
+		if (agentArgs != null) {
+			for (String arg : agentArgs.split(",")) {
+				final int pos = arg.indexOf('=');
+				if (pos < 0) {
+					throw new IllegalArgumentException("Expected key=value but found " + arg);
+				}
+				final String key = arg.substring(0, pos);
+				final String value = arg.substring(pos + 1);
+				if (classDirOption.equals(key)) {
+					classDir = new File(value);
+				} else if (dumpDirOption.equals(key)) {
+					dumpDir = new File(value);
+				} else {
+					Options.v().setOption(key, value);
+				}
+			}
+		}
+		if (classDir == null) {
+			throw new IllegalArgumentException("Usage: -javaagent:instrumenter.jar=" + classDirOption + "=DIR[,"
+					+ dumpDirOption + "=DIR]");
+		}
+		inst.addTransformer(new Agent(classDir, dumpDir));
+	}
+
+	private static ClassLoader createVerifierLoader(File classDir) {
+		final List<URL> urls = new LinkedList<URL>();
+		try {
+			urls.add(classDir.toURI().toURL());
+			for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+				urls.add(new File(entry).toURI().toURL());
+			}
+		} catch (MalformedURLException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		// the parent of the system class loader does not see the class path.
+		return new URLClassLoader(urls.toArray(new URL[urls.size()]), ClassLoader.getSystemClassLoader().getParent());
+	}
+
+	/**
+	 * Returns true if this JVM runs the Chicory launcher instead of the
+	 * traced program. The launcher of the JDK puts the main class and its
+	 * arguments into the property sun.java.command.
+	 */
+	static boolean isChicoryLauncher() {
+		final String command = System.getProperty("sun.java.command");
+		if (command == null) {
+			return false;
+		}
+		final String mainClass = command.trim().split("\\s+")[0];
+		return chicoryMainClass.equals(mainClass);
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+		if (className == null || classBeingRedefined != null || !Main.applicationClassNames.contains(className)) {
+			// returning null leaves the class unchanged.
+			return null;
+		}
+		try {
+			byte[] instrumented = (cache == null) ? null : cache.lookup(classfileBuffer);
+			if (instrumented == null) {
+				instrumented = instrumenter.instrumentClassBytes(classfileBuffer, loader);
+				if (cache != null) {
+					// only verified classes are cached, like in Main.
+					Main.verifyInstrumentedClass(className, instrumented, verifierLoader);
+					cache.store(classfileBuffer, instrumented);
+				}
+			}
+			if (dumpDir != null) {
+				dumpClass(className, instrumented);
+			}
+			return instrumented;
+		} catch (Throwable e) {
+			// exceptions thrown by a transformer are silently dropped by the
+			// JVM, so at least print them.
+			System.err.println("Failed to instrument " + className);
+			e.printStackTrace(System.err);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the instrumented class to the dump directory. Several traced
+	 * JVMs may share the directory (see TestShardRunner), so the class is
+	 * written to a temporary file first and then renamed.
+	 */
+	private void dumpClass(String className, byte[] instrumented) throws IOException {
+		final File target = new File(dumpDir, className + ".class");
+		FileUtils.forceMkdir(target.getParentFile());
+		File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+		Files.write(instrumented, tmp);
+		if (!tmp.renameTo(target)) {
+			// another JVM wrote the same class in the meantime.
+			FileUtils.deleteQuietly(tmp);
+		}
+	}
+}
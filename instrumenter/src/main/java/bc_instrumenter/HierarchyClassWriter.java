@@ -0,0 +1,91 @@
+package bc_instrumenter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * ClassWriter that computes common super classes of application classes by
+ * reading their class files from a ClassLoader instead of loading them with
+ * Class.forName. The default implementation of ASM would load (and thus
+ * define) application classes while we are still transforming them, which
+ * does not work inside a ClassFileTransformer. All other classes are looked
+ * up through the loader as usual.
+ * 
+ * @author schaef
+ *
+ */
+class HierarchyClassWriter extends ClassWriter {
+
+	private static final String objectClassName = "java/lang/Object";
+
+	private final ClassLoader loader;
+
+	public HierarchyClassWriter(int flags, ClassLoader loader) {
+		super(flags);
+		this.loader = loader;
+	}
+
+	@Override
+	protected String getCommonSuperClass(final String type1, final String type2) {
+		if (type1.equals(type2)) {
+			return type1;
+		}
+		if (isInterface(type1) || isInterface(type2)) {
+			// the verifier treats all interfaces like Object.
+			return objectClassName;
+		}
+		// walk up the super classes of type1 until we find one that is
+		// also a super class of type2.
+		for (String s1 = type1; s1 != null; s1 = superNameOf(s1)) {
+			for (String s2 = type2; s2 != null; s2 = superNameOf(s2)) {
+				if (s1.equals(s2)) {
+					return s1;
+				}
+			}
+		}
+		return objectClassName;
+	}
+
+	private boolean isInterface(String type) {
+		if (Main.applicationClassNames.contains(type)) {
+			return (readClass(type).getAccess() & Opcodes.ACC_INTERFACE) != 0;
+		}
+		return loadClass(type).isInterface();
+	}
+
+	private String superNameOf(String type) {
+		if (objectClassName.equals(type)) {
+			return null;
+		}
+		if (Main.applicationClassNames.contains(type)) {
+			return readClass(type).getSuperName();
+		}
+		final Class<?> superClass = loadClass(type).getSuperclass();
+		return superClass == null ? null : superClass.getName().replace('.', '/');
+	}
+
+	private Class<?> loadClass(String type) {
+		try {
+			return Class.forName(type.replace('/', '.'), false, loader);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	private ClassReader readClass(String type) {
+		final String resource = type + ".class";
+		try (InputStream is = (loader != null) ? loader.getResourceAsStream(resource)
+				: ClassLoader.getSystemResourceAsStream(resource);) {
+			if (is == null) {
+				throw new RuntimeException("Class not found: " + type);
+			}
+			return new ClassReader(is);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package bc_instrumenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Persistent cache of instrumented classes. An entry is keyed by a context
+ * hash that is the same for all classes of a run (the code of the
+ * instrumenter, the options that change the output, and the patterns of the
+ * MethodFilter), by the original class file, and by the parts of the other
+ * classes that the instrumented class actually depends on:
+ * <ul>
+ * <li>which of its methods are instrumented (see
+ * MethodFilter.isInstrumented),</li>
+ * <li>for each call to an application method, whether it is wrapped (see
+ * MethodFilter.isWrappedCall),</li>
+ * <li>for each type it refers to, whether it is an application class and,
+ * if so, its super classes (the stack map frames are computed from the
+ * class hierarchy).</li>
+ * </ul>
+ * So adding or removing a class only invalidates the entries of the classes
+ * that refer to it.
+ *
+ * Entries are written to a temporary file first and then renamed, so several
+ * workers (or several runs) can share the same cache directory.
+ *
+ * @author schaef
+ *
+ */
+public class InstrumentationCache {
+
+	// tags of the constant pool entries that refer to types.
+	private static final int CONSTANT_Class = 7;
+	private static final int CONSTANT_NameAndType = 12;
+	private static final int CONSTANT_MethodType = 16;
+
+	private static final Pattern objectTypePattern = Pattern.compile("L([^;]+);");
+
+	private final File cacheDir;
+	private final HashCode context;
+	private final Set<String> applicationClassNames;
+	private final Map<String, String> applicationHierarchy;
+	private final MethodFilter filter;
+
+	private final AtomicInteger hits = new AtomicInteger(0);
+	private final AtomicInteger misses = new AtomicInteger(0);
+
+	/**
+	 * @param cacheDir
+	 * @param applicationClassNames
+	 *            the names of the application classes (see
+	 *            Main.applicationClassNames).
+	 * @param applicationHierarchy
+	 *            the super class of each application class (see
+	 *            Main.applicationHierarchy).
+	 * @param filter
+	 */
+	public InstrumentationCache(File cacheDir, Set<String> applicationClassNames,
+			Map<String, String> applicationHierarchy, MethodFilter filter) {
+		this.cacheDir = cacheDir;
+		this.applicationClassNames = applicationClassNames;
+		this.applicationHierarchy = applicationHierarchy;
+		this.filter = filter;
+		Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putBytes(hashInstrumenterCode().asBytes());
+		hasher.putUnencodedChars(Options.v().describeInstrumentation());
+		hasher.putUnencodedChars(filter.describe());
+		this.context = hasher.hash();
+	}
+
+	/**
+	 * Returns the cached instrumented version of 'classBytes' or null if
+	 * there is none.
+	 *
+	 * @param classBytes
+	 * @return the instrumented class or null.
+	 */
+	public byte[] lookup(byte[] classBytes) {
+		final File entry = entryFor(classBytes);
+		if (entry.isFile()) {
+			try {
+				byte[] result = Files.toByteArray(entry);
+				hits.incrementAndGet();
+				return result;
+			} catch (IOException e) {
+				// treat unreadable entries as a miss.
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Stores the instrumented version of 'classBytes' in the cache.
+	 *
+	 * @param classBytes
+	 * @param instrumentedBytes
+	 */
+	public void store(byte[] classBytes, byte[] instrumentedBytes) {
+		final File entry = entryFor(classBytes);
+		try {
+			FileUtils.forceMkdir(entry.getParentFile());
+			File tmp = File.createTempFile(entry.getName(), ".tmp", entry.getParentFile());
+			Files.write(instrumentedBytes, tmp);
+			if (!tmp.renameTo(entry)) {
+				// someone else stored the same entry in the meantime.
+				FileUtils.deleteQuietly(tmp);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to write cache entry " + entry.getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+
+	public int getHits() {
+		return hits.get();
+	}
+
+	public int getMisses() {
+		return misses.get();
+	}
+
+	private File entryFor(byte[] classBytes) {
+		final Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putBytes(context.asBytes());
+		hasher.putBytes(classBytes);
+		hashDependencies(new ClassReader(classBytes), hasher);
+		final String key = hasher.hash().toString();
+		return new File(new File(cacheDir, key.substring(0, 2)), key + ".class");
+	}
+
+	/**
+	 * Adds the decisions of the MethodFilter for the class 'cr' and the
+	 * hierarchy of the types it refers to to 'hasher'.
+	 */
+	private void hashDependencies(ClassReader cr, final Hasher hasher) {
+		final String className = cr.getClassName();
+		final Set<String> types = new TreeSet<String>();
+		types.add(className);
+		// class constants and the descriptors of the members and method
+		// types the class refers to.
+		final char[] buf = new char[cr.getMaxStringLength()];
+		for (int i = 1; i < cr.getItemCount(); i++) {
+			final int offset = cr.getItem(i);
+			if (offset == 0) {
+				// second slot of a long or double constant.
+				continue;
+			}
+			switch (cr.b[offset - 1]) {
+			case CONSTANT_Class:
+				final String internalName = cr.readUTF8(offset, buf);
+				if (internalName.startsWith("[")) {
+					addTypes(internalName, types);
+				} else {
+					types.add(internalName);
+				}
+				break;
+			case CONSTANT_MethodType:
+				addTypes(cr.readUTF8(offset, buf), types);
+				break;
+			case CONSTANT_NameAndType:
+				addTypes(cr.readUTF8(offset + 2, buf), types);
+				break;
+			default:
+				break;
+			}
+		}
+		cr.accept(new ClassVisitor(Opcodes.ASM5) {
+			@Override
+			public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+				addTypes(desc, types);
+				return null;
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, final String name, final String desc, String signature,
+					String[] exceptions) {
+				addTypes(desc, types);
+				hasher.putUnencodedChars(name).putUnencodedChars(desc)
+						.putBoolean(filter.isInstrumented(className, name, desc));
+				return new MethodVisitor(Opcodes.ASM5) {
+					@Override
+					public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+						if (applicationClassNames.contains(owner)) {
+							hasher.putUnencodedChars(owner).putUnencodedChars(name).putUnencodedChars(desc)
+									.putBoolean(filter.isWrappedCall(owner, name, desc));
+						}
+					}
+				};
+			}
+		}, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		for (String type : types) {
+			hasher.putUnencodedChars(type);
+			// the application part of the super class chain and the first
+			// library class in it.
+			for (String t = type; t != null && applicationClassNames.contains(t);) {
+				final String superName = applicationHierarchy.get(t);
+				hasher.putChar(':').putUnencodedChars(String.valueOf(superName));
+				t = (superName == null) ? null : superName.split(" ")[0];
+			}
+			hasher.putChar(';');
+		}
+	}
+
+	/**
+	 * Adds the object types in the descriptor 'desc' to 'types'.
+	 */
+	private static void addTypes(String desc, Set<String> types) {
+		final Matcher m = objectTypePattern.matcher(desc);
+		while (m.find()) {
+			types.add(m.group(1));
+		}
+	}
+
+	/**
+	 * Hashes the jar (or the class files) the instrumenter was loaded from,
+	 * so that a new version of the instrumenter does not reuse old entries.
+	 *
+	 * @return the hash of the instrumenter code.
+	 */
+	private static HashCode hashInstrumenterCode() {
+		Hasher hasher = Hashing.sha256().newHasher();
+		try {
+			File codeSource = new File(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			if (codeSource.isFile()) {
+				hasher.putBytes(Files.toByteArray(codeSource));
+			} else {
+				File packageDir = new File(codeSource, Main.class.getPackage().getName().replace('.', '/'));
+				List<File> classFiles = new ArrayList<File>(
+						FileUtils.listFiles(packageDir, new String[] { "class" }, false));
+				Collections.sort(classFiles);
+				for (File f : classFiles) {
+					hasher.putBytes(Files.toByteArray(f));
+				}
+			}
+		} catch (IOException | URISyntaxException | SecurityException e) {
+			throw new RuntimeException("Cannot hash the instrumenter: " + e.getMessage());
+		}
+		return hasher.hash();
+	}
+}
@@ -3,22 +3,40 @@ package bc_instrumenter;
  * 
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.objectweb.asm.ClassReader;
@@ -28,10 +46,21 @@ import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.util.CheckClassAdapter;
 
 import com.google.common.base.Verify;
 import com.google.common.base.VerifyException;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 
 /**
  * @author schaef
@@ -40,17 +69,33 @@ import com.google.common.base.VerifyException;
 public class Main {
 
 	public static void main(String[] args) {
-		if (args.length != 2) {
-			System.out.println("Usage: classDir outDir");
+		if (args.length < 2) {
+			System.out.println("Usage: classDir outDir [-" + Options.threadsOption + " n] [-" + Options.blocksOption
+					+ "] [-" + Options.recorderOption + "] [-" + Options.cacheOption + " dir] [-"
+					+ Options.includeOption + " regex] [-" + Options.excludeOption + " regex] [-"
+					+ Options.reachableFromOption + " classRegex] [-" + Options.sharedWrappersOption + "] [-"
+					+ Options.threadIdsOption + "]");
+			System.out.println("   or: in.jar[" + File.pathSeparator + "in2.jar|classDir]* out.jar [options]");
 			return;
 		}
-		File classDir = new File(args[0]);
-		File outDir = new File(args[1]);
+		Options.v().parseCommandLine(args, 2);
 
 		Main m = new Main();
-		m.transformAllClasses(classDir, outDir);
+		if (args[1].endsWith(jarSuffix)) {
+			List<File> inputs = new ArrayList<File>();
+			for (String input : args[0].split(File.pathSeparator)) {
+				inputs.add(new File(input));
+			}
+			m.transformJars(inputs, new File(args[1]));
+		} else {
+			m.transformAllClasses(new File(args[0]), new File(args[1]));
+		}
 	}
 
+	private static final String jarSuffix = ".jar";
+	private static final String classSuffix = ".class";
+	private static final Pattern testPptPattern = Pattern.compile(PcRecorder.testPptRegex);
+
 	public static final String pcMethodNameSuffix = "__PC__METHOD";
 	public static final String pcMethodArgName = "arg";
 
@@ -58,49 +103,463 @@ public class Main {
 
 	public static final String instanceWrapperSuffix = "__HASBASE__";
 
-	protected static Set<String> applicationClassNames;
-	
-	
-	public void transformAllClasses(File classDir, File outDir) {
-		applicationClassNames = new LinkedHashSet<String>();
+	/**
+	 * Suffix of the wrappers that add the thread id before calling the
+	 * sampled wrapper. Must not contain wrapperMethodNameSuffix.
+	 */
+	public static final String threadWrapperSuffix = "__THREAD__";
+
+	/**
+	 * Names (in internal form) of all classes that are instrumented. The set
+	 * is filled by the first pass of transformAllClasses and only read
+	 * afterwards, but both passes run on the worker pool, so it has to be
+	 * safe for concurrent access.
+	 */
+	protected static final Set<String> applicationClassNames = Sets.newConcurrentHashSet();
+
+	/**
+	 * The super class of each application class, followed by " interface"
+	 * for interfaces. The stack map frames of an instrumented class depend
+	 * on this hierarchy (see ClassWriter.getCommonSuperClass), so the super
+	 * classes of the types a class refers to are part of its key in the
+	 * InstrumentationCache. Filled together with
+	 * applicationClassNames whenever the class files are read anyway, and
+	 * always if the cache is used.
+	 */
+	protected static final Map<String, String> applicationHierarchy = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Decides which application methods are instrumented. Set up after the
+	 * application classes are known and only read afterwards.
+	 */
+	protected static MethodFilter methodFilter = new MethodFilter(null, null, null, null);
+
+	/**
+	 * Collects the wrappers that are shared by all application classes, or
+	 * null if each class gets its own wrappers. See Options.useSharedWrappers.
+	 */
+	protected static SharedWrappers sharedWrappers = null;
+
+	/**
+	 * Returns the InstrumentationCache for the current Options or null if
+	 * classes should not be cached. A cached class does not tell us which
+	 * shared wrappers it needs, so the cache cannot be used together with
+	 * shared wrappers.
+	 */
+	private static InstrumentationCache createCache() {
+		if (Options.v().getCacheDir() == null) {
+			return null;
+		}
+		if (sharedWrappers != null) {
+			System.err.println("The instrumentation cache is not used with shared wrappers.");
+			return null;
+		}
+		return new InstrumentationCache(Options.v().getCacheDir(), applicationClassNames, applicationHierarchy,
+				methodFilter);
+	}
+
+	/**
+	 * Records the super class of the application class 'classBytes' in
+	 * applicationHierarchy.
+	 * 
+	 * @param classBytes
+	 */
+	static void addToHierarchy(byte[] classBytes) {
+		final ClassReader cr = new ClassReader(classBytes);
+		final String superName = (cr.getSuperName() == null) ? "" : cr.getSuperName();
+		final boolean isInterface = (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+		applicationHierarchy.put(cr.getClassName(), isInterface ? superName + " interface" : superName);
+	}
+
+	/**
+	 * Checks the instrumented class with the ASM verifier before it is
+	 * written to the cache, so a broken rewrite is not reused by later runs.
+	 * 'loader' has to see the application classes because the verifier
+	 * resolves their super types.
+	 * 
+	 * @param name
+	 *            the name of the class for the error message.
+	 * @param instrumentedBytes
+	 * @param loader
+	 * @throws VerifyException
+	 *             if the class does not verify.
+	 */
+	static void verifyInstrumentedClass(String name, byte[] instrumentedBytes, ClassLoader loader) {
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		CheckClassAdapter.verify(new ClassReader(instrumentedBytes), loader, false, pw);
+		Verify.verify(sw.toString().length() == 0, name + ": " + sw.toString());
+	}
+
+	/**
+	 * Creates the MethodFilter for the current Options. If 'analysis' is not
+	 * null, it must contain all application classes. It is used to resolve
+	 * the methods matched by the include and exclude patterns and, if
+	 * Options.getReachableFromPattern is set, only methods that are reachable
+	 * from it are instrumented.
+	 * 
+	 * @param analysis
+	 * @return the filter.
+	 */
+	static MethodFilter createMethodFilter(ReachabilityAnalysis analysis) {
+		final MethodFilter patternFilter = new MethodFilter(Options.v().getIncludePattern(),
+				Options.v().getExcludePattern(), null, analysis);
+		if (Options.v().getReachableFromPattern() == null) {
+			return patternFilter;
+		}
+		final Set<String> reachable = analysis.computeReachableMethods(Options.v().getReachableFromPattern(),
+				patternFilter);
+		System.out.println("Reachability: " + reachable.size() + " reachable methods");
+		return new MethodFilter(Options.v().getIncludePattern(), Options.v().getExcludePattern(), reachable,
+				analysis);
+	}
+
+	/**
+	 * Instruments all class files in classDir and writes them to the same
+	 * relative location in outDir. Classes are loaded and instrumented on a
+	 * pool of Options.v().getNumThreads() workers. Each class is written to its own file
+	 * and all messages are reported in the (sorted) order of the input files,
+	 * so the output does not depend on the scheduling of the workers.
+	 * 
+	 * @param classDir
+	 * @param outDir
+	 */
+	public void transformAllClasses(final File classDir, final File outDir) {
+		applicationClassNames.clear();
+		applicationHierarchy.clear();
+		final List<File> classFiles = new ArrayList<File>(
+				FileUtils.listFiles(classDir, new String[] { "class" }, true));
+		Collections.sort(classFiles);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Options.v().getNumThreads());
 		// Load all classes in the classDir and remember their name.
-		try (URLClassLoader cl = new URLClassLoader(new URL[] { classDir.toURI().toURL() });) {
-			for (Iterator<File> iter = FileUtils.iterateFiles(classDir, new String[] { "class" }, true); iter
-					.hasNext();) {
-				File classFile = iter.next();
-				try (FileInputStream is = new FileInputStream(classFile);) {
-					ClassReader cr = new ClassReader(is);					
-					final String className = cr.getClassName().replace('/', '.');
-					cl.loadClass(className);
-					applicationClassNames.add(cr.getClassName());
-				} catch (IllegalAccessError e) {
-					System.err.println("Failed to load "+classFile.getAbsolutePath());
-				} catch (Exception e) {
-					e.printStackTrace(System.err);
-					throw new RuntimeException(e.getMessage());
-				}
+		try (final URLClassLoader cl = new URLClassLoader(new URL[] { classDir.toURI().toURL() });) {
+			final ReachabilityAnalysis analysis = Options.v().needsClassHierarchy() ? new ReachabilityAnalysis(cl)
+					: null;
+			List<Callable<String>> loadTasks = new ArrayList<Callable<String>>();
+			for (final File classFile : classFiles) {
+				loadTasks.add(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						try {
+							final byte[] classBytes = Files.toByteArray(classFile);
+							ClassReader cr = new ClassReader(classBytes);
+							final String className = cr.getClassName().replace('/', '.');
+							cl.loadClass(className);
+							applicationClassNames.add(cr.getClassName());
+							addToHierarchy(classBytes);
+							if (analysis != null) {
+								analysis.addClass(classBytes);
+							}
+						} catch (IllegalAccessError e) {
+							return "Failed to load " + classFile.getAbsolutePath();
+						}
+						return null;
+					}
+				});
 			}
+			report(pool.invokeAll(loadTasks));
 
-			for (Iterator<File> iter = FileUtils.iterateFiles(classDir, new String[] { "class" }, true); iter
-					.hasNext();) {
-				File classFile = iter.next();
-				File transformedClass = new File(
+			methodFilter = createMethodFilter(analysis);
+			sharedWrappers = Options.v().useSharedWrappers() ? new SharedWrappers(cl) : null;
+			final InstrumentationCache cache = createCache();
+			List<Callable<String>> instrumentTasks = new ArrayList<Callable<String>>();
+			for (final File classFile : classFiles) {
+				final File transformedClass = new File(
 						classFile.getAbsolutePath().replace(classDir.getAbsolutePath(), outDir.getAbsolutePath()));
-				final String tClassName = transformedClass.getAbsolutePath();
-				if (tClassName.contains(File.separator)) {
-					File tClassDir = new File(tClassName.substring(0, tClassName.lastIndexOf(File.separator)));
-					if (tClassDir.mkdirs()) {
-//						System.out.println("Writing transformed classes to " + tClassDir.getAbsolutePath());
+				instrumentTasks.add(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						File tClassDir = transformedClass.getParentFile();
+						if (tClassDir != null && tClassDir.mkdirs()) {
+							// System.out.println("Writing transformed classes to " + tClassDir.getAbsolutePath());
+						}
+						return instrumentClassFile(classFile, transformedClass, cl, cache);
 					}
+				});
+			}
+			report(pool.invokeAll(instrumentTasks));
+			if (sharedWrappers != null) {
+				for (Map.Entry<String, byte[]> entry : sharedWrappers.generateClasses().entrySet()) {
+					FileUtils.writeByteArrayToFile(new File(outDir, entry.getKey() + classSuffix), entry.getValue());
 				}
-				instrumentClass(classFile.getAbsolutePath(), transformedClass.getAbsolutePath());
+				System.out.println("Shared wrappers: " + sharedWrappers.size());
+			}
+			if (cache != null) {
+				System.out.println("Instrumentation cache: " + cache.getHits() + " hits, " + cache.getMisses()
+						+ " misses");
 			}
 		} catch (MalformedURLException e) {
 			throw new RuntimeException(e.getMessage());
 		} catch (IOException e) {
 			throw new RuntimeException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e.getMessage());
+		} finally {
+			pool.shutdownNow();
 		}
+	}
 
+	/**
+	 * Instruments all classes in 'inputs' and writes them, together with all
+	 * other resources, to the jar file 'outJar'. Each input is either a jar
+	 * file or a directory of class files. Entries are read one after the
+	 * other and instrumented on the worker pool, but at most a few entries
+	 * per worker are in flight at any time and they are written to 'outJar'
+	 * in the order in which they were read, so nothing is unpacked to disk
+	 * and the output does not depend on the scheduling of the workers.
+	 * 
+	 * If an entry occurs in several inputs, the first one wins (as on the
+	 * classpath). The manifest of the first input jar is copied, signature
+	 * files are dropped because they do not match the instrumented classes
+	 * anymore. Classes that cannot be instrumented are copied unchanged.
+	 * 
+	 * @param inputs
+	 *            jar files or class directories.
+	 * @param outJar
+	 */
+	public void transformJars(final List<File> inputs, final File outJar) {
+		applicationClassNames.clear();
+		applicationHierarchy.clear();
+		Manifest manifest = null;
+		List<URL> urls = new ArrayList<URL>();
+		try {
+			for (File input : inputs) {
+				urls.add(input.toURI().toURL());
+			}
+		} catch (MalformedURLException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		try (final URLClassLoader cl = new URLClassLoader(urls.toArray(new URL[urls.size()]));) {
+			final ReachabilityAnalysis analysis = Options.v().needsClassHierarchy() ? new ReachabilityAnalysis(cl)
+					: null;
+			// the classes only have to be read in this pass if we need
+			// their code or their super classes.
+			final boolean readClasses = analysis != null || Options.v().getCacheDir() != null;
+			for (File input : inputs) {
+				if (input.isDirectory()) {
+					for (File classFile : FileUtils.listFiles(input, new String[] { "class" }, true)) {
+						if (addApplicationClass(relativeEntryName(input, classFile)) && readClasses) {
+							addClassBytes(Files.toByteArray(classFile), analysis);
+						}
+					}
+				} else {
+					try (JarFile jar = new JarFile(input);) {
+						if (manifest == null) {
+							manifest = jar.getManifest();
+						}
+						for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+							final JarEntry entry = e.nextElement();
+							if (addApplicationClass(entry.getName()) && readClasses) {
+								try (InputStream is = jar.getInputStream(entry);) {
+									addClassBytes(ByteStreams.toByteArray(is), analysis);
+								}
+							}
+						}
+					}
+				}
+			}
+			methodFilter = createMethodFilter(analysis);
+			sharedWrappers = Options.v().useSharedWrappers() ? new SharedWrappers(cl) : null;
+			transformJarEntries(inputs, outJar, manifest, cl);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Second pass of transformJars: streams all entries of 'inputs' into
+	 * 'outJar' once the application classes are known.
+	 */
+	private void transformJarEntries(final List<File> inputs, final File outJar, Manifest manifest,
+			final ClassLoader cl) {
+		if (manifest == null) {
+			manifest = new Manifest();
+			manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		}
+
+		final InstrumentationCache cache = createCache();
+		final int maxPending = 4 * Options.v().getNumThreads();
+		final ExecutorService pool = Executors.newFixedThreadPool(Options.v().getNumThreads());
+		final Set<String> entryNames = new HashSet<String>();
+		final LinkedList<PendingEntry> pending = new LinkedList<PendingEntry>();
+		File parentDir = outJar.getAbsoluteFile().getParentFile();
+		if (parentDir != null && parentDir.mkdirs()) {
+			// System.out.println("Writing transformed jar to " + parentDir.getAbsolutePath());
+		}
+		try (JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(outJar)),
+						manifest);) {
+			for (File input : inputs) {
+				if (input.isDirectory()) {
+					final List<File> files = new ArrayList<File>(FileUtils.listFiles(input, null, true));
+					Collections.sort(files);
+					for (File file : files) {
+						final String name = relativeEntryName(input, file);
+						if (entryNames.add(name)) {
+							pending.add(submitEntry(pool, name, file.lastModified(), Files.toByteArray(file), cl, cache));
+						}
+						writePendingEntries(out, pending, maxPending);
+					}
+				} else {
+					try (JarInputStream in = new JarInputStream(new BufferedInputStream(new FileInputStream(input)));) {
+						for (JarEntry entry = in.getNextJarEntry(); entry != null; entry = in.getNextJarEntry()) {
+							final String name = entry.getName();
+							if (entry.isDirectory() || isSignatureFile(name) || !entryNames.add(name)) {
+								continue;
+							}
+							pending.add(submitEntry(pool, name, entry.getTime(), ByteStreams.toByteArray(in), cl, cache));
+							writePendingEntries(out, pending, maxPending);
+						}
+					}
+				}
+			}
+			writePendingEntries(out, pending, 0);
+			if (sharedWrappers != null) {
+				for (Map.Entry<String, byte[]> entry : sharedWrappers.generateClasses().entrySet()) {
+					out.putNextEntry(new JarEntry(entry.getKey() + classSuffix));
+					out.write(entry.getValue());
+					out.closeEntry();
+				}
+				System.out.println("Shared wrappers: " + sharedWrappers.size());
+			}
+			if (cache != null) {
+				System.out.println("Instrumentation cache: " + cache.getHits() + " hits, " + cache.getMisses()
+						+ " misses");
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e.getMessage());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Adds the class in jar entry 'entryName' to the application classes.
+	 * Returns false if the entry is not a class or has been seen before.
+	 */
+	private static boolean addApplicationClass(String entryName) {
+		if (entryName.endsWith(classSuffix) && !entryName.startsWith("META-INF/")
+				&& !entryName.endsWith("module-info" + classSuffix)) {
+			return applicationClassNames.add(entryName.substring(0, entryName.length() - classSuffix.length()));
+		}
+		return false;
+	}
+
+	private static void addClassBytes(byte[] classBytes, ReachabilityAnalysis analysis) {
+		addToHierarchy(classBytes);
+		if (analysis != null) {
+			analysis.addClass(classBytes);
+		}
+	}
+
+	private static String relativeEntryName(File dir, File file) {
+		return dir.toURI().relativize(file.toURI()).getPath();
+	}
+
+	private static boolean isSignatureFile(String entryName) {
+		if (!entryName.startsWith("META-INF/") || entryName.indexOf('/', "META-INF/".length()) >= 0) {
+			return false;
+		}
+		return entryName.endsWith(".SF") || entryName.endsWith(".RSA") || entryName.endsWith(".DSA")
+				|| entryName.endsWith(".EC");
+	}
+
+	/**
+	 * Submits the instrumentation of an entry to the pool. Entries that are
+	 * not application classes are not touched. Instrumented classes are
+	 * verified like in instrumentClassFile; classes that fail are copied
+	 * unchanged by writePendingEntries and not cached.
+	 */
+	private PendingEntry submitEntry(ExecutorService pool, final String name, final long time, final byte[] data,
+			final ClassLoader loader, final InstrumentationCache cache) {
+		Future<byte[]> instrumented = null;
+		if (name.endsWith(classSuffix)
+				&& applicationClassNames.contains(name.substring(0, name.length() - classSuffix.length()))) {
+			instrumented = pool.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					byte[] result = (cache == null) ? null : cache.lookup(data);
+					if (result == null) {
+						result = instrumentClassBytes(data, loader);
+						verifyInstrumentedClass(name, result, loader);
+						if (cache != null) {
+							cache.store(data, result);
+						}
+					}
+					return result;
+				}
+			});
+		}
+		return new PendingEntry(name, time, data, instrumented);
+	}
+
+	/**
+	 * Writes entries from the head of 'pending' to 'out' until at most
+	 * 'maxPending' entries are left.
+	 */
+	private void writePendingEntries(JarOutputStream out, LinkedList<PendingEntry> pending, int maxPending)
+			throws IOException, InterruptedException {
+		while (pending.size() > maxPending) {
+			final PendingEntry entry = pending.removeFirst();
+			byte[] data = entry.original;
+			if (entry.instrumented != null) {
+				try {
+					data = entry.instrumented.get();
+				} catch (ExecutionException e) {
+					System.err.println("Failed to instrument " + entry.name + ": " + e.getCause());
+				}
+			}
+			JarEntry jarEntry = new JarEntry(entry.name);
+			if (entry.time >= 0) {
+				jarEntry.setTime(entry.time);
+			}
+			out.putNextEntry(jarEntry);
+			out.write(data);
+			out.closeEntry();
+		}
+	}
+
+	/**
+	 * An entry of the output jar that is still being instrumented. If
+	 * 'instrumented' is null or fails, 'original' is written.
+	 */
+	private static final class PendingEntry {
+		final String name;
+		final long time;
+		final byte[] original;
+		final Future<byte[]> instrumented;
+
+		PendingEntry(String name, long time, byte[] original, Future<byte[]> instrumented) {
+			this.name = name;
+			this.time = time;
+			this.original = original;
+			this.instrumented = instrumented;
+		}
+	}
+
+	/**
+	 * Prints the messages returned by the tasks in the order in which the
+	 * tasks were submitted. Rethrows the first exception thrown by any task.
+	 * 
+	 * @param results
+	 * @throws InterruptedException
+	 */
+	private void report(List<Future<String>> results) throws InterruptedException {
+		for (Future<String> result : results) {
+			try {
+				final String message = result.get();
+				if (message != null) {
+					System.err.println(message);
+				}
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace(System.err);
+				throw new RuntimeException(e.getCause().getMessage());
+			}
+		}
 	}
 
 	/**
@@ -117,29 +576,106 @@ public class Main {
 	 * @param outFile
 	 */
 	public void instrumentClass(final String inFile, final String outFile) {
+		final String message = instrumentClassFile(new File(inFile), new File(outFile), null, null);
+		if (message != null) {
+			System.err.println(message);
+		}
+	}
+
+	/**
+	 * Same as instrumentClass but returns the error message instead of
+	 * printing it, so that it can be used from the worker pool. If 'cache' is
+	 * not null, the instrumented class is taken from the cache if possible,
+	 * and successfully verified classes are added to it.
+	 * 
+	 * @param inFile
+	 * @param outFile
+	 * @param loader
+	 *            a class loader that sees the application classes, used to
+	 *            verify the instrumented class, or null.
+	 * @param cache
+	 *            the cache or null.
+	 * @return null on success or a message describing why the class could
+	 *         not be instrumented.
+	 */
+	private String instrumentClassFile(final File inFile, final File outFile, final ClassLoader loader,
+			final InstrumentationCache cache) {
 		try (FileInputStream is = new FileInputStream(inFile); FileOutputStream fos = new FileOutputStream(outFile);) {
-			ClassReader cr = new ClassReader(is);
-			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES );			
+			final byte[] classBytes = ByteStreams.toByteArray(is);
+			if (cache != null) {
+				final byte[] cached = cache.lookup(classBytes);
+				if (cached != null) {
+					fos.write(cached);
+					return null;
+				}
+			}
+			ClassReader cr = new ClassReader(classBytes);
+			// the default ClassWriter cannot see the application classes
+			// when it computes the frames.
+			ClassWriter cw = (loader == null)
+					? new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES)
+					: new HierarchyClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES, loader);
 			cr.accept(new ClassRewriter(cw), 0);
 //			cr.accept(cw, 0);
-			StringWriter sw = new StringWriter();
-			PrintWriter pw = new PrintWriter(sw);			
-			fos.write(cw.toByteArray());
-			CheckClassAdapter.verify(cr, false, pw);
-			Verify.verify(sw.toString().length() == 0, inFile +": "+ sw.toString());			
+			final byte[] instrumentedBytes = cw.toByteArray();
+			fos.write(instrumentedBytes);
+			verifyInstrumentedClass(inFile.getAbsolutePath(), instrumentedBytes, loader);
+			if (cache != null) {
+				cache.store(classBytes, instrumentedBytes);
+			}
 		} catch (IOException e) {			
-			e.printStackTrace(System.err);
+			StringWriter sw = new StringWriter();
+			e.printStackTrace(new PrintWriter(sw));
+			return sw.toString();
 		} catch (VerifyException e) {
-			System.err.println("Failed to verify: " + inFile);
+			return "Failed to verify: " + inFile.getAbsolutePath();
 //			e.printStackTrace(System.err);
 //			throw new RuntimeException(e.getMessage());
 		}
+		return null;
+	}
+
+	/**
+	 * Instruments the class given as byte array and returns the instrumented
+	 * bytes. Unlike instrumentClass, the class hierarchy that is needed to
+	 * compute stack map frames is read from the class files visible to
+	 * 'loader' instead of loading the classes. This is necessary when classes
+	 * are instrumented while they are being loaded (see Agent).
+	 * 
+	 * @param classBytes
+	 * @param loader
+	 * @return the instrumented class.
+	 */
+	public byte[] instrumentClassBytes(final byte[] classBytes, final ClassLoader loader) {
+		ClassReader cr = new ClassReader(classBytes);
+		ClassWriter cw = new HierarchyClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES, loader);
+		cr.accept(new ClassRewriter(cw), 0);
+		return cw.toByteArray();
 	}
 
 	static class ClassRewriter extends ClassVisitor implements Opcodes {
 
 		protected String className, superName;
 
+		/**
+		 * The PcRecorder ids of the methods of this class, or null if the
+		 * recorder is not used.
+		 */
+		protected RecorderIds recorderIds = null;
+		private boolean hasClinit = false;
+
+		/**
+		 * True if the class is an interface. Calls to the methods that are
+		 * added to an interface must be interface method calls.
+		 */
+		private boolean isInterface = false;
+
+		/**
+		 * False for interfaces of class file versions before 52 (Java 8),
+		 * which cannot have static methods. They are left unchanged.
+		 */
+		private boolean canAddMethods = true;
+
 		public final String getSuperName() {
 			return this.superName;
 		}
@@ -148,6 +684,10 @@ public class Main {
 			return this.className;
 		}
 
+		public final boolean isInterface() {
+			return this.isInterface;
+		}
+
 		public ClassRewriter(final ClassVisitor cv) {
 			super(ASM5, cv);
 		}
@@ -157,14 +697,91 @@ public class Main {
 				String[] interfaces) {
 			className = name;
 			this.superName = superName;
+			isInterface = (access & ACC_INTERFACE) != 0;
+			canAddMethods = !isInterface || (version & 0xFFFF) >= V1_8;
+			if (Options.v().useRecorder() && canAddMethods) {
+				recorderIds = new RecorderIds(name, isInterface);
+			}
 			cv.visit(version, access, name, signature, superName, interfaces);
 		}
 
+		@Override
+		public void visitEnd() {
+			if (recorderIds != null) {
+				recorderIds.generate(cv, !hasClinit);
+			}
+			super.visitEnd();
+		}
+
 		@Override
 		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
 			MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+			if (recorderIds != null && "<clinit>".equals(name)) {
+				// the method ids have to be registered before the
+				// initializer reports its first pc.
+				hasClinit = true;
+				mv = new MethodVisitor(ASM5, mv) {
+					@Override
+					public void visitCode() {
+						super.visitCode();
+						recorderIds.emitInit(this.mv);
+					}
+				};
+			}
+			if (!canAddMethods || !methodFilter.isInstrumented(className, name, desc)) {
+				return mv;
+			}
 			final String pcMethodName = createProgramCounterMethod(name, desc);
-			return new MethodAdapter(mv, className, name, pcMethodName, this);
+			final MethodAdapter adapter = new MethodAdapter(mv, className, name, pcMethodName, this);
+			if (Options.v().useRecorder() && !"<clinit>".equals(name)) {
+				// Chicory does not report static initializers either.
+				adapter.setRecorderName(composePptName(className, name, desc));
+			}
+			if (!Options.v().useBlockSampling()) {
+				return adapter;
+			}
+			// the leaders of the basic blocks are only known once we have
+			// seen all jumps, so we buffer the method first.
+			return new MethodNode(ASM5, access, name, desc, signature, exceptions) {
+				@Override
+				public void visitEnd() {
+					adapter.setBlockLeaders(findBlockLeaders(this));
+					accept(adapter);
+				}
+			};
+		}
+
+		/**
+		 * Returns the labels that start a new basic block because some
+		 * instruction jumps to them or because they start an exception
+		 * handler.
+		 * 
+		 * @param mn
+		 * @return the set of labels that start a basic block.
+		 */
+		private Set<Label> findBlockLeaders(MethodNode mn) {
+			Set<Label> leaders = new HashSet<Label>();
+			for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+				if (insn instanceof JumpInsnNode) {
+					leaders.add(((JumpInsnNode) insn).label.getLabel());
+				} else if (insn instanceof TableSwitchInsnNode) {
+					TableSwitchInsnNode sw = (TableSwitchInsnNode) insn;
+					leaders.add(sw.dflt.getLabel());
+					for (Object ln : sw.labels) {
+						leaders.add(((LabelNode) ln).getLabel());
+					}
+				} else if (insn instanceof LookupSwitchInsnNode) {
+					LookupSwitchInsnNode sw = (LookupSwitchInsnNode) insn;
+					leaders.add(sw.dflt.getLabel());
+					for (Object ln : sw.labels) {
+						leaders.add(((LabelNode) ln).getLabel());
+					}
+				}
+			}
+			for (Object tcb : mn.tryCatchBlocks) {
+				leaders.add(((TryCatchBlockNode) tcb).handler.getLabel());
+			}
+			return leaders;
 		}
 
 		// @Override
@@ -187,6 +804,11 @@ public class Main {
 			final String methodName = composePcMethodName(name, desc);
 			Label endLabel = new Label();
 			MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC, methodName, "(I)V", null, null);
+			if (recorderIds != null) {
+				recorderIds.pushId(mv, composePptName(className, methodName, "(I)V"));
+				mv.visitVarInsn(ILOAD, 0);
+				mv.visitMethodInsn(INVOKESTATIC, PcRecorder.internalName, "pc", "(II)V", false);
+			}
 			mv.visitInsn(RETURN);
 			mv.visitMaxs(0, 1);
 			mv.visitLabel(endLabel);
@@ -195,9 +817,186 @@ public class Main {
 			return methodName;
 		}
 
+		/**
+		 * Returns the name of the wrapper for the call to 'owner.name+desc'
+		 * that is called instead of the original method. With
+		 * Options.useThreadIds this is the method that adds the thread id,
+		 * which then calls the wrapper that is sampled (see
+		 * createWrapperMethod).
+		 */
+		static String composeWrapperName(String owner, String name, String desc, String wrapperDesc) {
+			String cleanOwner = owner.replace("/", "_").replace("[", "_ARR_");
+			cleanOwner = cleanOwner.replace("$", "_D_");
+			cleanOwner = cleanOwner.replace(";", "_S_");
+			final String cleanName = name.replace("<", "_").replace(">", "_");
+			String firstPart = cleanOwner + cleanName;
+			if (!desc.equals(wrapperDesc)) {
+				firstPart += instanceWrapperSuffix;
+			}
+			if (Options.v().useThreadIds()) {
+				return firstPart + threadWrapperSuffix;
+			}
+			return firstPart + wrapperMethodNameSuffix;
+		}
+
+		/**
+		 * Adds the method 'wrapperName' to the class 'wrapperClass' that is
+		 * written by 'cv'. The wrapper passes its arguments to
+		 * 'owner.name+desc' and returns its result, so that Chicory samples
+		 * the values that go in and out of the call.
+		 * 
+		 * With Options.useThreadIds, 'wrapperName' only appends the id of the
+		 * current thread as last argument and calls a second (private)
+		 * wrapper that is sampled by Chicory. This way the samples can be
+		 * assigned to the thread that made the call while the call site in
+		 * the instrumented method stays the same.
+		 * 
+		 * 'wrapperItf' tells if 'wrapperClass' is an interface.
+		 * 
+		 * If 'recorderIds' is not null, the sampled wrapper reports its entry
+		 * and exit to the PcRecorder under an id from 'recorderIds'.
+		 */
+		static void createWrapperMethod(ClassVisitor cv, int access, String wrapperClass, boolean wrapperItf,
+				String wrapperName, int opcode, String owner, String name, String desc, boolean itf,
+				String wrapperDesc, RecorderIds recorderIds) {
+			if (!Options.v().useThreadIds()) {
+				createSampledWrapperMethod(cv, access, wrapperClass, wrapperName, wrapperDesc, opcode, owner, name,
+						desc, itf, wrapperDesc, recorderIds);
+				return;
+			}
+			final String sampledName = wrapperName.substring(0, wrapperName.length() - threadWrapperSuffix.length())
+					+ wrapperMethodNameSuffix;
+			final int argEnd = wrapperDesc.lastIndexOf(')');
+			final String sampledDesc = wrapperDesc.substring(0, argEnd) + "I" + wrapperDesc.substring(argEnd);
+			createSampledWrapperMethod(cv, ACC_PRIVATE | ACC_STATIC, wrapperClass, sampledName, sampledDesc, opcode,
+					owner, name, desc, itf, wrapperDesc, recorderIds);
+
+			MethodVisitor mv = cv.visitMethod(access, wrapperName, wrapperDesc, null, null);
+			List<String> argStrings = splitDescription(wrapperDesc.substring(1, argEnd));
+			loadArguments(mv, argStrings);
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/Thread", "currentThread", "()Ljava/lang/Thread;", false);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Thread", "getId", "()J", false);
+			mv.visitInsn(L2I);
+			mv.visitMethodInsn(INVOKESTATIC, wrapperClass, sampledName, sampledDesc, wrapperItf);
+			returnValue(mv, wrapperDesc.substring(argEnd + 1));
+			mv.visitMaxs(1, argStrings.size());
+			mv.visitEnd();
+		}
+
+		/**
+		 * Creates the wrapper 'methodName' that calls 'owner.name+desc' with
+		 * the arguments in 'wrapperDesc'. 'methodDesc' may have additional
+		 * arguments at the end, which are only there to be sampled.
+		 */
+		private static void createSampledWrapperMethod(ClassVisitor cv, int access, String wrapperClass,
+				String methodName, String methodDesc, int opcode, String owner, String name, String desc,
+				boolean itf, String wrapperDesc, RecorderIds recorderIds) {
+			MethodVisitor mv = cv.visitMethod(access, methodName, methodDesc, null, null);
+			final String recorderName = composePptName(wrapperClass, methodName, methodDesc);
+			if (recorderIds != null) {
+				recorderIds.pushId(mv, recorderName);
+				mv.visitMethodInsn(INVOKESTATIC, PcRecorder.internalName, "enter", "(I)V", false);
+			}
+			// Load all parameters
+
+			final String retString = wrapperDesc.substring(wrapperDesc.lastIndexOf(')') + 1);
+
+//			if (opcode == Opcodes.INVOKESPECIAL) {
+//				// if this is a constructor, add the new statement as well
+//				// to keep the bytecode verifier happy.
+//				Verify.verify(retString.startsWith("L") && retString.endsWith(";"), "Can't handle " + retString);
+//				final String tname = retString.substring(1, retString.length() - 1);
+//				mv.visitTypeInsn(Opcodes.NEW, tname);
+//				mv.visitInsn(Opcodes.DUP);
+//			}
+
+			List<String> argStrings = splitDescription(wrapperDesc.substring(1, wrapperDesc.lastIndexOf(')')));
+			loadArguments(mv, argStrings);
+
+			// call the original method.
+			mv.visitMethodInsn(opcode, owner, name, desc, itf);
+			if (recorderIds != null) {
+				recorderIds.pushId(mv, recorderName);
+				mv.visitMethodInsn(INVOKESTATIC, PcRecorder.internalName, "exit", "(I)V", false);
+			}
+
+			returnValue(mv, retString);
+			mv.visitMaxs(1, argStrings.size());
+			mv.visitEnd();
+		}
+
+		private static void loadArguments(MethodVisitor mv, List<String> argStrings) {
+			int pos = 0;
+			for (int i = 0; i < argStrings.size(); i++) {
+				String s = argStrings.get(i);
+				if ("B".equals(s)) { // signed byte
+					mv.visitVarInsn(Opcodes.ILOAD, pos);
+					pos++;
+				} else if ("C".equals(s)) { // char
+					mv.visitVarInsn(Opcodes.ILOAD, pos);
+					pos++;
+				} else if ("D".equals(s)) { // double
+					mv.visitVarInsn(Opcodes.DLOAD, pos);
+					pos+=2;
+				} else if ("F".equals(s)) { // float
+					mv.visitVarInsn(Opcodes.FLOAD, pos);
+					pos++;
+				} else if ("I".equals(s)) { // int
+					mv.visitVarInsn(Opcodes.ILOAD, pos);
+					pos++;
+				} else if ("J".equals(s)) { // long
+					mv.visitVarInsn(Opcodes.LLOAD, pos);
+					pos+=2;
+				} else if (s.startsWith("L")) { // class
+					mv.visitVarInsn(Opcodes.ALOAD, pos);
+					pos++;
+				} else if ("S".equals(s)) { // short
+					mv.visitVarInsn(Opcodes.ILOAD, pos);
+					pos++;
+				} else if ("Z".equals(s)) { // bool
+					mv.visitVarInsn(Opcodes.ILOAD, pos);
+					pos++;
+				} else if (s.startsWith("[")) { // array
+					mv.visitVarInsn(Opcodes.ALOAD, pos);
+					pos++;
+				} else {
+					throw new RuntimeException("Unknown type signature " + s);
+				}
+			}
+
+		}
+
+		private static void returnValue(MethodVisitor mv, String retString) {
+			if ("B".equals(retString)) { // signed byte
+				mv.visitInsn(Opcodes.IRETURN); // TODO is that true?
+			} else if ("C".equals(retString)) { // char
+				mv.visitInsn(Opcodes.IRETURN); // TODO is that true?
+			} else if ("D".equals(retString)) { // double
+				mv.visitInsn(Opcodes.DRETURN);
+			} else if ("F".equals(retString)) { // float
+				mv.visitInsn(Opcodes.FRETURN);
+			} else if ("I".equals(retString)) { // int
+				mv.visitInsn(Opcodes.IRETURN);
+			} else if ("J".equals(retString)) { // long
+				mv.visitInsn(Opcodes.LRETURN);
+			} else if (retString.startsWith("L")) { // class
+				mv.visitInsn(Opcodes.ARETURN);
+			} else if ("S".equals(retString)) { // short
+				mv.visitInsn(Opcodes.IRETURN); // TODO is that true?
+			} else if ("Z".equals(retString)) { // bool
+				mv.visitInsn(Opcodes.IRETURN); // TODO is that true?
+			} else if ("V".equals(retString)) { // void
+				mv.visitInsn(Opcodes.RETURN);
+			} else if (retString.startsWith("[")) { // array
+				mv.visitInsn(Opcodes.ARETURN);
+			} else {
+				throw new RuntimeException("Unknown type signature " + retString);
+			}
+		}
+
 		Map<String, String> foobar = new LinkedHashMap<String, String>();
 
-		private List<String> splitDescription(String desc) {
+		private static List<String> splitDescription(String desc) {
 			List<String> ret = new LinkedList<String>();
 			String s = "";
 			for (int i = 0; i < desc.length(); i++) {
@@ -225,103 +1024,14 @@ public class Main {
 
 		public String lookupWrapperMethod(int opcode, String owner, String name, String desc, boolean itf,
 				String wrapperDesc) {
-			Verify.verify(!applicationClassNames.contains(owner), "Application method must not be wrapped!");
+			Verify.verify(!applicationClassNames.contains(owner) || methodFilter.isWrappedCall(owner, name, desc),
+					"Application method must not be wrapped!");
 			final String signature = owner + "." + name + desc;
 
 			if (!foobar.containsKey(signature)) {
-				int accessModifier = ACC_PRIVATE | ACC_STATIC;
-				String cleanOwner = owner.replace("/", "_").replace("[", "_ARR_");
-				cleanOwner = cleanOwner.replace("$", "_D_");
-				cleanOwner = cleanOwner.replace(";", "_S_");
-				final String cleanName = name.replace("<", "_").replace(">", "_");
-				String firstPart = cleanOwner + cleanName;
-				if (!desc.equals(wrapperDesc)) {
-					firstPart += instanceWrapperSuffix;
-				}
-				final String wrapperName = firstPart + wrapperMethodNameSuffix;
-				MethodVisitor mv = cv.visitMethod(accessModifier, wrapperName, wrapperDesc, null, null);
-				// Load all parameters
-
-				final String retString = wrapperDesc.substring(wrapperDesc.lastIndexOf(')') + 1);
-
-//				if (opcode == Opcodes.INVOKESPECIAL) {
-//					// if this is a constructor, add the new statement as well
-//					// to keep the bytecode verifier happy.
-//					Verify.verify(retString.startsWith("L") && retString.endsWith(";"), "Can't handle " + retString);
-//					final String tname = retString.substring(1, retString.length() - 1);
-//					mv.visitTypeInsn(Opcodes.NEW, tname);
-//					mv.visitInsn(Opcodes.DUP);
-//				}
-
-				List<String> argStrings = splitDescription(wrapperDesc.substring(1, wrapperDesc.lastIndexOf(')')));
-				int pos = 0;
-				for (int i = 0; i < argStrings.size(); i++) {
-					String s = argStrings.get(i);
-					if ("B".equals(s)) { // signed byte
-						mv.visitVarInsn(Opcodes.ILOAD, pos);
-						pos++;
-					} else if ("C".equals(s)) { // char
-						mv.visitVarInsn(Opcodes.ILOAD, pos);
-						pos++;
-					} else if ("D".equals(s)) { // double
-						mv.visitVarInsn(Opcodes.DLOAD, pos);
-						pos+=2;
-					} else if ("F".equals(s)) { // float
-						mv.visitVarInsn(Opcodes.FLOAD, pos);
-						pos++;
-					} else if ("I".equals(s)) { // int
-						mv.visitVarInsn(Opcodes.ILOAD, pos);
-						pos++;
-					} else if ("J".equals(s)) { // long
-						mv.visitVarInsn(Opcodes.LLOAD, pos);
-						pos+=2;
-					} else if (s.startsWith("L")) { // class
-						mv.visitVarInsn(Opcodes.ALOAD, pos);
-						pos++;
-					} else if ("S".equals(s)) { // short
-						mv.visitVarInsn(Opcodes.ILOAD, pos);
-						pos++;
-					} else if ("Z".equals(s)) { // bool
-						mv.visitVarInsn(Opcodes.ILOAD, pos);
-						pos++;
-					} else if (s.startsWith("[")) { // array
-						mv.visitVarInsn(Opcodes.ALOAD, pos);
-						pos++;
-					} else {
-						throw new RuntimeException("Unknown type signature " + s);
-					}
-				}
-
-				// call the original method.
-				mv.visitMethodInsn(opcode, owner, name, desc, itf);
-
-				if ("B".equals(retString)) { // signed byte
-					mv.visitInsn(Opcodes.IRETURN); // TODO is that true?
-				} else if ("C".equals(retString)) { // char
-					mv.visitInsn(Opcodes.IRETURN); // TODO is that true?
-				} else if ("D".equals(retString)) { // double
-					mv.visitInsn(Opcodes.DRETURN);
-				} else if ("F".equals(retString)) { // float
-					mv.visitInsn(Opcodes.FRETURN);
-				} else if ("I".equals(retString)) { // int
-					mv.visitInsn(Opcodes.IRETURN);
-				} else if ("J".equals(retString)) { // long
-					mv.visitInsn(Opcodes.LRETURN);
-				} else if (retString.startsWith("L")) { // class
-					mv.visitInsn(Opcodes.ARETURN);
-				} else if ("S".equals(retString)) { // short
-					mv.visitInsn(Opcodes.IRETURN); // TODO is that true?
-				} else if ("Z".equals(retString)) { // bool
-					mv.visitInsn(Opcodes.IRETURN); // TODO is that true?
-				} else if ("V".equals(retString)) { // void
-					mv.visitInsn(Opcodes.RETURN);
-				} else if (retString.startsWith("[")) { // array
-					mv.visitInsn(Opcodes.ARETURN);
-				} else {
-					throw new RuntimeException("Unknown type signature " + retString);
-				}
-				mv.visitMaxs(1, argStrings.size());
-				mv.visitEnd();
+				final String wrapperName = composeWrapperName(owner, name, desc, wrapperDesc);
+				createWrapperMethod(cv, ACC_PRIVATE | ACC_STATIC, className, isInterface, wrapperName, opcode, owner,
+						name, desc, itf, wrapperDesc, recorderIds);
 				foobar.put(signature, wrapperName);
 			}
 			return foobar.get(signature);
@@ -338,10 +1048,53 @@ public class Main {
 		return cleanName + "_SIG_" + cleanDesc + pcMethodNameSuffix;
 	}
 
+	/**
+	 * Returns the name that Daikon uses for the program points of a method,
+	 * without the ":::ENTER" or ":::EXIT" suffix. E.g.,
+	 * "pkg.Foo.bar(int, java.lang.String[])". Constructors are named after
+	 * the class.
+	 * 
+	 * @param owner
+	 *            the class in internal form.
+	 * @param name
+	 * @param desc
+	 * @return the ppt name of the method.
+	 */
+	public static String composePptName(String owner, String name, String desc) {
+		final String className = owner.replace('/', '.');
+		String methodName = name;
+		if ("<init>".equals(name)) {
+			methodName = className.substring(className.lastIndexOf('.') + 1);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(className);
+		sb.append(".");
+		sb.append(methodName);
+		sb.append("(");
+		String comma = "";
+		for (Type t : Type.getArgumentTypes(desc)) {
+			sb.append(comma);
+			sb.append(t.getClassName());
+			comma = ", ";
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
 	static class MethodAdapter extends MethodVisitor implements Opcodes {
 
 		private int instCounter = 0;
 
+		/**
+		 * If not null, the pc is only sampled at the start of a basic block,
+		 * i.e., at the first instruction, at these labels, and after each
+		 * instruction that ends a block. See Options.useBlockSampling.
+		 */
+		private Set<Label> blockLeaders = null;
+		private boolean atBlockStart = true;
+
+		private String recorderName = null;
+
 		protected final String className, pcMethodName, methodName;
 		protected final ClassRewriter containClassVisitor;
 
@@ -357,7 +1110,100 @@ public class Main {
 			this.containClassVisitor = cv;
 		}
 
+		public void setBlockLeaders(Set<Label> blockLeaders) {
+			this.blockLeaders = blockLeaders;
+		}
+
+		/**
+		 * If set, the adapter reports entering and leaving the method to the
+		 * PcRecorder under the given ppt name. Test methods report their
+		 * entry with PcRecorder.enterTest.
+		 * 
+		 * @param recorderName
+		 */
+		public void setRecorderName(String recorderName) {
+			this.recorderName = recorderName;
+		}
+
+		private void recordEvent(String recorderMethod) {
+			containClassVisitor.recorderIds.pushId(mv, recorderName);
+			super.visitMethodInsn(INVOKESTATIC, PcRecorder.internalName, recorderMethod, "(I)V", false);
+		}
+
+		@Override
+		public void visitCode() {
+			super.visitCode();
+			if (recorderName != null) {
+				recordEvent(testPptPattern.matcher(recorderName).matches() ? "enterTest" : "enter");
+			}
+		}
+
+		/**
+		 * Called after each instruction that may transfer control somewhere
+		 * else (jumps, switches, returns, throws, calls, and instructions that
+		 * may throw an exception). In block sampling mode, the next
+		 * instruction starts a new block.
+		 */
+		private void endBlock() {
+			atBlockStart = true;
+		}
+
+		/**
+		 * Returns true if the instruction 'opcode' (other than a call or
+		 * athrow) may throw a runtime exception, i.e., field and array
+		 * accesses, integer division, casts, allocations, and monitors. In
+		 * block sampling mode, such an instruction is the last one of its
+		 * block. Otherwise, the statements after a failing instruction would
+		 * be on the trace as if they had been executed.
+		 * 
+		 * @param opcode
+		 * @return true if the instruction may throw.
+		 */
+		private static boolean mayThrow(int opcode) {
+			switch (opcode) {
+			case IALOAD:
+			case LALOAD:
+			case FALOAD:
+			case DALOAD:
+			case AALOAD:
+			case BALOAD:
+			case CALOAD:
+			case SALOAD:
+			case IASTORE:
+			case LASTORE:
+			case FASTORE:
+			case DASTORE:
+			case AASTORE:
+			case BASTORE:
+			case CASTORE:
+			case SASTORE:
+			case ARRAYLENGTH:
+			case IDIV:
+			case LDIV:
+			case IREM:
+			case LREM:
+			case MONITORENTER:
+			case MONITOREXIT:
+			case GETFIELD:
+			case PUTFIELD:
+			case GETSTATIC:
+			case PUTSTATIC:
+			case NEW:
+			case NEWARRAY:
+			case ANEWARRAY:
+			case MULTIANEWARRAY:
+			case CHECKCAST:
+				return true;
+			default:
+				return false;
+			}
+		}
+
 		private void sampleInstCounter() {
+			if (blockLeaders != null && !atBlockStart) {
+				return;
+			}
+			atBlockStart = false;
 //			if (lastAllocatedType != null && !dupVisited) {
 //				// //something wrong here.
 //				// String t = lastAllocatedType;
@@ -366,11 +1212,27 @@ public class Main {
 //				// super.visitTypeInsn(Opcodes.NEW, t);
 //				throw new RuntimeException("This should not happen!");
 //			}
-			super.visitIntInsn(BIPUSH, instCounter);
-			super.visitMethodInsn(INVOKESTATIC, className, pcMethodName, "(I)V", false);
+			pushInt(instCounter);
+			super.visitMethodInsn(INVOKESTATIC, className, pcMethodName, "(I)V", containClassVisitor.isInterface());
 			instCounter++;
 		}
 
+		/**
+		 * Pushes the constant 'value'. BIPUSH alone would silently truncate
+		 * counters above 127 and make different pcs indistinguishable.
+		 * 
+		 * @param value
+		 */
+		private void pushInt(int value) {
+			if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				super.visitIntInsn(BIPUSH, value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				super.visitIntInsn(SIPUSH, value);
+			} else {
+				super.visitLdcInsn(value);
+			}
+		}
+
 		@Override
 		public void visitInsn(int opcode) {
 //			if (opcode == Opcodes.DUP && lastAllocatedType != null) {
@@ -380,12 +1242,21 @@ public class Main {
 //				lastAllocatedType=null;
 //			} else {
 				sampleInstCounter();
+				if (recorderName != null && opcode >= IRETURN && opcode <= RETURN) {
+					recordEvent("exit");
+				}
 				super.visitInsn(opcode);
+				if ((opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW || mayThrow(opcode)) {
+					endBlock();
+				}
 //			}
 		}
 
 		@Override
 		public void visitLabel(Label label) {
+			if (blockLeaders != null && blockLeaders.contains(label)) {
+				atBlockStart = true;
+			}
 			super.visitLabel(label);
 		}
 		
@@ -393,6 +1264,9 @@ public class Main {
 		public void visitIntInsn(int opcode, int operand) {
 			sampleInstCounter();
 			super.visitIntInsn(opcode, operand);
+			if (mayThrow(opcode)) {
+				endBlock();
+			}
 		}
 
 		@Override
@@ -411,6 +1285,9 @@ public class Main {
 //				lastAllocatedType = null;
 				sampleInstCounter();
 				super.visitTypeInsn(opcode, type);
+				if (mayThrow(opcode)) {
+					endBlock();
+				}
 //			}
 		}
 
@@ -418,6 +1295,7 @@ public class Main {
 		public void visitFieldInsn(int opcode, String owner, String name, String desc) {
 			sampleInstCounter();
 			super.visitFieldInsn(opcode, owner, name, desc);
+			endBlock();
 		}
 
 		@Override
@@ -426,8 +1304,11 @@ public class Main {
 			// and a DUP
 			// and check if we can wrap this constructor.
 			sampleInstCounter();
+			// the callee (or the wrapper) shows up on the trace, so the
+			// instruction after the call always starts a new block.
+			endBlock();
 
-			if (applicationClassNames.contains(owner)) {
+			if (applicationClassNames.contains(owner) && !isWrappedApplicationCall(opcode, owner, name, desc)) {
 				super.visitMethodInsn(opcode, owner, name, desc, itf);
 				return;
 			} else if ("<init>".equals(name)) {
@@ -471,18 +1352,40 @@ public class Main {
 						wrapperDesc = sb.toString();
 //					}
 				}
+				final String sharedWrapperClass = (sharedWrappers == null) ? null
+						: sharedWrappers.lookup(opcode, owner, name, desc, itf, wrapperDesc);
+				if (sharedWrapperClass != null) {
+					super.visitMethodInsn(Opcodes.INVOKESTATIC, sharedWrapperClass,
+							ClassRewriter.composeWrapperName(owner, name, desc, wrapperDesc), wrapperDesc, false);
+					return;
+				}
 				final String wrappedMethodName = this.containClassVisitor.lookupWrapperMethod(opcode, owner, name, desc,
 						itf, wrapperDesc);
-				super.visitMethodInsn(Opcodes.INVOKESTATIC, className, wrappedMethodName, wrapperDesc, false);
+				super.visitMethodInsn(Opcodes.INVOKESTATIC, className, wrappedMethodName, wrapperDesc,
+						containClassVisitor.isInterface());
 				return;
 			}
 		}
 
+		/**
+		 * Calls to application methods that are not instrumented because of
+		 * the include or exclude pattern are wrapped like library calls.
+		 * Super calls cannot be moved into a static wrapper, so they are
+		 * left alone.
+		 */
+		private boolean isWrappedApplicationCall(int opcode, String owner, String name, String desc) {
+			if (opcode == Opcodes.INVOKESPECIAL && !owner.equals(className)) {
+				return false;
+			}
+			return methodFilter.isWrappedCall(owner, name, desc);
+		}
+
 		@Override
 		public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
 			// TODO Auto-generated method stub
 			sampleInstCounter();
 			super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+			endBlock();
 		}
 
 		@Override
@@ -501,24 +1404,28 @@ public class Main {
 		public void visitMultiANewArrayInsn(String desc, int dims) {
 			sampleInstCounter();
 			super.visitMultiANewArrayInsn(desc, dims);
+			endBlock();
 		}
 
 		@Override
 		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
 			sampleInstCounter();
 			super.visitTableSwitchInsn(min, max, dflt, labels);
+			endBlock();
 		}
 
 		@Override
 		public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
 			sampleInstCounter();
 			super.visitLookupSwitchInsn(dflt, keys, labels);
+			endBlock();
 		}
 
 		@Override
 		public void visitJumpInsn(int opcode, Label label) {
 			sampleInstCounter();
 			super.visitJumpInsn(opcode, label);
+			endBlock();
 		}
 
 	}
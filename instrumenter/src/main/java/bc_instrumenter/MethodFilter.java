@@ -0,0 +1,177 @@
+package bc_instrumenter;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which methods of the application classes are instrumented (see
+ * Options.includeOption, Options.excludeOption, and
+ * Options.reachableFromOption). Methods that are not instrumented get no pc
+ * sampling, no wrappers, and no recorder events. Calls from instrumented
+ * code to methods that are excluded by a pattern are wrapped like calls to
+ * library methods, so that the trace only contains their arguments and
+ * return values. Unreachable methods are never called from instrumented
+ * code, so calls to them do not need a wrapper.
+ *
+ * The patterns are matched (with find) against the name that Daikon uses
+ * for the program points of the method (see Main.composePptName), e.g.,
+ * "pkg.Cls.method(int, java.lang.String)". Constructors and static
+ * initializers are never excluded by a pattern because calls to them cannot
+ * be wrapped.
+ *
+ * A call site names the static type of the receiver, not the class that
+ * declares the method, so the patterns are matched against the method the
+ * call resolves to in the class hierarchy. A wrapped call must not dispatch
+ * to instrumented code, and a call that is not wrapped must not dispatch to
+ * code without events. Hence, a method that matches the patterns is only
+ * excluded if all application methods it overrides or is overridden by
+ * match them, too. Otherwise the whole group is instrumented.
+ *
+ * @author schaef
+ *
+ */
+public class MethodFilter {
+
+	private final Pattern include;
+	private final Pattern exclude;
+	private final Set<String> reachableMethods;
+
+	/**
+	 * The application class hierarchy or null. Required if a pattern is
+	 * given.
+	 */
+	private final ReachabilityAnalysis hierarchy;
+
+	/**
+	 * Result of isExcludedByPattern for the methods that match the patterns,
+	 * by owner.name+desc. Filled concurrently by the workers.
+	 */
+	private final Map<String, Boolean> excluded = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * @param include
+	 *            pattern of methods to instrument or null for all methods.
+	 * @param exclude
+	 *            pattern of methods not to instrument or null.
+	 * @param reachableMethods
+	 *            reachable methods as owner.name+desc or null to skip the
+	 *            reachability check.
+	 * @param hierarchy
+	 *            the application classes, or null if neither pattern is
+	 *            given.
+	 */
+	public MethodFilter(Pattern include, Pattern exclude, Set<String> reachableMethods,
+			ReachabilityAnalysis hierarchy) {
+		this.include = include;
+		this.exclude = exclude;
+		this.reachableMethods = reachableMethods;
+		this.hierarchy = hierarchy;
+		if ((include != null || exclude != null) && hierarchy == null) {
+			throw new IllegalArgumentException("Patterns need the class hierarchy.");
+		}
+	}
+
+	/**
+	 * Returns true if the method 'owner.name+desc' of an application class
+	 * should be instrumented.
+	 *
+	 * @param owner
+	 * @param name
+	 * @param desc
+	 * @return true if the method should be instrumented.
+	 */
+	public boolean isInstrumented(String owner, String name, String desc) {
+		if (reachableMethods != null && !reachableMethods.contains(owner + "." + name + desc)) {
+			return false;
+		}
+		return !isExcludedByPattern(owner, name, desc);
+	}
+
+	/**
+	 * Returns true if the application method 'owner.name+desc' is not
+	 * instrumented because of the include or exclude pattern, i.e., if it
+	 * and all application methods it overrides or is overridden by match the
+	 * patterns.
+	 *
+	 * @param owner
+	 *            the class that declares the method.
+	 * @param name
+	 * @param desc
+	 * @return true if the method is excluded by a pattern.
+	 */
+	public boolean isExcludedByPattern(String owner, String name, String desc) {
+		if (!matchesPatterns(owner, name, desc)) {
+			return false;
+		}
+		final String key = owner + "." + name + desc;
+		Boolean result = excluded.get(key);
+		if (result == null) {
+			final Set<String> roots = hierarchy.findOverriddenClasses(owner, name + desc);
+			roots.add(owner);
+			final Set<String> group = new HashSet<String>(roots);
+			for (String root : roots) {
+				group.addAll(hierarchy.findOverridingClasses(root, name + desc));
+			}
+			result = Boolean.TRUE;
+			for (String type : group) {
+				if (!matchesPatterns(type, name, desc)) {
+					result = Boolean.FALSE;
+					break;
+				}
+			}
+			excluded.put(key, result);
+		}
+		return result.booleanValue();
+	}
+
+	/**
+	 * Returns true if a call to the application method 'owner.name+desc'
+	 * has to be wrapped because the method it resolves to is excluded by a
+	 * pattern. 'owner' is the class named at the call site.
+	 *
+	 * @param owner
+	 * @param name
+	 * @param desc
+	 * @return true if the call has to be wrapped.
+	 */
+	public boolean isWrappedCall(String owner, String name, String desc) {
+		if ((include == null && exclude == null) || name.startsWith("<")) {
+			return false;
+		}
+		final String declaringClass = hierarchy.resolveDeclaringClass(owner, name + desc);
+		// methods inherited from library classes are treated like library
+		// calls anyway.
+		return declaringClass != null && isExcludedByPattern(declaringClass, name, desc);
+	}
+
+	private boolean matchesPatterns(String owner, String name, String desc) {
+		if ((include == null && exclude == null) || name.startsWith("<")) {
+			return false;
+		}
+		final String pptName = Main.composePptName(owner, name, desc);
+		if (include != null && !include.matcher(pptName).find()) {
+			return true;
+		}
+		return exclude != null && exclude.matcher(pptName).find();
+	}
+
+	/**
+	 * Returns a string that identifies the patterns of this filter. Used as
+	 * part of the key of the InstrumentationCache. The decisions for the
+	 * methods of a class and the calls in it depend on the other classes as
+	 * well, so the cache adds them to the key of each class (see
+	 * isInstrumented and isWrappedCall).
+	 *
+	 * @return the description.
+	 */
+	public String describe() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("include=").append(include).append(';');
+		sb.append("exclude=").append(exclude).append(';');
+		sb.append("reachable=").append(reachableMethods != null).append(';');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,206 @@
+package bc_instrumenter;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+/**
+ * Options that control how classes are instrumented. The same options can be
+ * given on the command line of Main (as -name value, or just -name for
+ * boolean options) or as agent arguments (as name=value).
+ *
+ * @author schaef
+ *
+ */
+public class Options {
+
+	private static Options instance;
+
+	public static Options v() {
+		if (instance == null) {
+			instance = new Options();
+		}
+		return instance;
+	}
+
+	public static void resetInstance() {
+		instance = null;
+	}
+
+	public static final String threadsOption = "threads";
+	public static final String blocksOption = "blocks";
+	public static final String recorderOption = "recorder";
+	public static final String cacheOption = "cache";
+	public static final String includeOption = "include";
+	public static final String excludeOption = "exclude";
+	public static final String reachableFromOption = "reachableFrom";
+	public static final String sharedWrappersOption = "sharedWrappers";
+	public static final String threadIdsOption = "threadIds";
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * If true, the program counter is only sampled at the first instruction of
+	 * each basic block instead of before every instruction. A block ends at
+	 * jumps, switches, returns, throws, method calls, and instructions that
+	 * may throw (field and array accesses, integer division, casts, and
+	 * allocations), and starts at every jump target and exception handler.
+	 */
+	private boolean blockSampling = false;
+
+	/**
+	 * If true, the pc methods, the wrappers, and all instrumented methods
+	 * report their events to PcRecorder, which writes them to a binary trace
+	 * file. Chicory is then only needed for the values passed to and
+	 * returned from wrappers.
+	 */
+	private boolean useRecorder = false;
+
+	/**
+	 * Directory of the InstrumentationCache or null if instrumented classes
+	 * should not be cached.
+	 */
+	private File cacheDir = null;
+
+	/**
+	 * Patterns that select the methods that are instrumented. See
+	 * MethodFilter.
+	 */
+	private Pattern includePattern = null;
+	private Pattern excludePattern = null;
+
+	/**
+	 * If not null, only methods that are reachable from the classes that
+	 * match this pattern are instrumented. See ReachabilityAnalysis.
+	 */
+	private Pattern reachableFromPattern = null;
+
+	/**
+	 * If true, the wrappers of public library methods are put into a few
+	 * generated support classes instead of a private copy in each calling
+	 * class. See SharedWrappers.
+	 */
+	private boolean sharedWrappers = false;
+
+	/**
+	 * If true, the wrappers pass the id of the calling thread to Chicory so
+	 * that the trace can be split into one trace per thread. The pc and
+	 * method events are always recorded per thread by PcRecorder, so this
+	 * implies useRecorder.
+	 */
+	private boolean threadIds = false;
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public boolean useBlockSampling() {
+		return blockSampling;
+	}
+
+	public boolean useRecorder() {
+		return useRecorder || threadIds;
+	}
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	public Pattern getIncludePattern() {
+		return includePattern;
+	}
+
+	public Pattern getExcludePattern() {
+		return excludePattern;
+	}
+
+	public Pattern getReachableFromPattern() {
+		return reachableFromPattern;
+	}
+
+	/**
+	 * Returns true if the instrumenter needs the class hierarchy of the
+	 * application (see ReachabilityAnalysis), i.e., if methods are selected
+	 * by a pattern or by reachability.
+	 */
+	public boolean needsClassHierarchy() {
+		return includePattern != null || excludePattern != null || reachableFromPattern != null;
+	}
+
+	public boolean useSharedWrappers() {
+		return sharedWrappers;
+	}
+
+	public boolean useThreadIds() {
+		return threadIds;
+	}
+
+	/**
+	 * Returns a string that contains the values of all options that change
+	 * the instrumented code. Used as part of the key of the
+	 * InstrumentationCache.
+	 *
+	 * @return the description of the options.
+	 */
+	public String describeInstrumentation() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(blocksOption).append('=').append(blockSampling).append(';');
+		sb.append(recorderOption).append('=').append(useRecorder()).append(';');
+		sb.append(threadIdsOption).append('=').append(threadIds).append(';');
+		sb.append(sharedWrappersOption).append('=').append(sharedWrappers).append(';');
+		return sb.toString();
+	}
+
+	/**
+	 * Sets the option 'name' to 'value'.
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public void setOption(String name, String value) {
+		if (threadsOption.equals(name)) {
+			numThreads = Integer.parseInt(value);
+			if (numThreads <= 0) {
+				throw new IllegalArgumentException("Number of threads must be positive: " + value);
+			}
+		} else if (blocksOption.equals(name)) {
+			blockSampling = Boolean.parseBoolean(value);
+		} else if (recorderOption.equals(name)) {
+			useRecorder = Boolean.parseBoolean(value);
+		} else if (cacheOption.equals(name)) {
+			cacheDir = new File(value);
+		} else if (includeOption.equals(name)) {
+			includePattern = Pattern.compile(value);
+		} else if (excludeOption.equals(name)) {
+			excludePattern = Pattern.compile(value);
+		} else if (reachableFromOption.equals(name)) {
+			reachableFromPattern = Pattern.compile(value);
+		} else if (sharedWrappersOption.equals(name)) {
+			sharedWrappers = Boolean.parseBoolean(value);
+		} else if (threadIdsOption.equals(name)) {
+			threadIds = Boolean.parseBoolean(value);
+		} else {
+			throw new IllegalArgumentException("Unknown option " + name);
+		}
+	}
+
+	/**
+	 * Parses options of the form -name value or -name (for boolean options)
+	 * starting at position 'start' of 'args'.
+	 *
+	 * @param args
+	 * @param start
+	 */
+	public void parseCommandLine(String[] args, int start) {
+		for (int i = start; i < args.length; i++) {
+			if (!args[i].startsWith("-")) {
+				throw new IllegalArgumentException("Expected an option but found " + args[i]);
+			}
+			final String name = args[i].substring(1);
+			if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+				setOption(name, args[++i]);
+			} else {
+				setOption(name, "true");
+			}
+		}
+	}
+}
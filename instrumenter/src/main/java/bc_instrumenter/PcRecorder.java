@@ -0,0 +1,331 @@
+package bc_instrumenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runtime side of the binary trace recorder (see Options.useRecorder). The
+ * instrumented classes call this class instead of relying on Chicory to
+ * sample the pc methods. Each event is a record of two ints: the id of the
+ * method and either the pc or one of the markers ENTER and EXIT. Records are
+ * collected in a buffer per thread and appended to a memory mapped file when
+ * the buffer is full, when the thread has died, and when the JVM shuts down.
+ *
+ * The method ids are assigned by the instrumenter (see RecorderIds): each
+ * class registers the names of its methods once when it is initialized and
+ * then passes the registered id with every event, so recording an event
+ * does not look anything up.
+ *
+ * The trace file starts with MAGIC and VERSION followed by chunks. Each
+ * chunk is the content of one flushed buffer: the id of the thread (a long),
+ * the number of records (an int), and the records. The chunks of a thread
+ * are in the order in which the thread produced them, so each thread's
+ * events can be read back in order even if the threads interleave. The
+ * method names (in Daikon's ppt naming scheme, without the ":::ENTER"
+ * suffix) are written to the file traceFile + methodsFileSuffix, one per
+ * line in the order of their ids.
+ *
+ * The events of threads that do not run a test themselves (e.g., the
+ * threads of a pool) belong to the test that is running when they happen.
+ * The instrumenter calls enterTest instead of enter for the test methods.
+ * enterTest numbers the tests, makes the new number the current test, and
+ * records TEST with that number (in place of the method id). Whenever a
+ * thread records an event and the current test has changed since its last
+ * event, it first records CHARGE with the number of the current test. Before
+ * a test starts, the buffers of all threads are flushed, so every event
+ * that belongs to the previous test is in the file before the TEST record
+ * of the next one.
+ *
+ * @author schaef
+ *
+ */
+public final class PcRecorder {
+
+	public static final String traceFileProperty = "bc_instrumenter.pctrace";
+	public static final String defaultTraceFile = "pctrace.bin";
+	public static final String methodsFileSuffix = ".methods";
+
+	public static final int MAGIC = 0x44594e53;
+	public static final int VERSION = 4;
+	public static final int RECORD_SIZE = 8;
+	public static final int CHUNK_HEADER_SIZE = 12;
+
+	public static final int ENTER = -1;
+	public static final int EXIT = -2;
+	public static final int TEST = -3;
+	public static final int CHARGE = -4;
+
+	public static final String internalName = "bc_instrumenter/PcRecorder";
+
+	/**
+	 * Ppt names (without ":::ENTER") of the test methods that are recorded
+	 * with enterTest.
+	 */
+	public static final String testPptRegex = "ErrorTest(\\d)+\\.test(\\d)+\\(\\)";
+	private static final int NO_TEST = -1;
+
+	private static final int bufferSize = RECORD_SIZE << 13;
+	private static final long regionSize = 1L << 26;
+
+	private static final List<String> methodNames = new ArrayList<String>();
+
+	private static final AtomicInteger nextTest = new AtomicInteger();
+
+	/**
+	 * The number of the test that is running, or NO_TEST before the first
+	 * test starts. Every thread compares it to the test of its previous
+	 * event, so this is read once per event.
+	 */
+	private static volatile int currentTest = NO_TEST;
+
+	/**
+	 * The buffers of all threads that may still add records. The buffers of
+	 * threads that have died are flushed and removed whenever a new thread
+	 * starts recording, so a thread pool that keeps replacing its threads
+	 * does not accumulate buffers.
+	 */
+	private static final List<ThreadBuffer> buffers = new ArrayList<ThreadBuffer>();
+
+	private static final ThreadLocal<ThreadBuffer> localBuffer = new ThreadLocal<ThreadBuffer>() {
+		@Override
+		protected ThreadBuffer initialValue() {
+			ThreadBuffer tb = new ThreadBuffer();
+			synchronized (buffers) {
+				releaseDeadThreads();
+				buffers.add(tb);
+			}
+			return tb;
+		}
+	};
+
+	private static File traceFile;
+	private static FileChannel channel;
+	private static MappedByteBuffer region;
+	private static long regionStart = 0;
+	private static volatile boolean closed = false;
+
+	static {
+		traceFile = new File(System.getProperty(traceFileProperty, defaultTraceFile));
+		try {
+			@SuppressWarnings("resource")
+			RandomAccessFile raf = new RandomAccessFile(traceFile, "rw");
+			raf.setLength(0);
+			channel = raf.getChannel();
+			region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+			region.order(ByteOrder.BIG_ENDIAN);
+			region.putInt(MAGIC);
+			region.putInt(VERSION);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot create trace file " + traceFile.getAbsolutePath(), e);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	private PcRecorder() {
+	}
+
+	/**
+	 * Called once by the static initializer of each instrumented class.
+	 * Assigns consecutive ids to the methods in 'names' and returns the
+	 * first one.
+	 *
+	 * @param names
+	 *            the ppt names of the methods of the class that report
+	 *            events.
+	 * @return the id of names[0].
+	 */
+	public static int register(String[] names) {
+		synchronized (methodNames) {
+			final int base = methodNames.size();
+			Collections.addAll(methodNames, names);
+			return base;
+		}
+	}
+
+	/**
+	 * Called by the pc methods before each sampled instruction.
+	 *
+	 * @param methodId
+	 *            the id of the pc method.
+	 * @param pc
+	 */
+	public static void pc(int methodId, int pc) {
+		localBuffer.get().add(methodId, pc);
+	}
+
+	/**
+	 * Called at the beginning of each instrumented method and wrapper.
+	 *
+	 * @param methodId
+	 */
+	public static void enter(int methodId) {
+		localBuffer.get().add(methodId, ENTER);
+	}
+
+	/**
+	 * Called at the beginning of each test method instead of enter. The
+	 * buffers of all threads are flushed after the new test is made the
+	 * current one: a thread that adds an event after its buffer was flushed
+	 * sees the new test and charges the event to it, and everything that
+	 * was added before goes into the file before the TEST record.
+	 *
+	 * @param methodId
+	 */
+	public static void enterTest(int methodId) {
+		final ThreadBuffer own = localBuffer.get();
+		final int test = nextTest.getAndIncrement();
+		currentTest = test;
+		synchronized (buffers) {
+			for (ThreadBuffer tb : buffers) {
+				tb.flush();
+			}
+		}
+		own.beginTest(methodId, test);
+	}
+
+	/**
+	 * Called before each (non-exceptional) return of an instrumented method
+	 * or wrapper.
+	 *
+	 * @param methodId
+	 */
+	public static void exit(int methodId) {
+		localBuffer.get().add(methodId, EXIT);
+	}
+
+	/**
+	 * Flushes and removes the buffers of threads that have died. Those
+	 * buffers do not get any new records, so they can be flushed from here.
+	 * The caller must hold the lock of 'buffers'.
+	 */
+	private static void releaseDeadThreads() {
+		Iterator<ThreadBuffer> it = buffers.iterator();
+		while (it.hasNext()) {
+			ThreadBuffer tb = it.next();
+			if (!tb.isAlive()) {
+				tb.flush();
+				it.remove();
+			}
+		}
+	}
+
+	private static synchronized void write(long threadId, ByteBuffer data) {
+		if (closed) {
+			return;
+		}
+		try {
+			if (region.remaining() < CHUNK_HEADER_SIZE + data.remaining()) {
+				regionStart += region.position();
+				region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+			}
+			region.putLong(threadId);
+			region.putInt(data.remaining() / RECORD_SIZE);
+			region.put(data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void close() {
+		// lock order is always ThreadBuffer before PcRecorder.class
+		synchronized (buffers) {
+			for (ThreadBuffer tb : buffers) {
+				tb.flush();
+			}
+		}
+		synchronized (PcRecorder.class) {
+			closed = true;
+			finish();
+		}
+	}
+
+	private static void finish() {
+		try {
+			region.force();
+			channel.truncate(regionStart + region.position());
+			channel.close();
+			try (PrintWriter pw = new PrintWriter(traceFile.getAbsolutePath() + methodsFileSuffix, "UTF-8");) {
+				synchronized (methodNames) {
+					for (String name : methodNames) {
+						pw.println(name);
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * Records of a single thread. Only the owning thread adds records; other
+	 * threads only flush the buffer when the owner has died or the JVM shuts
+	 * down, so the lock is uncontended while the program runs.
+	 */
+	private static final class ThreadBuffer {
+		private final long threadId = Thread.currentThread().getId();
+		private final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+		private final ByteBuffer buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.BIG_ENDIAN);
+		/** The test that the last event of this thread was charged to. */
+		private int chargedTest = NO_TEST;
+
+		synchronized void add(int methodId, int code) {
+			// read under the lock so that enterTest cannot flush the buffer
+			// between reading the test and adding the event.
+			final int test = currentTest;
+			if (test != chargedTest) {
+				chargedTest = test;
+				put(test, CHARGE);
+			}
+			put(methodId, code);
+		}
+
+		/**
+		 * Records the entry of the test method 'methodId' that starts the
+		 * test 'test' and writes it to the file right away.
+		 */
+		synchronized void beginTest(int methodId, int test) {
+			chargedTest = test;
+			put(methodId, ENTER);
+			put(test, TEST);
+			flush();
+		}
+
+		private void put(int first, int second) {
+			if (buffer.remaining() < RECORD_SIZE) {
+				flush();
+			}
+			buffer.putInt(first);
+			buffer.putInt(second);
+		}
+
+		boolean isAlive() {
+			final Thread t = thread.get();
+			return t != null && t.isAlive();
+		}
+
+		synchronized void flush() {
+			buffer.flip();
+			if (buffer.hasRemaining()) {
+				write(threadId, buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,502 @@
+package bc_instrumenter;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Cheap static call graph over the application classes that is used to find
+ * the methods that can be reached from a set of entry classes (e.g., the
+ * generated ErrorTest classes). Calls are resolved by class hierarchy
+ * analysis: a virtual call reaches the resolved method and all overriding
+ * methods in application subtypes. Since library code can call back into
+ * the application, all methods of an instantiated class that override a
+ * library method (e.g., toString or compareTo) are reachable as well. Static
+ * initializers are reachable if their class is used by reachable code.
+ *
+ * The result is an over-approximation as long as the application does not
+ * use reflection to call application methods.
+ *
+ * The collected class hierarchy is also used by the MethodFilter to resolve
+ * the method a call site refers to and to find the methods it overrides or
+ * is overridden by (see resolveDeclaringClass, findOverriddenClasses, and
+ * findOverridingClasses).
+ *
+ * @author schaef
+ *
+ */
+public class ReachabilityAnalysis {
+
+	private static final String clinitNameDesc = "<clinit>()V";
+
+	private final ClassLoader loader;
+	private final Map<String, ClassInfo> classes = new HashMap<String, ClassInfo>();
+	private Map<String, Set<String>> directSubtypes = null;
+
+	private final Set<String> reachable = new HashSet<String>();
+	private final Set<String> initialized = new HashSet<String>();
+	private final Set<String> instantiated = new HashSet<String>();
+	private final LinkedList<String> worklist = new LinkedList<String>();
+
+	/**
+	 * @param loader
+	 *            used to look up the methods of library super types.
+	 */
+	public ReachabilityAnalysis(ClassLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Adds an application class to the call graph. Can be called from
+	 * several threads.
+	 *
+	 * @param classBytes
+	 */
+	public void addClass(byte[] classBytes) {
+		ClassInfo ci = new ClassInfo();
+		new ClassReader(classBytes).accept(new ClassCollector(ci), ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		synchronized (classes) {
+			classes.put(ci.name, ci);
+		}
+	}
+
+	/**
+	 * Computes the set of reachable methods starting from all methods of the
+	 * classes whose name (with '.' as separator) matches 'entryClasses'.
+	 * Methods that are excluded by a pattern of 'patternFilter' are called
+	 * through a wrapper and not instrumented, so we do not follow their
+	 * calls.
+	 *
+	 * @param entryClasses
+	 * @param patternFilter
+	 * @return the set of reachable methods as owner.name+desc.
+	 */
+	public synchronized Set<String> computeReachableMethods(Pattern entryClasses, MethodFilter patternFilter) {
+		buildSubtypes();
+		for (ClassInfo ci : classes.values()) {
+			if (entryClasses.matcher(ci.name.replace('/', '.')).matches()) {
+				initialize(ci.name);
+				for (String nameDesc : ci.methods.keySet()) {
+					markReachable(ci.name, nameDesc);
+				}
+			}
+		}
+		while (!worklist.isEmpty()) {
+			final String key = worklist.removeFirst();
+			final int pos = key.indexOf('.');
+			final ClassInfo ci = classes.get(key.substring(0, pos));
+			final MethodInfo mi = ci.methods.get(key.substring(pos + 1));
+			initialize(ci.name);
+			if (patternFilter.isExcludedByPattern(ci.name, mi.name, mi.desc)) {
+				continue;
+			}
+			for (MethodRef call : mi.calls) {
+				resolveCall(call);
+			}
+			for (String type : mi.instantiatedTypes) {
+				instantiate(type);
+			}
+			for (String type : mi.usedTypes) {
+				initialize(type);
+			}
+		}
+		return reachable;
+	}
+
+	/**
+	 * Returns the application class that declares the method 'nameDesc'
+	 * that a call to 'owner.nameDesc' resolves to, or null if it is not
+	 * declared in the application (e.g., because it is inherited from a
+	 * library class). Can be called from several threads once all classes
+	 * are added.
+	 *
+	 * @param owner
+	 * @param nameDesc
+	 * @return the declaring application class or null.
+	 */
+	public synchronized String resolveDeclaringClass(String owner, String nameDesc) {
+		return resolve(owner, nameDesc);
+	}
+
+	/**
+	 * Returns the application classes below 'owner' (not including 'owner')
+	 * that declare an instance method 'nameDesc', i.e., the classes whose
+	 * method a virtual call to 'owner.nameDesc' can dispatch to. Can be
+	 * called from several threads once all classes are added.
+	 *
+	 * @param owner
+	 * @param nameDesc
+	 * @return the overriding classes.
+	 */
+	public synchronized Set<String> findOverridingClasses(String owner, String nameDesc) {
+		buildSubtypes();
+		Set<String> result = new HashSet<String>();
+		LinkedList<String> todo = new LinkedList<String>();
+		Set<String> done = new HashSet<String>();
+		if (directSubtypes.containsKey(owner)) {
+			todo.addAll(directSubtypes.get(owner));
+		}
+		while (!todo.isEmpty()) {
+			final String type = todo.removeFirst();
+			if (!done.add(type)) {
+				continue;
+			}
+			ClassInfo ci = classes.get(type);
+			if (ci != null && ci.methods.containsKey(nameDesc)
+					&& (ci.methods.get(nameDesc).access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) == 0) {
+				result.add(type);
+			}
+			if (directSubtypes.containsKey(type)) {
+				todo.addAll(directSubtypes.get(type));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the application classes and interfaces above 'owner' (not
+	 * including 'owner') that declare an instance method 'nameDesc', i.e.,
+	 * the classes whose method 'owner.nameDesc' overrides. Can be called
+	 * from several threads once all classes are added.
+	 *
+	 * @param owner
+	 * @param nameDesc
+	 * @return the overridden classes.
+	 */
+	public synchronized Set<String> findOverriddenClasses(String owner, String nameDesc) {
+		Set<String> result = new HashSet<String>();
+		LinkedList<String> todo = new LinkedList<String>();
+		Set<String> done = new HashSet<String>();
+		todo.add(owner);
+		while (!todo.isEmpty()) {
+			final String type = todo.removeFirst();
+			ClassInfo ci = classes.get(type);
+			if (!done.add(type) || ci == null) {
+				continue;
+			}
+			if (!type.equals(owner) && ci.methods.containsKey(nameDesc)
+					&& (ci.methods.get(nameDesc).access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) == 0) {
+				result.add(type);
+			}
+			if (ci.superName != null) {
+				todo.add(ci.superName);
+			}
+			for (String itf : ci.interfaces) {
+				todo.add(itf);
+			}
+		}
+		return result;
+	}
+
+	private void buildSubtypes() {
+		if (directSubtypes != null) {
+			return;
+		}
+		directSubtypes = new HashMap<String, Set<String>>();
+		for (ClassInfo ci : classes.values()) {
+			if (ci.superName != null) {
+				addSubtype(ci.superName, ci.name);
+			}
+			for (String itf : ci.interfaces) {
+				addSubtype(itf, ci.name);
+			}
+		}
+	}
+
+	private void addSubtype(String superType, String subType) {
+		if (!directSubtypes.containsKey(superType)) {
+			directSubtypes.put(superType, new HashSet<String>());
+		}
+		directSubtypes.get(superType).add(subType);
+	}
+
+	private void markReachable(String owner, String nameDesc) {
+		if (reachable.add(owner + "." + nameDesc)) {
+			worklist.add(owner + "." + nameDesc);
+		}
+	}
+
+	private void resolveCall(MethodRef call) {
+		if (!classes.containsKey(call.owner)) {
+			// calls to library methods are only interesting if the library
+			// calls back, which is handled by instantiate.
+			return;
+		}
+		if (call.opcode == Opcodes.INVOKESTATIC) {
+			initialize(call.owner);
+		}
+		final String nameDesc = call.name + call.desc;
+		final String declaringClass = resolve(call.owner, nameDesc);
+		if (declaringClass != null) {
+			markReachable(declaringClass, nameDesc);
+		}
+		if (call.opcode == Opcodes.INVOKEVIRTUAL || call.opcode == Opcodes.INVOKEINTERFACE) {
+			// every override in a subtype can be the target.
+			LinkedList<String> todo = new LinkedList<String>();
+			Set<String> done = new HashSet<String>();
+			todo.add(call.owner);
+			while (!todo.isEmpty()) {
+				final String type = todo.removeFirst();
+				if (!done.add(type)) {
+					continue;
+				}
+				ClassInfo ci = classes.get(type);
+				if (ci != null && ci.methods.containsKey(nameDesc)) {
+					markReachable(type, nameDesc);
+				}
+				if (directSubtypes.containsKey(type)) {
+					todo.addAll(directSubtypes.get(type));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the application class that declares the method 'nameDesc' that
+	 * is found when looking it up from 'owner', or null if it is not
+	 * declared in the application.
+	 */
+	private String resolve(String owner, String nameDesc) {
+		for (String type = owner; type != null && classes.containsKey(type); type = classes.get(type).superName) {
+			if (classes.get(type).methods.containsKey(nameDesc)) {
+				return type;
+			}
+		}
+		// default methods of application interfaces.
+		LinkedList<String> todo = new LinkedList<String>();
+		todo.add(owner);
+		Set<String> done = new HashSet<String>();
+		while (!todo.isEmpty()) {
+			ClassInfo ci = classes.get(todo.removeFirst());
+			if (ci == null || !done.add(ci.name)) {
+				continue;
+			}
+			if ((ci.access & Opcodes.ACC_INTERFACE) != 0 && ci.methods.containsKey(nameDesc)) {
+				return ci.name;
+			}
+			if (ci.superName != null) {
+				todo.add(ci.superName);
+			}
+			for (String itf : ci.interfaces) {
+				todo.add(itf);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Marks the static initializers of 'type' and its super classes.
+	 */
+	private void initialize(String type) {
+		while (type != null && classes.containsKey(type) && initialized.add(type)) {
+			ClassInfo ci = classes.get(type);
+			if (ci.methods.containsKey(clinitNameDesc)) {
+				markReachable(type, clinitNameDesc);
+			}
+			type = ci.superName;
+		}
+	}
+
+	/**
+	 * Marks all methods of 'type' (and inherited from its application super
+	 * classes) that override a library method, because the library might
+	 * call them on an instance of 'type'.
+	 */
+	private void instantiate(String type) {
+		if (!classes.containsKey(type) || !instantiated.add(type)) {
+			return;
+		}
+		initialize(type);
+		final Set<String> libraryMethods = collectLibraryMethods(type);
+		for (String t = type; t != null && classes.containsKey(t); t = classes.get(t).superName) {
+			for (Map.Entry<String, MethodInfo> entry : classes.get(t).methods.entrySet()) {
+				final int access = entry.getValue().access;
+				if ((access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) != 0 || entry.getKey().startsWith("<")) {
+					continue;
+				}
+				if (libraryMethods == null || libraryMethods.contains(entry.getKey())) {
+					markReachable(t, entry.getKey());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the name+desc of all methods that 'type' inherits from library
+	 * classes and interfaces, or null if a library type cannot be loaded.
+	 */
+	private Set<String> collectLibraryMethods(String type) {
+		Set<String> libraryTypes = new HashSet<String>();
+		LinkedList<String> todo = new LinkedList<String>();
+		Set<String> done = new HashSet<String>();
+		todo.add(type);
+		while (!todo.isEmpty()) {
+			final String t = todo.removeFirst();
+			if (!done.add(t)) {
+				continue;
+			}
+			ClassInfo ci = classes.get(t);
+			if (ci == null) {
+				libraryTypes.add(t);
+				continue;
+			}
+			if (ci.superName != null) {
+				todo.add(ci.superName);
+			}
+			for (String itf : ci.interfaces) {
+				todo.add(itf);
+			}
+		}
+		Set<String> result = new HashSet<String>();
+		for (String libraryType : libraryTypes) {
+			try {
+				collectMethods(Class.forName(libraryType.replace('/', '.'), false, loader), result);
+			} catch (ClassNotFoundException | LinkageError e) {
+				return null;
+			}
+		}
+		return result;
+	}
+
+	private void collectMethods(Class<?> c, Set<String> result) {
+		for (Class<?> cur = c; cur != null; cur = cur.getSuperclass()) {
+			for (Method m : cur.getDeclaredMethods()) {
+				if (!Modifier.isStatic(m.getModifiers()) && !Modifier.isPrivate(m.getModifiers())) {
+					result.add(m.getName() + Type.getMethodDescriptor(m));
+				}
+			}
+			for (Class<?> itf : cur.getInterfaces()) {
+				collectMethods(itf, result);
+			}
+		}
+	}
+
+	private static final class ClassInfo {
+		String name, superName;
+		String[] interfaces;
+		int access;
+		final Map<String, MethodInfo> methods = new HashMap<String, MethodInfo>();
+	}
+
+	private static final class MethodInfo {
+		String name, desc;
+		int access;
+		final List<MethodRef> calls = new LinkedList<MethodRef>();
+		final Set<String> instantiatedTypes = new HashSet<String>();
+		final Set<String> usedTypes = new HashSet<String>();
+	}
+
+	private static final class MethodRef {
+		final int opcode;
+		final String owner, name, desc;
+
+		MethodRef(int opcode, String owner, String name, String desc) {
+			this.opcode = opcode;
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+		}
+	}
+
+	private static final class ClassCollector extends ClassVisitor {
+		private final ClassInfo ci;
+
+		ClassCollector(ClassInfo ci) {
+			super(Opcodes.ASM5);
+			this.ci = ci;
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName,
+				String[] interfaces) {
+			ci.name = name;
+			ci.superName = superName;
+			ci.interfaces = interfaces == null ? new String[0] : interfaces;
+			ci.access = access;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+				String[] exceptions) {
+			final MethodInfo mi = new MethodInfo();
+			mi.name = name;
+			mi.desc = desc;
+			mi.access = access;
+			ci.methods.put(name + desc, mi);
+			return new MethodVisitor(Opcodes.ASM5) {
+				@Override
+				public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+					mi.calls.add(new MethodRef(opcode, owner, name, desc));
+					if ("<init>".equals(name)) {
+						mi.instantiatedTypes.add(owner);
+					}
+				}
+
+				@Override
+				public void visitTypeInsn(int opcode, String type) {
+					if (opcode == Opcodes.NEW) {
+						mi.instantiatedTypes.add(type);
+					}
+				}
+
+				@Override
+				public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+					if (opcode == Opcodes.GETSTATIC || opcode == Opcodes.PUTSTATIC) {
+						mi.usedTypes.add(owner);
+					}
+				}
+
+				@Override
+				public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+					for (Object arg : bsmArgs) {
+						visitConstant(arg);
+					}
+				}
+
+				@Override
+				public void visitLdcInsn(Object cst) {
+					visitConstant(cst);
+				}
+
+				private void visitConstant(Object cst) {
+					if (!(cst instanceof Handle)) {
+						return;
+					}
+					Handle h = (Handle) cst;
+					switch (h.getTag()) {
+					case Opcodes.H_INVOKESTATIC:
+						mi.calls.add(new MethodRef(Opcodes.INVOKESTATIC, h.getOwner(), h.getName(), h.getDesc()));
+						break;
+					case Opcodes.H_INVOKEVIRTUAL:
+					case Opcodes.H_INVOKEINTERFACE:
+						mi.calls.add(new MethodRef(Opcodes.INVOKEVIRTUAL, h.getOwner(), h.getName(), h.getDesc()));
+						break;
+					case Opcodes.H_NEWINVOKESPECIAL:
+						mi.instantiatedTypes.add(h.getOwner());
+						mi.calls.add(new MethodRef(Opcodes.INVOKESPECIAL, h.getOwner(), h.getName(), h.getDesc()));
+						break;
+					case Opcodes.H_INVOKESPECIAL:
+						mi.calls.add(new MethodRef(Opcodes.INVOKESPECIAL, h.getOwner(), h.getName(), h.getDesc()));
+						break;
+					default:
+						// field handles.
+						mi.usedTypes.add(h.getOwner());
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package bc_instrumenter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Assigns the PcRecorder method ids of one class while it is instrumented.
+ * Each method that reports events (pc methods, instrumented methods, and
+ * wrappers) gets a fixed index into the table of its class. When the class
+ * is initialized, it registers the table with PcRecorder.register and keeps
+ * the returned first id in the static final field baseFieldName. An event
+ * then only pushes baseFieldName + index and calls PcRecorder, so nothing
+ * has to be looked up while the program runs.
+ *
+ * The table is generated at the end of the class (see generate) because the
+ * class initializer can be visited before the other methods. Classes are
+ * instrumented on several workers, so each ClassRewriter has its own
+ * instance.
+ *
+ * @author schaef
+ *
+ */
+public class RecorderIds implements Opcodes {
+
+	public static final String baseFieldName = "dynslicer__RECORDER_BASE";
+	public static final String registerMethodName = "dynslicer__registerRecorderIds";
+
+	private final String className;
+	private final boolean isInterface;
+	private final List<String> names = new ArrayList<String>();
+	private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+	/**
+	 * @param className
+	 *            the class in internal form.
+	 * @param isInterface
+	 */
+	public RecorderIds(String className, boolean isInterface) {
+		this.className = className;
+		this.isInterface = isInterface;
+	}
+
+	/**
+	 * Pushes the id of the method with ppt name 'pptName' (see
+	 * Main.composePptName) onto the stack of 'mv'.
+	 *
+	 * @param mv
+	 * @param pptName
+	 */
+	public void pushId(MethodVisitor mv, String pptName) {
+		Integer index = indexes.get(pptName);
+		if (index == null) {
+			index = names.size();
+			names.add(pptName);
+			indexes.put(pptName, index);
+		}
+		mv.visitFieldInsn(GETSTATIC, className, baseFieldName, "I");
+		mv.visitLdcInsn(index);
+		mv.visitInsn(IADD);
+	}
+
+	/**
+	 * Emits the code that registers the table and sets baseFieldName. Must
+	 * be the first code of the class initializer.
+	 *
+	 * @param mv
+	 */
+	public void emitInit(MethodVisitor mv) {
+		mv.visitMethodInsn(INVOKESTATIC, className, registerMethodName, "()I", isInterface);
+		mv.visitFieldInsn(PUTSTATIC, className, baseFieldName, "I");
+	}
+
+	/**
+	 * Adds baseFieldName and the method that registers the table to 'cv'.
+	 * If the class has no initializer yet, 'needsClinit' must be true and
+	 * one is added.
+	 *
+	 * @param cv
+	 * @param needsClinit
+	 */
+	public void generate(ClassVisitor cv, boolean needsClinit) {
+		// fields of interfaces have to be public.
+		final int access = (isInterface ? ACC_PUBLIC : ACC_PRIVATE) | ACC_STATIC | ACC_SYNTHETIC;
+		cv.visitField(access | ACC_FINAL, baseFieldName, "I", null, null).visitEnd();
+
+		MethodVisitor mv = cv.visitMethod(access, registerMethodName, "()I", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn(names.size());
+		mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+		for (int i = 0; i < names.size(); i++) {
+			mv.visitInsn(DUP);
+			mv.visitLdcInsn(i);
+			mv.visitLdcInsn(names.get(i));
+			mv.visitInsn(AASTORE);
+		}
+		mv.visitMethodInsn(INVOKESTATIC, PcRecorder.internalName, "register", "([Ljava/lang/String;)I", false);
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(4, 0);
+		mv.visitEnd();
+
+		if (needsClinit) {
+			mv = cv.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+			mv.visitCode();
+			emitInit(mv);
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(1, 0);
+			mv.visitEnd();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package bc_instrumenter;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Collects the wrappers of library calls in a few generated support classes
+ * (see Options.sharedWrappers) instead of adding a private copy of each
+ * wrapper to every application class that makes the call. The wrappers are
+ * sharded over numShards classes by their signature so that no class gets
+ * too large. Only calls to public methods of public library classes can be
+ * moved out of the calling class; all other calls still get a private
+ * wrapper in the caller.
+ *
+ * The support classes are generated once all application classes are
+ * instrumented (see generateClasses).
+ *
+ * @author schaef
+ *
+ */
+public class SharedWrappers {
+
+	// Keep in sync with util.TraceExtractor.sharedWrapperPackage
+	public static final String packageName = "dynslicer_wrappers";
+	public static final String classPrefix = packageName + "/LibraryWrappers";
+	public static final int numShards = 8;
+
+	private final ClassLoader loader;
+
+	/**
+	 * The wrappers by signature of the wrapped call. Written concurrently by
+	 * the workers.
+	 */
+	private final Map<String, WrapperSpec> wrappers = new ConcurrentHashMap<String, WrapperSpec>();
+	private final Map<String, Boolean> accessibleOwners = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * @param loader
+	 *            used to check if a library method is accessible from the
+	 *            support classes.
+	 */
+	public SharedWrappers(ClassLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Returns the class that contains the shared wrapper for the call to
+	 * 'owner.name+desc' or null if the call cannot be wrapped outside of the
+	 * calling class. The name of the wrapper is
+	 * ClassRewriter.composeWrapperName(owner, name, desc, wrapperDesc).
+	 *
+	 * @return the internal name of the support class or null.
+	 */
+	public String lookup(int opcode, String owner, String name, String desc, boolean itf, String wrapperDesc) {
+		final String signature = owner + "." + name + desc;
+		WrapperSpec spec = wrappers.get(signature);
+		if (spec == null) {
+			if (opcode == Opcodes.INVOKESPECIAL || !isPublicLibraryMethod(owner, name, desc)) {
+				return null;
+			}
+			final String wrapperClass = classPrefix + ((signature.hashCode() & 0x7fffffff) % numShards);
+			spec = new WrapperSpec(wrapperClass, opcode, owner, name, desc, itf, wrapperDesc);
+			wrappers.put(signature, spec);
+		}
+		return spec.wrapperClass;
+	}
+
+	public int size() {
+		return wrappers.size();
+	}
+
+	/**
+	 * Generates the support classes for all wrappers that have been looked
+	 * up. The wrappers are sorted by signature so the result does not depend
+	 * on the order in which the classes were instrumented.
+	 *
+	 * @return the class files by internal class name.
+	 */
+	public Map<String, byte[]> generateClasses() {
+		SortedMap<String, WrapperSpec> sorted = new TreeMap<String, WrapperSpec>(wrappers);
+		Map<String, ClassWriter> writers = new TreeMap<String, ClassWriter>();
+		Map<String, RecorderIds> recorderIds = new HashMap<String, RecorderIds>();
+		for (WrapperSpec spec : sorted.values()) {
+			ClassWriter cw = writers.get(spec.wrapperClass);
+			if (cw == null) {
+				cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+				cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, spec.wrapperClass,
+						null, "java/lang/Object", null);
+				MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PRIVATE, "<init>", "()V", null, null);
+				mv.visitVarInsn(Opcodes.ALOAD, 0);
+				mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+				mv.visitInsn(Opcodes.RETURN);
+				mv.visitMaxs(1, 1);
+				mv.visitEnd();
+				writers.put(spec.wrapperClass, cw);
+				if (Options.v().useRecorder()) {
+					recorderIds.put(spec.wrapperClass, new RecorderIds(spec.wrapperClass, false));
+				}
+			}
+			Main.ClassRewriter.createWrapperMethod(cw, Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, spec.wrapperClass, false,
+					Main.ClassRewriter.composeWrapperName(spec.owner, spec.name, spec.desc, spec.wrapperDesc),
+					spec.opcode, spec.owner, spec.name, spec.desc, spec.itf, spec.wrapperDesc,
+					recorderIds.get(spec.wrapperClass));
+		}
+		Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+		for (Map.Entry<String, ClassWriter> entry : writers.entrySet()) {
+			if (recorderIds.containsKey(entry.getKey())) {
+				recorderIds.get(entry.getKey()).generate(entry.getValue(), true);
+			}
+			entry.getValue().visitEnd();
+			result.put(entry.getKey(), entry.getValue().toByteArray());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if 'owner' is a public library class and the method
+	 * 'name+desc' it resolves to is public.
+	 */
+	private boolean isPublicLibraryMethod(String owner, String name, String desc) {
+		if (owner.startsWith("[") || Main.applicationClassNames.contains(owner)) {
+			return false;
+		}
+		try {
+			Class<?> c = Class.forName(owner.replace('/', '.'), false, loader);
+			if (!isAccessibleClass(owner, c)) {
+				return false;
+			}
+			Method m = findMethod(c, name, desc);
+			return m != null && Modifier.isPublic(m.getModifiers());
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	private boolean isAccessibleClass(String owner, Class<?> c) {
+		Boolean accessible = accessibleOwners.get(owner);
+		if (accessible == null) {
+			accessible = Boolean.TRUE;
+			for (Class<?> cur = c; cur != null; cur = cur.getDeclaringClass()) {
+				if (!Modifier.isPublic(cur.getModifiers())) {
+					accessible = Boolean.FALSE;
+				}
+			}
+			accessibleOwners.put(owner, accessible);
+		}
+		return accessible.booleanValue();
+	}
+
+	private Method findMethod(Class<?> c, String name, String desc) {
+		for (Method m : c.getDeclaredMethods()) {
+			if (m.getName().equals(name) && Type.getMethodDescriptor(m).equals(desc)) {
+				return m;
+			}
+		}
+		Method result = null;
+		if (c.getSuperclass() != null) {
+			result = findMethod(c.getSuperclass(), name, desc);
+		}
+		for (Class<?> itf : c.getInterfaces()) {
+			if (result != null) {
+				break;
+			}
+			result = findMethod(itf, name, desc);
+		}
+		return result;
+	}
+
+	private static final class WrapperSpec {
+		final String wrapperClass;
+		final int opcode;
+		final String owner, name, desc, wrapperDesc;
+		final boolean itf;
+
+		WrapperSpec(String wrapperClass, int opcode, String owner, String name, String desc, boolean itf,
+				String wrapperDesc) {
+			this.wrapperClass = wrapperClass;
+			this.opcode = opcode;
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+			this.itf = itf;
+			this.wrapperDesc = wrapperDesc;
+		}
+	}
+}
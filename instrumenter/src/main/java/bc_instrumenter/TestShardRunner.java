@@ -0,0 +1,80 @@
+package bc_instrumenter;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces the ErrorTestDriver generated by Randoop when the tests are
+ * traced by several Chicory processes in parallel (see
+ * util.DaikonRunner.runSharded). Each process runs one shard, i.e., every
+ * numShards-th test method of the given ErrorTest classes, starting at the
+ * shard index. Like the ErrorTestDriver, it creates a fresh instance of the
+ * test class for each test and keeps going when a test fails.
+ *
+ * This class is not an application class, so it is neither instrumented nor
+ * traced by Chicory.
+ *
+ * Usage: TestShardRunner shardIndex numShards ErrorTest0 ErrorTest1 ...
+ *
+ * @author schaef
+ *
+ */
+public class TestShardRunner {
+
+	private static final Pattern testMethodPattern = Pattern.compile("test\\d+");
+
+	public static void main(String[] args) throws ClassNotFoundException {
+		if (args.length < 3) {
+			System.err.println("use with shard index, number of shards, and the test classes as arguments.");
+			return;
+		}
+		final int shard = Integer.parseInt(args[0]);
+		final int numShards = Integer.parseInt(args[1]);
+		final List<Method> tests = new ArrayList<Method>();
+		for (int i = 2; i < args.length; i++) {
+			tests.addAll(getTestMethods(Class.forName(args[i])));
+		}
+		int errors = 0;
+		for (int i = shard; i < tests.size(); i += numShards) {
+			final Method test = tests.get(i);
+			try {
+				test.invoke(test.getDeclaringClass().getDeclaredConstructor().newInstance());
+			} catch (InvocationTargetException e) {
+				errors++;
+			} catch (InstantiationException | IllegalAccessException | NoSuchMethodException e) {
+				throw new RuntimeException("Cannot run " + test, e);
+			}
+		}
+		System.out.println("Shard " + shard + " of " + numShards + ": " + errors + " failing tests");
+	}
+
+	/**
+	 * Returns the test methods of 'testClass' in the order of their number.
+	 */
+	private static List<Method> getTestMethods(Class<?> testClass) {
+		List<Method> result = new ArrayList<Method>();
+		for (Method m : testClass.getMethods()) {
+			if (testMethodPattern.matcher(m.getName()).matches() && m.getParameterTypes().length == 0
+					&& !Modifier.isStatic(m.getModifiers())) {
+				result.add(m);
+			}
+		}
+		Collections.sort(result, new Comparator<Method>() {
+			@Override
+			public int compare(Method a, Method b) {
+				// test9 comes before test10.
+				if (a.getName().length() != b.getName().length()) {
+					return a.getName().length() - b.getName().length();
+				}
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return result;
+	}
+}
@@ -8,6 +8,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.regex.Pattern;
 
 import org.joogie.GlobalsCache;
 import org.joogie.report.Report;
@@ -81,8 +82,13 @@ public class GroupTraces {
 		System.err.println("Step 7");
 		List<LocalizedTrace> locTraces = new LinkedList<LocalizedTrace>(pa.localizedTraces);
 		
-		System.err.println("Failed slice attempts: " +  TraceExtractor.slicerErrors);
+		System.err.println("Failed slice attempts: " +  sootSlicer.getSlicerErrors());
 		System.err.println("Total number of traces: " +  traceCtr);
+		int testCtr = 0;
+		for (String methodName : sootSlicer.getTraceMethodNames()) {
+			testCtr += sootSlicer.getTestNames(methodName).size();
+		}
+		System.err.println("Total number of tests with a trace: " + testCtr);
 		System.err.println("Total number of localized traces: " + locTraces.size() );
 		Map<String, List<LocalizedTrace>> map = new HashMap<String, List<LocalizedTrace>>();
 		int satTraces = 0;
@@ -100,7 +106,13 @@ public class GroupTraces {
 		System.err.println("Number of traces that could be put in buckets: " + (locTraces.size()-satTraces) );
 		System.err.println("Number of buckets: " +  map.size());
 		for (Entry<String, List<LocalizedTrace>> entry : map.entrySet()) {
-			System.err.println("\tBucket of size: " + entry.getValue().size());
+			// each trace method stands for all tests with the same trace.
+			List<String> testNames = new LinkedList<String>();
+			for (LocalizedTrace tr : entry.getValue()) {
+				testNames.addAll(getTestNames(tr.getMethodName()));
+			}
+			System.err.println("\tBucket of size: " + testNames.size() + " (" + entry.getValue().size()
+					+ " distinct traces)");
 			if (!entry.getValue().isEmpty()) {
 				System.err.println("\tSignature:");
 				for (String s : entry.getValue().iterator().next().getRelevantStatements()) {
@@ -108,15 +120,57 @@ public class GroupTraces {
 				}
 			}
 			StringBuilder sb = new StringBuilder();
-			for (LocalizedTrace tr : entry.getValue()) {
-				sb.append(tr.getMethodName());
+			for (String testName : testNames) {
+				sb.append(testName);
 				sb.append(", ");
 			}
 			System.err.println("\t"+sb.toString());
 		}
 	}
+
+	/**
+	 * Returns the tests that produced the trace of the procedure
+	 * 'procedureName'. The procedure name is the name of the trace method,
+	 * possibly decorated by the Boogie translation. If the trace method
+	 * cannot be found, the procedure name is returned.
+	 * 
+	 * @param procedureName
+	 * @return the names of the tests.
+	 */
+	private List<String> getTestNames(String procedureName) {
+		List<String> testNames = sootSlicer.getTestNames(procedureName);
+		if (testNames == null) {
+			for (String methodName : sootSlicer.getTraceMethodNames()) {
+				if (Pattern.compile("(^|\\W)" + Pattern.quote(methodName) + "(\\W|$)").matcher(procedureName).find()) {
+					testNames = sootSlicer.getTestNames(methodName);
+					break;
+				}
+			}
+		}
+		if (testNames == null) {
+			testNames = new LinkedList<String>();
+			testNames.add(procedureName);
+		}
+		return testNames;
+	}
 	
 	
+	/**
+	 * Propagates copies and constants in the trace method 'sm' and replaces
+	 * its fields by locals, like groupStuff does before it slices a trace
+	 * method from its last assertion.
+	 * 
+	 * @param sm
+	 * @param ss
+	 *            the TraceExtractor that created 'sm'.
+	 */
+	public void simplifyTraceMethod(SootMethod sm, TraceExtractor ss) {
+		sootSlicer = ss;
+		CopyPropagator.v().transform(sm.getActiveBody());
+		ConstantPropagatorAndFolder.v().transform(sm.getActiveBody());
+		replaceFieldsByLocals(sm);
+	}
+
 	/**
 	 * Note that this only makes sense under the assumption that
 	 * this procedure only contains a single trace and that local propagation 
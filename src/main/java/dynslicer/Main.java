@@ -7,22 +7,29 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.objectweb.asm.ClassReader;
 
+import com.google.common.base.Verify;
+
 import soot.SootClass;
 import util.DaikonRunner;
 import util.DaikonRunner.DaikonTrace;
 import util.InstrumentationRunner;
 import util.RandoopRunner;
 import util.TraceExtractor;
+import util.TraceStore;
 import util.Util;
 
 public class Main {
@@ -38,9 +45,16 @@ public class Main {
 		}
 		String classPath = args[0];
 		final File classDir = new File(args[1]);
-		final File transformedClassDirectory = new File("./PlayItSafeFolderName/");		
-		if (transformedClassDirectory.exists()) {
-			FileUtils.deleteDirectory(transformedClassDirectory);
+		// if the classes come in a jar, the instrumented classes are written
+		// to a jar as well.
+		final File transformedClassDirectory = isJarFile(classDir) ? new File("./PlayItSafeFolderName.jar")
+				: new File("./PlayItSafeFolderName/");
+		if (Options.v().replayTraceStore()) {
+			// the traces refer to the instrumented classes of the last run.
+			Verify.verify(transformedClassDirectory.exists(), "Nothing to replay: "
+					+ transformedClassDirectory.getAbsolutePath() + " does not exist.");
+		} else if (transformedClassDirectory.exists()) {
+			FileUtils.forceDelete(transformedClassDirectory);
 		}
 		
 		if (args.length >= 4) {
@@ -61,27 +75,71 @@ public class Main {
 
 
 
-		Set<DaikonTrace> traces = createDTraceFile(classDir, classPath, transformedClassDirectory, timeLimit, testLimit);
-		System.out.println("Completed: Running Daikon on transformed classes");
-		System.err.println("Number of Traces " + traces.size());
-		
-		// compute the slices and run the fault localization:
-		
-		System.out.println("Computing the slices");
 		TraceExtractor ss = new TraceExtractor();
 		final String transformedClassPath = classPath + File.pathSeparator + junit_jar+File.pathSeparator+transformedClassDirectory;
-		SootClass traceClass = ss.computeErrorSlices(transformedClassDirectory, transformedClassPath, traces);
-		System.out.println("Completed: Computing the slices");
+		final SootClass traceClass;
+		if (Options.v().streamTraces()) {
+			// compute the slices while the traces are parsed.
+			TraceExtractor.StreamingSlicer slicer = ss.new StreamingSlicer(transformedClassDirectory, transformedClassPath);
+			traceTests(classDir, classPath, transformedClassDirectory, timeLimit, testLimit, slicer);
+			System.out.println("Completed: Running Daikon and computing the slices");
+			System.err.println("Number of Traces " + slicer.getNumTraces());
+			traceClass = slicer.getTraceClass();
+		} else {
+			DaikonRunner.TraceCollector collector = new DaikonRunner.TraceCollector();
+			traceTests(classDir, classPath, transformedClassDirectory, timeLimit, testLimit, collector);
+			Set<DaikonTrace> traces = collector.traces;
+			System.out.println("Completed: Running Daikon on transformed classes");
+			System.err.println("Number of Traces " + traces.size());
+			
+			// compute the slices and run the fault localization:
+			
+			System.out.println("Computing the slices");
+			traceClass = ss.computeErrorSlices(transformedClassDirectory, transformedClassPath, traces);
+			System.out.println("Completed: Computing the slices");
+		}
 		
+		System.err.println("Number of distinct Traces " + ss.getNumDistinctTraces());
+		if (Options.v().debugOutput()) {
+			System.err.println("Method resolution: " + ss.getResolutionStats());
+		}
+
 		System.out.println("Run the fault localization.");
 		GroupTraces gt = new GroupTraces();
 		gt.groupStuff(traceClass, ss);
 	}
 	
-	private static Set<DaikonTrace> createDTraceFile(File classDir, String classPath, File outputDirectory, int randoopTimeLimit, int randoopTestLimit) throws IOException {
+	/**
+	 * Hands the traces of the generated tests to 'consumer'. If a trace store
+	 * is set, the traces are written to the store as well, or, in replay
+	 * mode, read from the store instead of generating and running the tests
+	 * again.
+	 */
+	private static void traceTests(File classDir, String classPath, File outputDirectory, int randoopTimeLimit,
+			int randoopTestLimit, DaikonRunner.TraceConsumer consumer) throws IOException {
+		final File store = Options.v().getTraceStoreFile();
+		if (Options.v().replayTraceStore()) {
+			Verify.verifyNotNull(store, "Replay needs a trace store.");
+			System.out.println("Reading traces from " + store.getAbsolutePath());
+			try (TraceStore.Reader reader = new TraceStore.Reader(store)) {
+				reader.readAll(consumer);
+			}
+		} else if (store != null) {
+			try (TraceStore.Writer writer = new TraceStore.Writer(store, consumer)) {
+				createDTraceFile(classDir, classPath, outputDirectory, randoopTimeLimit, randoopTestLimit, writer);
+			}
+		} else {
+			createDTraceFile(classDir, classPath, outputDirectory, randoopTimeLimit, randoopTestLimit, consumer);
+		}
+	}
+
+	private static void createDTraceFile(File classDir, String classPath, File outputDirectory, int randoopTimeLimit, int randoopTestLimit, DaikonRunner.TraceConsumer consumer) throws IOException {
 		
 		final File testSrcDir = makeEmptryDirectory("_testSrc");
-		outputDirectory = makeEmptryDirectory(outputDirectory.getAbsolutePath());
+		final boolean jarInput = isJarFile(classDir);
+		if (!jarInput) {
+			outputDirectory = makeEmptryDirectory(outputDirectory.getAbsolutePath());
+		}
 		System.out.println("Run Randoop");
 		Set<String> classes = getClasses(classDir);
 		// run randoop
@@ -105,28 +163,76 @@ public class Main {
 //		final File tempDir = Files.createTempDir();
 		final File tempDir = new File("./testClasses/");
 		FileUtils.deleteDirectory(tempDir);
-		FileUtils.copyDirectory(classDir, tempDir);
+		if (jarInput) {
+			// the instrumenter reads the jar directly, so we only need a
+			// directory for the compiled tests.
+			FileUtils.forceMkdir(tempDir);
+		} else {
+			FileUtils.copyDirectory(classDir, tempDir);
+		}
 		//compile test cases:
 		final String classPathAndJUnit = classPath + File.pathSeparator + junit_jar;
 		Util.compileJavaFiles(testSrcDir, classPathAndJUnit+ File.pathSeparator + classDir.getAbsolutePath(), tempDir);		
 		System.out.println("Completed: Compile generated tests");
 		
-		System.out.println("Transforming class files");
+		DaikonRunner dr = new DaikonRunner();
+		List<String> cp = new LinkedList<String>();
+		cp.add(classPathAndJUnit);
+		cp.add(daikon_jar);
 		InstrumentationRunner ir = new InstrumentationRunner();
+		if (Options.v().useInstrumentationAgent() && !jarInput) {
+			// the agent instruments classes from tempDir when they are loaded
+			// and puts the instrumented version in outputDirectory.
+			System.out.println("Running Daikon with instrumentation agent");
+			cp.add(tempDir.getAbsolutePath());
+			final String daikonClassPath = StringUtils.join(cp, File.pathSeparator);
+			List<String> jvmOptions = new LinkedList<String>();
+			jvmOptions.add(ir.getAgentOption(tempDir, outputDirectory));
+			runDaikon(dr, daikonClassPath, testSrcDir, classes, jvmOptions, consumer);
+			return;
+		}
+
+		System.out.println("Transforming class files");
 		final String instrumentClassPath = classPathAndJUnit + File.pathSeparator + tempDir.getAbsolutePath();
-		ir.run(tempDir, outputDirectory, instrumentClassPath);
+		if (jarInput) {
+			List<File> inputs = new LinkedList<File>();
+			inputs.add(classDir);
+			inputs.add(tempDir);
+			ir.run(inputs, outputDirectory, instrumentClassPath);
+		} else {
+			ir.run(tempDir, outputDirectory, instrumentClassPath);
+		}
 		//now the instrumented classes and tests are in testDir and we can delete tempDir
 //		FileUtils.deleteDirectory(tempDir);
 		System.out.println("Transformation done.");
 
 		System.out.println("Running Daikon on transformed classes");
-		DaikonRunner dr = new DaikonRunner();
-		List<String> cp = new LinkedList<String>();
-		cp.add(classPathAndJUnit);
-		cp.add(daikon_jar);
 		cp.add(outputDirectory.getAbsolutePath());		
 		final String daikonClassPath = StringUtils.join(cp, File.pathSeparator);
-		return dr.run(daikonClassPath, "ErrorTestDriver", classes);
+		runDaikon(dr, daikonClassPath, testSrcDir, classes, Collections.<String> emptyList(), consumer);
+	}
+
+	private static void runDaikon(DaikonRunner dr, String daikonClassPath, File testSrcDir, Set<String> classes,
+			List<String> jvmOptions, DaikonRunner.TraceConsumer consumer) {
+		final int numShards = Options.v().getNumTraceShards();
+		if (numShards > 1) {
+			dr.runSharded(daikonClassPath, getErrorTestClasses(testSrcDir), classes, jvmOptions, numShards,
+					consumer);
+		} else {
+			dr.run(daikonClassPath, "ErrorTestDriver", classes, jvmOptions, consumer);
+		}
+	}
+
+	/**
+	 * Returns the names of the ErrorTest classes generated by Randoop, in
+	 * the order of their number.
+	 */
+	private static List<String> getErrorTestClasses(File testSrcDir) {
+		List<String> result = new LinkedList<String>();
+		for (int i = 0; new File(testSrcDir, "ErrorTest" + i + ".java").isFile(); i++) {
+			result.add("ErrorTest" + i);
+		}
+		return result;
 	}
 	
 
@@ -146,6 +252,19 @@ public class Main {
 
 	public static Set<String> getClasses(final File classDir) {
 		Set<String> classes = new HashSet<String>();
+		if (isJarFile(classDir)) {
+			try (JarFile jar = new JarFile(classDir);) {
+				for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+					final String name = e.nextElement().getName();
+					if (name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class")) {
+						classes.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
+			}
+			return classes;
+		}
 		for (Iterator<File> iter = FileUtils.iterateFiles(classDir, new String[] { "class" }, true); iter
 				.hasNext();) {
 			File classFile = iter.next();
@@ -159,6 +278,10 @@ public class Main {
 		return classes;
 	}
 
+	private static boolean isJarFile(final File file) {
+		return file.isFile() && file.getName().endsWith(".jar");
+	}
+
 	private static File makeEmptryDirectory(String directoryName) throws IOException {
 		final File dir = new File(directoryName);
 		if (dir.exists()) {
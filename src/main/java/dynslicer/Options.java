@@ -0,0 +1,314 @@
+/**
+ *
+ */
+package dynslicer;
+
+import java.io.File;
+
+/**
+ * Global options of DynSlicer. The defaults can be changed with system
+ * properties (e.g., -Ddynslicer.agent=true) or through the setters before
+ * Main.main is called.
+ *
+ * @author schaef
+ *
+ */
+public class Options {
+
+	private static Options instance;
+
+	public static Options v() {
+		if (instance == null) {
+			instance = new Options();
+		}
+		return instance;
+	}
+
+	public static void resetInstance() {
+		instance = null;
+	}
+
+	/**
+	 * If true, the application classes are instrumented by a java agent
+	 * while they are loaded by the traced JVM instead of writing an
+	 * instrumented copy of the class directory first.
+	 */
+	private boolean useInstrumentationAgent = Boolean.getBoolean("dynslicer.agent");
+
+	/**
+	 * If true, the instrumenter samples the program counter only once per
+	 * basic block and the TraceExtractor reconstructs the statements in
+	 * between from the block layout.
+	 */
+	private boolean useBlockSampling = Boolean.getBoolean("dynslicer.blocks");
+
+	/**
+	 * If true, pc events and method entries and exits are written by the
+	 * instrumented code to a binary trace file, and Chicory only samples the
+	 * values of the library wrappers.
+	 */
+	private boolean useRecorder = Boolean.getBoolean("dynslicer.recorder");
+
+	/**
+	 * Directory in which the instrumenter caches instrumented classes between
+	 * runs, or null to instrument all classes every time. The TraceExtractor
+	 * keeps the Jimple of the application classes in its jimple/
+	 * subdirectory (see util.JimpleCache).
+	 */
+	private File instrumentationCacheDir = System.getProperty("dynslicer.cache") == null ? null
+			: new File(System.getProperty("dynslicer.cache"));
+
+	/**
+	 * Patterns (matched with find against Daikon's ppt names) that select
+	 * the application methods that are instrumented. Calls to methods that
+	 * are not selected are treated like library calls. The generated tests
+	 * are always instrumented.
+	 */
+	private String instrumentationIncludePattern = System.getProperty("dynslicer.include");
+	private String instrumentationExcludePattern = System.getProperty("dynslicer.exclude");
+
+	/**
+	 * If true, only the methods that are statically reachable from the
+	 * generated tests are instrumented.
+	 */
+	private boolean instrumentReachableOnly = Boolean.getBoolean("dynslicer.reachable");
+
+	/**
+	 * If true, the wrappers of library calls are put into a few shared
+	 * support classes instead of each application class. Not supported by
+	 * the instrumentation agent.
+	 */
+	private boolean useSharedWrappers = Boolean.getBoolean("dynslicer.sharedWrappers");
+
+	/**
+	 * If true, each event is attributed to the thread that produced it and
+	 * every thread gets its own traces, so the traced program and the tests
+	 * may run concurrently. Implies useRecorder.
+	 */
+	private boolean useThreadAwareTracing = Boolean.getBoolean("dynslicer.threadAware");
+
+	/**
+	 * If true, each trace is sliced as soon as it has been parsed and is
+	 * dropped afterwards, instead of parsing all traces first. This bounds
+	 * the memory by the longest trace instead of the sum of all traces.
+	 */
+	private boolean streamTraces = Boolean.getBoolean("dynslicer.stream");
+
+	/**
+	 * Number of Chicory processes that trace the generated tests in
+	 * parallel. Each process runs a partition of the test methods. With a
+	 * single shard, Chicory runs the ErrorTestDriver.
+	 */
+	private int numTraceShards = Integer.getInteger("dynslicer.shards", 1);
+
+	/**
+	 * If not null, the parsed traces are written to this TraceStore, so that
+	 * a later run can replay them (see replayTraceStore).
+	 */
+	private File traceStoreFile = System.getProperty("dynslicer.traceStore") == null ? null
+			: new File(System.getProperty("dynslicer.traceStore"));
+
+	/**
+	 * If true, the traces are read from traceStoreFile and the instrumented
+	 * classes of the last run are reused, instead of generating, tracing,
+	 * and parsing the tests again.
+	 */
+	private boolean replayTraceStore = Boolean.getBoolean("dynslicer.replay");
+
+	/**
+	 * If true, Chicory only records the variables that the TraceExtractor
+	 * reads: the pc of the pc methods, and the arguments, the return value,
+	 * and the string value of strings of the wrappers. Fields of arguments
+	 * are not recorded, so side effects of library calls on them are not
+	 * detected.
+	 */
+	private boolean minimalTraceProfile = Boolean.getBoolean("dynslicer.minimalTrace");
+
+	/**
+	 * If true, each trace is sliced on the instrumented bytecode first (see
+	 * util.BytecodePreSlicer), and the TraceExtractor only copies the
+	 * statements of the pcs in that slice into the trace method.
+	 */
+	private boolean useBytecodePreSlice = Boolean.getBoolean("dynslicer.preSlice");
+
+	/**
+	 * If true, Chicory writes the uncompressed dtrace to a named pipe that
+	 * is parsed while the tests are still running, instead of writing a
+	 * dtrace.gz file that is parsed afterwards. Not used with the recorder,
+	 * which needs all wrapper samples before the pc trace can be read.
+	 */
+	private boolean pipeTraces = Boolean.getBoolean("dynslicer.pipe");
+
+	/**
+	 * Number of threads that extract the trace methods. With more than one
+	 * thread, the distinct traces are extracted on a fork-join pool.
+	 */
+	private int numSliceThreads = Integer.getInteger("dynslicer.sliceThreads", 1);
+
+	/**
+	 * If true, the TraceExtractor only loads the classes that show up on
+	 * the traces with bodies. The other application classes are only
+	 * loaded with their signatures. Not used when the traces are streamed,
+	 * because then the traces are not known when the scene is loaded.
+	 */
+	private boolean lazySceneLoading = Boolean.getBoolean("dynslicer.lazyScene");
+
+	/**
+	 * If true, the TraceExtractor prints the events of each trace, the body
+	 * of each trace method, and the variables that library calls change,
+	 * and Main prints how often method resolution hit its caches.
+	 */
+	private boolean debugOutput = Boolean.getBoolean("dynslicer.debug");
+
+	public boolean useInstrumentationAgent() {
+		return useInstrumentationAgent;
+	}
+
+	public void setUseInstrumentationAgent(boolean useInstrumentationAgent) {
+		this.useInstrumentationAgent = useInstrumentationAgent;
+	}
+
+	public boolean useBlockSampling() {
+		return useBlockSampling;
+	}
+
+	public void setUseBlockSampling(boolean useBlockSampling) {
+		this.useBlockSampling = useBlockSampling;
+	}
+
+	public boolean useRecorder() {
+		return useRecorder || useThreadAwareTracing;
+	}
+
+	public void setUseRecorder(boolean useRecorder) {
+		this.useRecorder = useRecorder;
+	}
+
+	public File getInstrumentationCacheDir() {
+		return instrumentationCacheDir;
+	}
+
+	public void setInstrumentationCacheDir(File instrumentationCacheDir) {
+		this.instrumentationCacheDir = instrumentationCacheDir;
+	}
+
+	public String getInstrumentationIncludePattern() {
+		return instrumentationIncludePattern;
+	}
+
+	public void setInstrumentationIncludePattern(String instrumentationIncludePattern) {
+		this.instrumentationIncludePattern = instrumentationIncludePattern;
+	}
+
+	public String getInstrumentationExcludePattern() {
+		return instrumentationExcludePattern;
+	}
+
+	public void setInstrumentationExcludePattern(String instrumentationExcludePattern) {
+		this.instrumentationExcludePattern = instrumentationExcludePattern;
+	}
+
+	public boolean instrumentReachableOnly() {
+		return instrumentReachableOnly;
+	}
+
+	public void setInstrumentReachableOnly(boolean instrumentReachableOnly) {
+		this.instrumentReachableOnly = instrumentReachableOnly;
+	}
+
+	public boolean useSharedWrappers() {
+		return useSharedWrappers;
+	}
+
+	public void setUseSharedWrappers(boolean useSharedWrappers) {
+		this.useSharedWrappers = useSharedWrappers;
+	}
+
+	public boolean useThreadAwareTracing() {
+		return useThreadAwareTracing;
+	}
+
+	public void setUseThreadAwareTracing(boolean useThreadAwareTracing) {
+		this.useThreadAwareTracing = useThreadAwareTracing;
+	}
+
+	public boolean streamTraces() {
+		return streamTraces;
+	}
+
+	public void setStreamTraces(boolean streamTraces) {
+		this.streamTraces = streamTraces;
+	}
+
+	public int getNumTraceShards() {
+		return numTraceShards;
+	}
+
+	public void setNumTraceShards(int numTraceShards) {
+		this.numTraceShards = numTraceShards;
+	}
+
+	public File getTraceStoreFile() {
+		return traceStoreFile;
+	}
+
+	public void setTraceStoreFile(File traceStoreFile) {
+		this.traceStoreFile = traceStoreFile;
+	}
+
+	public boolean replayTraceStore() {
+		return replayTraceStore;
+	}
+
+	public void setReplayTraceStore(boolean replayTraceStore) {
+		this.replayTraceStore = replayTraceStore;
+	}
+
+	public boolean useMinimalTraceProfile() {
+		return minimalTraceProfile;
+	}
+
+	public void setMinimalTraceProfile(boolean minimalTraceProfile) {
+		this.minimalTraceProfile = minimalTraceProfile;
+	}
+
+	public boolean useBytecodePreSlice() {
+		return useBytecodePreSlice;
+	}
+
+	public void setUseBytecodePreSlice(boolean useBytecodePreSlice) {
+		this.useBytecodePreSlice = useBytecodePreSlice;
+	}
+
+	public boolean pipeTraces() {
+		return pipeTraces;
+	}
+
+	public void setPipeTraces(boolean pipeTraces) {
+		this.pipeTraces = pipeTraces;
+	}
+
+	public int getNumSliceThreads() {
+		return numSliceThreads;
+	}
+
+	public void setNumSliceThreads(int numSliceThreads) {
+		this.numSliceThreads = numSliceThreads;
+	}
+
+	public boolean useLazySceneLoading() {
+		return lazySceneLoading;
+	}
+
+	public void setLazySceneLoading(boolean lazySceneLoading) {
+		this.lazySceneLoading = lazySceneLoading;
+	}
+
+	public boolean debugOutput() {
+		return debugOutput;
+	}
+
+	public void setDebugOutput(boolean debugOutput) {
+		this.debugOutput = debugOutput;
+	}
+}
@@ -1,7 +1,11 @@
 package util;
 
+import java.io.IOException;
 import java.lang.ProcessBuilder.Redirect;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -14,26 +18,66 @@ public abstract class AbstractRunner {
 	}
 
 	protected void execute(List<String> cmd, long ms_timeout) {
-		execute(StringUtils.join(cmd, " "), ms_timeout);
+		execute(cmd, ms_timeout, Collections.<String, String> emptyMap());
 	}
 
 	protected void execute(String cmd) {
 		execute(cmd, DEFAULT_TIMEOUT);
 	}
 
+	/**
+	 * Splits cmd at whitespace and executes it. Arguments that may contain
+	 * spaces (e.g., patterns) have to be passed as a list instead.
+	 *
+	 * @param cmd
+	 * @param ms_timeout
+	 */
 	protected void execute(String cmd, long ms_timeout) {
-		System.out.println("exec: " + cmd);
-		ProcessBuilder builder = new ProcessBuilder(cmd.split("\\s+"));
-		builder.redirectOutput(Redirect.INHERIT);
-		builder.redirectError(Redirect.INHERIT);
+		execute(Arrays.asList(cmd.split("\\s+")), ms_timeout);
+	}
+
+	/**
+	 * Executes cmd with the additional environment variables in 'environment'.
+	 * 
+	 * @param cmd
+	 * @param environment
+	 */
+	protected void execute(List<String> cmd, Map<String, String> environment) {
+		execute(cmd, DEFAULT_TIMEOUT, environment);
+	}
+
+	protected void execute(List<String> cmd, long ms_timeout, Map<String, String> environment) {
 		try {
-			final Process process = builder.start();
+			final Process process = start(cmd, environment);
 			process.waitFor();
 		} catch (Exception e) {
 			e.printStackTrace(System.err);
 			throw new RuntimeException(e.getMessage());
-		}		
-		
+		}
+
+	}
+
+	/**
+	 * Starts cmd with the additional environment variables in 'environment'
+	 * and returns without waiting for it to finish. Each element of cmd is
+	 * passed to the process as one argument, even if it contains spaces.
+	 * 
+	 * @param cmd
+	 * @param environment
+	 * @return the started process.
+	 */
+	protected Process start(List<String> cmd, Map<String, String> environment) {
+		System.out.println("exec: " + StringUtils.join(cmd, " "));
+		ProcessBuilder builder = new ProcessBuilder(cmd);
+		builder.environment().putAll(environment);
+		builder.redirectOutput(Redirect.INHERIT);
+		builder.redirectError(Redirect.INHERIT);
+		try {
+			return builder.start();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			throw new RuntimeException(e.getMessage());
+		}
 	}
 
 }
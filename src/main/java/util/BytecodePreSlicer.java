@@ -0,0 +1,507 @@
+/**
+ *
+ */
+package util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import bc_instrumenter.PcRecorder;
+import util.DaikonRunner.DaikonTrace;
+
+/**
+ * Computes a dynamic slice of a trace on the instrumented bytecode, before
+ * the TraceExtractor builds the Jimple trace method. The instructions that
+ * follow each pc call are replayed in the order of the trace, and each
+ * executed instruction depends on the last executed instructions that
+ * produced its operands. The producers of stack and local values come from
+ * an ASM SourceInterpreter analysis of the method. Parameters depend on
+ * the call in the caller, and the result of a call depends on the return
+ * of the callee. A field read depends on all earlier writes to a field of
+ * the same name, because the base objects are not tracked. Array elements
+ * are not tracked either, as in the Slicer.
+ *
+ * The slice starts at the last pc of the trace, i.e., at the failing
+ * instruction. It is a superset of what Slicer.sliceFromLastAssertion keeps
+ * if the trace method ends in the assertion for that instruction.
+ *
+ * @author schaef
+ *
+ */
+public class BytecodePreSlicer {
+
+	private static final String pcRecorderInternalName = PcRecorder.internalName;
+
+	private final File classDir;
+
+	/**
+	 * The analyzed methods by the name of their pc method (Class.method, as
+	 * in the ppt name).
+	 */
+	private final Map<String, MethodInfo> methods = new HashMap<String, MethodInfo>();
+	private final Set<String> loadedClasses = new HashSet<String>();
+
+	/**
+	 * @param classDir
+	 *            the directory of the instrumented classes.
+	 */
+	public BytecodePreSlicer(File classDir) {
+		this.classDir = classDir;
+	}
+
+	/**
+	 * Returns the positions of the pc entries in 'trace' whose instructions
+	 * may affect the last pc entry of the trace, or null if the pre-slice
+	 * cannot be computed (e.g., because a class file is missing).
+	 *
+	 * @param trace
+	 * @return the positions of the pc entries in the slice or null.
+	 */
+	public BitSet computePreSlice(DaikonTrace trace) {
+		try {
+			return new TraceSlice(trace).compute();
+		} catch (IOException | AnalyzerException | RuntimeException e) {
+			System.err.println("No bytecode pre-slice: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private synchronized MethodInfo getMethodInfo(PptDescriptor d) throws IOException, AnalyzerException {
+		final String name = d.ppt.name.substring(0, d.ppt.name.indexOf('('));
+		if (!methods.containsKey(name)) {
+			loadClass(name.substring(0, name.lastIndexOf('.')));
+		}
+		final MethodInfo info = methods.get(name);
+		if (info == null) {
+			throw new RuntimeException("No method calls " + name);
+		}
+		return info;
+	}
+
+	private void loadClass(String className) throws IOException, AnalyzerException {
+		if (!loadedClasses.add(className)) {
+			return;
+		}
+		final String internalName = className.replace('.', '/');
+		final File classFile = new File(classDir, internalName + ".class");
+		if (!classFile.isFile()) {
+			throw new RuntimeException("No class file for " + className);
+		}
+		ClassNode cn = new ClassNode();
+		try (InputStream in = new FileInputStream(classFile)) {
+			new ClassReader(in).accept(cn, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		}
+		for (Object o : cn.methods) {
+			final MethodNode mn = (MethodNode) o;
+			for (int i = 0; i < mn.instructions.size(); i++) {
+				final String pcMethodName = getPcMethodName(mn.instructions.get(i), internalName);
+				if (pcMethodName != null) {
+					methods.put(className + "." + pcMethodName, new MethodInfo(internalName, mn, pcMethodName));
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the name of the pc method if 'insn' is a call to a pc method
+	 * of 'owner' and null otherwise.
+	 */
+	private static String getPcMethodName(AbstractInsnNode insn, String owner) {
+		if (insn.getOpcode() == Opcodes.INVOKESTATIC) {
+			MethodInsnNode call = (MethodInsnNode) insn;
+			if (call.owner.equals(owner) && call.name.endsWith(TraceExtractor.pcMethodNameSuffix)) {
+				return call.name;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The result of the analysis of one instrumented method.
+	 */
+	private static class MethodInfo {
+		final boolean isClinit;
+		final int[] opcodes;
+
+		/**
+		 * For each instruction and each of its operands, the instructions
+		 * that may have produced the operand.
+		 */
+		final int[][][] uses;
+
+		/** The name and descriptor of the field of field instructions. */
+		final String[] fieldKeys;
+
+		/** True for the calls to the PcRecorder added by the instrumenter. */
+		final boolean[] isRecorderCall;
+
+		/** The instructions that follow each pc call. */
+		final Map<Integer, int[]> segments = new HashMap<Integer, int[]>();
+
+		MethodInfo(String owner, MethodNode mn, String pcMethodName) throws AnalyzerException {
+			isClinit = mn.name.equals("<clinit>");
+			final InsnList insns = mn.instructions;
+			final UseRecorder interpreter = new UseRecorder();
+			new Analyzer<SourceValue>(interpreter).analyze(owner, mn);
+
+			final int size = insns.size();
+			opcodes = new int[size];
+			uses = new int[size][][];
+			fieldKeys = new String[size];
+			isRecorderCall = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				final AbstractInsnNode insn = insns.get(i);
+				opcodes[i] = insn.getOpcode();
+				final List<Set<AbstractInsnNode>> operands = interpreter.operands.get(insn);
+				uses[i] = new int[operands == null ? 0 : operands.size()][];
+				for (int k = 0; k < uses[i].length; k++) {
+					uses[i][k] = new int[operands.get(k).size()];
+					int j = 0;
+					for (AbstractInsnNode producer : operands.get(k)) {
+						uses[i][k][j++] = insns.indexOf(producer);
+					}
+				}
+				if (insn instanceof FieldInsnNode) {
+					fieldKeys[i] = ((FieldInsnNode) insn).name + ":" + ((FieldInsnNode) insn).desc;
+				}
+				isRecorderCall[i] = insn instanceof MethodInsnNode
+						&& ((MethodInsnNode) insn).owner.equals(pcRecorderInternalName);
+			}
+
+			for (int i = 0; i < size; i++) {
+				if (pcMethodName.equals(getPcMethodName(insns.get(i), owner))) {
+					final List<Integer> segment = new ArrayList<Integer>();
+					// up to the push of the next pc.
+					for (int j = i + 1; j < size && !(j + 1 < size
+							&& pcMethodName.equals(getPcMethodName(insns.get(j + 1), owner))); j++) {
+						if (opcodes[j] >= 0) {
+							segment.add(j);
+						}
+					}
+					final int[] segmentArray = new int[segment.size()];
+					for (int j = 0; j < segmentArray.length; j++) {
+						segmentArray[j] = segment.get(j);
+					}
+					segments.put(getPushedInt(insns.get(i - 1)), segmentArray);
+				}
+			}
+		}
+
+		private static int getPushedInt(AbstractInsnNode insn) {
+			if (insn instanceof IntInsnNode) {
+				return ((IntInsnNode) insn).operand;
+			} else if (insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof Integer) {
+				return (Integer) ((LdcInsnNode) insn).cst;
+			}
+			throw new RuntimeException("Pc call without constant pc.");
+		}
+	}
+
+	/**
+	 * Records the producers of the operands of each instruction. The
+	 * Analyzer calls the interpreter once per instruction and visit, and
+	 * each call consumes the operands in the same order, so the n-th
+	 * operand of all visits are merged.
+	 */
+	private static class UseRecorder extends SourceInterpreter {
+		final Map<AbstractInsnNode, List<Set<AbstractInsnNode>>> operands = new HashMap<AbstractInsnNode, List<Set<AbstractInsnNode>>>();
+		private AbstractInsnNode current = null;
+		private int operand = 0;
+
+		UseRecorder() {
+			super(Opcodes.ASM5);
+		}
+
+		private void use(AbstractInsnNode insn, SourceValue value) {
+			if (insn != current) {
+				current = insn;
+				operand = 0;
+			}
+			List<Set<AbstractInsnNode>> ops = operands.get(insn);
+			if (ops == null) {
+				ops = new ArrayList<Set<AbstractInsnNode>>();
+				operands.put(insn, ops);
+			}
+			while (ops.size() <= operand) {
+				ops.add(new HashSet<AbstractInsnNode>());
+			}
+			ops.get(operand++).addAll(value.insns);
+		}
+
+		@Override
+		public SourceValue copyOperation(AbstractInsnNode insn, SourceValue value) {
+			use(insn, value);
+			return super.copyOperation(insn, value);
+		}
+
+		@Override
+		public SourceValue unaryOperation(AbstractInsnNode insn, SourceValue value) {
+			use(insn, value);
+			return super.unaryOperation(insn, value);
+		}
+
+		@Override
+		public SourceValue binaryOperation(AbstractInsnNode insn, SourceValue value1, SourceValue value2) {
+			use(insn, value1);
+			use(insn, value2);
+			return super.binaryOperation(insn, value1, value2);
+		}
+
+		@Override
+		public SourceValue ternaryOperation(AbstractInsnNode insn, SourceValue value1, SourceValue value2,
+				SourceValue value3) {
+			use(insn, value1);
+			use(insn, value2);
+			use(insn, value3);
+			return super.ternaryOperation(insn, value1, value2, value3);
+		}
+
+		@Override
+		public SourceValue naryOperation(AbstractInsnNode insn, List<? extends SourceValue> values) {
+			for (SourceValue value : values) {
+				use(insn, value);
+			}
+			return super.naryOperation(insn, values);
+		}
+
+		@Override
+		public SourceValue merge(SourceValue d, SourceValue w) {
+			current = null;
+			return super.merge(d, w);
+		}
+	}
+
+	/**
+	 * One execution of a method. Activations are pushed at method entries
+	 * and when the trace jumps into a static initializer, which Chicory
+	 * does not report.
+	 */
+	private static class Activation {
+		MethodInfo method;
+		int[] lastExecution;
+		final boolean entered;
+		final int callerInvoke;
+		int lastInvoke = -1;
+		int lastReturn = -1;
+
+		Activation(MethodInfo method, boolean entered, int callerInvoke) {
+			this.entered = entered;
+			this.callerInvoke = callerInvoke;
+			if (method != null) {
+				bind(method);
+			}
+		}
+
+		void bind(MethodInfo method) {
+			this.method = method;
+			lastExecution = new int[method.opcodes.length];
+			Arrays.fill(lastExecution, -1);
+		}
+	}
+
+	/**
+	 * The executed instructions of one trace and their dependencies.
+	 */
+	private class TraceSlice {
+		private final DaikonTrace trace;
+		private final Stack<Activation> stack = new Stack<Activation>();
+		private final Map<String, Integer> lastFieldWrite = new HashMap<String, Integer>();
+		private int lastThrow = -1;
+
+		private int numInstances = 0;
+		private int[] eventPos = new int[1024];
+		private int[] depStart = new int[1024];
+		private int[] depEnd = new int[1024];
+		/**
+		 * The return of the callee for calls, and the previous write to the
+		 * field for field writes.
+		 */
+		private int[] extraDep = new int[1024];
+		private int numDeps = 0;
+		private int[] deps = new int[4096];
+
+		TraceSlice(DaikonTrace trace) {
+			this.trace = trace;
+		}
+
+		BitSet compute() throws IOException, AnalyzerException {
+			int lastPc = -1;
+			for (int pos = 0; pos < trace.size(); pos++) {
+				final PptDescriptor d = trace.getDescriptor(pos);
+				switch (d.kind) {
+				case METHOD_ENTER:
+					stack.push(new Activation(null, true,
+							stack.isEmpty() || stack.peek().method == null ? -1 : stack.peek().lastInvoke));
+					break;
+				case METHOD_EXIT:
+					while (!stack.isEmpty() && !stack.peek().entered) {
+						stack.pop();
+					}
+					if (!stack.isEmpty()) {
+						Activation callee = stack.pop();
+						if (callee.callerInvoke >= 0) {
+							extraDep[callee.callerInvoke] = callee.lastReturn;
+						}
+					}
+					break;
+				case PC_ENTER: {
+					final MethodInfo info = getMethodInfo(d);
+					final Activation act = findActivation(info);
+					final int[] segment = info.segments.get((int) trace.getPc(pos));
+					if (segment == null) {
+						throw new RuntimeException("No pc " + trace.getPc(pos) + " in " + d.ppt.name);
+					}
+					for (int insn : segment) {
+						execute(pos, act, insn);
+					}
+					lastPc = pos;
+					break;
+				}
+				default:
+					// wrappers are library calls and pc exits have no code.
+				}
+			}
+			if (lastPc < 0) {
+				return null;
+			}
+
+			// slice backwards from the instructions of the last pc.
+			final BitSet marked = new BitSet(numInstances);
+			final BitSet slice = new BitSet(trace.size());
+			int[] worklist = new int[64];
+			int worklistSize = 0;
+			for (int id = numInstances - 1; id >= 0 && eventPos[id] == lastPc; id--) {
+				marked.set(id);
+				worklist = push(worklist, worklistSize++, id);
+			}
+			while (worklistSize > 0) {
+				final int id = worklist[--worklistSize];
+				slice.set(eventPos[id]);
+				for (int i = depStart[id]; i <= depEnd[id]; i++) {
+					final int dep = i < depEnd[id] ? deps[i] : extraDep[id];
+					if (dep >= 0 && !marked.get(dep)) {
+						marked.set(dep);
+						worklist = push(worklist, worklistSize++, dep);
+					}
+				}
+			}
+			return slice;
+		}
+
+		/**
+		 * Returns the activation of 'info'. A new activation is bound to the
+		 * method of its first pc. If the pc is in a different method, the
+		 * trace either jumped into a static initializer or an exception was
+		 * caught further down the stack.
+		 */
+		private Activation findActivation(MethodInfo info) {
+			if (!stack.isEmpty() && stack.peek().method == null && !info.isClinit) {
+				stack.peek().bind(info);
+			}
+			if (!stack.isEmpty() && stack.peek().method == info) {
+				return stack.peek();
+			}
+			if (info.isClinit) {
+				return stack.push(new Activation(info, false, -1));
+			}
+			while (!stack.isEmpty() && stack.peek().method != info && stack.peek().method != null) {
+				stack.pop();
+			}
+			if (stack.isEmpty()) {
+				return stack.push(new Activation(info, false, -1));
+			}
+			if (stack.peek().method == null) {
+				stack.peek().bind(info);
+			}
+			return stack.peek();
+		}
+
+		private void execute(int pos, Activation act, int insn) {
+			final int id = numInstances++;
+			if (id == eventPos.length) {
+				eventPos = Arrays.copyOf(eventPos, 2 * id);
+				depStart = Arrays.copyOf(depStart, 2 * id);
+				depEnd = Arrays.copyOf(depEnd, 2 * id);
+				extraDep = Arrays.copyOf(extraDep, 2 * id);
+			}
+			eventPos[id] = pos;
+			extraDep[id] = -1;
+			depStart[id] = numDeps;
+			final int opcode = act.method.opcodes[insn];
+			final boolean readsLocal = (opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD) || opcode == Opcodes.IINC;
+			for (int[] producers : act.method.uses[insn]) {
+				// the last execution of a producer is the one that produced
+				// the operand.
+				int dep = -1;
+				for (int producer : producers) {
+					dep = Math.max(dep, act.lastExecution[producer]);
+				}
+				if (dep < 0) {
+					// parameters come from the call, and stack values
+					// without a producer are caught exceptions.
+					dep = readsLocal ? act.callerInvoke : lastThrow;
+				}
+				addDep(dep);
+			}
+			final String field = act.method.fieldKeys[insn];
+			if (opcode == Opcodes.GETFIELD || opcode == Opcodes.GETSTATIC) {
+				addDep(lastFieldWrite.containsKey(field) ? lastFieldWrite.get(field) : -1);
+			} else if (opcode == Opcodes.PUTFIELD || opcode == Opcodes.PUTSTATIC) {
+				extraDep[id] = lastFieldWrite.containsKey(field) ? lastFieldWrite.get(field) : -1;
+				lastFieldWrite.put(field, id);
+			} else if (opcode == Opcodes.ATHROW) {
+				lastThrow = id;
+			} else if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.ARETURN) {
+				act.lastReturn = id;
+			} else if (opcode >= Opcodes.INVOKEVIRTUAL && opcode <= Opcodes.INVOKEDYNAMIC
+					&& !act.method.isRecorderCall[insn]) {
+				act.lastInvoke = id;
+			}
+			depEnd[id] = numDeps;
+			act.lastExecution[insn] = id;
+		}
+
+		private void addDep(int dep) {
+			if (dep < 0) {
+				return;
+			}
+			if (numDeps == deps.length) {
+				deps = Arrays.copyOf(deps, 2 * numDeps);
+			}
+			deps[numDeps++] = dep;
+		}
+
+		private int[] push(int[] array, int size, int value) {
+			final int[] result = size == array.length ? Arrays.copyOf(array, 2 * size) : array;
+			result[size] = value;
+			return result;
+		}
+	}
+}
@@ -4,19 +4,42 @@
 package util;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.base.Verify;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import bc_instrumenter.PcRecorder;
 import daikon.FileIO;
 import daikon.PptMap;
 import daikon.PptTopLevel;
+import daikon.ProglangType;
 import daikon.ValueTuple;
+import daikon.VarInfo;
 import daikon.util.Pair;
 import dynslicer.Main;
+import dynslicer.Options;
 
 /**
  * @author schaef
@@ -24,43 +47,379 @@ import dynslicer.Main;
  */
 public class DaikonRunner extends AbstractRunner {
 
-	
+	public static final String enterTestRegex = PcRecorder.testPptRegex + ":::ENTER";
+
+	/**
+	 * System property that tells the PcRecorder in the traced JVM where to
+	 * write the binary trace.
+	 */
+	public static final String pcTraceFileProperty = PcRecorder.traceFileProperty;
+
+	// Keep in sync with bc_instrumenter.TestShardRunner
+	public static final String shardRunnerClass = "bc_instrumenter.TestShardRunner";
+
+	// Keep in sync with bc_instrumenter.Agent
+	public static final String chicoryMainClass = "daikon.Chicory";
+
+	/**
+	 * How often the waiter of runPiped opens the pipe while the parser has
+	 * not seen its end.
+	 */
+	private static final long pipePollMs = 50;
+
+	/**
+	 * Matches every variable that the TraceExtractor does not read, i.e.,
+	 * everything except the pc argument of pc methods, the arguments and the
+	 * return value of wrappers, and their toString for strings. Used with
+	 * the minimal trace profile.
+	 */
+	static final String minimalProfileOmitRegex = "^(?!(?:" + Pattern.quote(TraceExtractor.pcMethodArgName) + "|"
+			+ Pattern.quote(TraceExtractor.wrapperArgPrefix) + "\\d+|return)(?:\\.toString)?$).*";
+
+	/**
+	 * Descriptors of all ppts in the traces parsed by this runner.
+	 */
+	private final PptTable pptTable = new PptTable();
+
 	public Set<DaikonTrace> run(String classPath, String mainClass, Set<String> classesToInclude) {
+		return run(classPath, mainClass, classesToInclude, Collections.<String> emptyList());
+	}
+
+	/**
+	 * Runs Chicory on 'mainClass' and returns the parsed traces.
+	 * 
+	 * @param classPath
+	 * @param mainClass
+	 * @param classesToInclude
+	 * @param jvmOptions
+	 *            additional options for the traced JVM (e.g., a java agent).
+	 *            Chicory starts the traced program in its own JVM, so these
+	 *            options are passed through JAVA_TOOL_OPTIONS.
+	 * @return the set of traces, one per error test.
+	 */
+	public Set<DaikonTrace> run(String classPath, String mainClass, Set<String> classesToInclude,
+			List<String> jvmOptions) {
+		TraceCollector collector = new TraceCollector();
+		run(classPath, mainClass, classesToInclude, jvmOptions, collector);
+		return collector.traces;
+	}
+
+	/**
+	 * Runs Chicory on 'mainClass' and hands each trace to 'consumer' as soon
+	 * as it has been parsed. The parser does not keep a reference to the
+	 * traces it handed out, so only the trace that is currently parsed has
+	 * to be in memory.
+	 * 
+	 * @param classPath
+	 * @param mainClass
+	 * @param classesToInclude
+	 * @param jvmOptions
+	 *            additional options for the traced JVM.
+	 * @param consumer
+	 *            receives one trace per error test.
+	 */
+	public void run(String classPath, String mainClass, Set<String> classesToInclude, List<String> jvmOptions,
+			TraceConsumer consumer) {
 		// Run Daikon
 		final File dtraceFileName = new File(mainClass + ".dtrace.gz");
 		if (dtraceFileName.exists()) {
 			dtraceFileName.delete();
 		}
+		final boolean useRecorder = Options.v().useRecorder();
+		final File pcTraceFile = new File(mainClass + ".pctrace");
+		if (useRecorder) {
+			// the instrumented code needs the PcRecorder from the instrumenter.
+			classPath += File.pathSeparator + Main.basePath + "lib/instrumenter.jar";
+		}
 		
+		List<String> cmd = createChicoryCommand(classPath, classesToInclude);
+		if (Options.v().pipeTraces() && !useRecorder) {
+			runPiped(cmd, mainClass, jvmOptions, pcTraceFile, consumer);
+			return;
+		}
+//		cmd.add("--dtrace-file=ErrorTestDriver.dtrace");
+		cmd.add(mainClass);
+		System.out.println("Running Daikon");
+		execute(cmd, createEnvironment(jvmOptions, pcTraceFile));		
+		// gunzip the dtrace file
+//		cmd = new LinkedList<String>();
+//		cmd.add("gunzip");
+//		cmd.add("-f");
+//		cmd.add(dtraceFileName.getName());
+//		execute(cmd);
+		System.err.println("Done generating DTRACE file");
+		parseTraceFiles(dtraceFileName, pcTraceFile, consumer);
+	}
+
+	/**
+	 * Runs Chicory with its dtrace going to a named pipe and parses the pipe
+	 * while Chicory is running. The pipe carries the dtrace uncompressed.
+	 */
+	private void runPiped(List<String> cmd, String mainClass, List<String> jvmOptions, File pcTraceFile,
+			TraceConsumer consumer) {
+		// Chicory resolves the dtrace file against its output directory, so
+		// the name must be relative.
+		final File pipe = new File(mainClass + ".dtrace");
+		cmd.add("--dtrace-file=" + pipe.getName());
+		cmd.add(mainClass);
+		System.out.println("Running Daikon into a pipe");
+		runPiped(cmd, pipe, createEnvironment(jvmOptions, pcTraceFile), consumer);
+		System.err.println("Done parsing the piped DTRACE");
+	}
+
+	/**
+	 * Creates the named pipe 'pipe', starts 'cmd', which writes a dtrace to
+	 * the pipe, and parses the pipe while 'cmd' is running.
+	 * 
+	 * Opening a pipe blocks until the other end is opened, and the parser
+	 * only sees the end of the file once no writer is left. So we keep the
+	 * pipe open for writing from before 'cmd' starts until it has exited (a
+	 * read-write open does not block on Linux), which lets the parser open
+	 * the pipe whether 'cmd' opens it or not. If the parser has not opened
+	 * the pipe by the time 'cmd' exits, closing our end does not reach it,
+	 * so we open and close the pipe again until the parser is done.
+	 * 
+	 * @param cmd
+	 * @param pipe
+	 * @param environment
+	 *            additional environment variables of 'cmd'.
+	 * @param consumer
+	 *            receives one trace per error test.
+	 */
+	public void runPiped(List<String> cmd, final File pipe, Map<String, String> environment, TraceConsumer consumer) {
+		if (pipe.exists()) {
+			pipe.delete();
+		}
+		List<String> mkfifo = new LinkedList<String>();
+		mkfifo.add("mkfifo");
+		mkfifo.add(pipe.getPath());
+		execute(mkfifo);
+		Verify.verify(pipe.exists(), "Could not create the pipe " + pipe.getAbsolutePath());
+
+		final RandomAccessFile writerFd;
+		final Process process;
+		try {
+			writerFd = new RandomAccessFile(pipe, "rw");
+		} catch (IOException e) {
+			pipe.delete();
+			throw new RuntimeException(e.getMessage());
+		}
+		try {
+			process = start(cmd, environment);
+		} catch (RuntimeException e) {
+			closePipe(writerFd);
+			pipe.delete();
+			throw e;
+		}
+		final AtomicBoolean parserDone = new AtomicBoolean(false);
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					process.waitFor();
+				} catch (InterruptedException e) {
+					e.printStackTrace(System.err);
+				} finally {
+					closePipe(writerFd);
+				}
+				try {
+					while (!parserDone.get()) {
+						new RandomAccessFile(pipe, "rw").close();
+						Thread.sleep(pipePollMs);
+					}
+				} catch (InterruptedException | IOException e) {
+					e.printStackTrace(System.err);
+				}
+			}
+		});
+		waiter.start();
+		boolean parsed = false;
+		try {
+			parseDTraceFile(pipe.getPath(), consumer);
+			parsed = true;
+		} finally {
+			parserDone.set(true);
+			if (!parsed) {
+				// nobody reads the pipe anymore, so 'cmd' would block.
+				process.destroy();
+			}
+			try {
+				// the waiter must not touch the pipe once it is deleted.
+				waiter.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e.getMessage());
+			} finally {
+				pipe.delete();
+			}
+		}
+	}
+
+	private static void closePipe(RandomAccessFile fd) {
+		try {
+			fd.close();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * Splits the test methods of 'testClasses' into 'numShards' partitions
+	 * and runs one Chicory process per partition in parallel. Each process
+	 * runs bc_instrumenter.TestShardRunner instead of the ErrorTestDriver
+	 * and writes its own trace files. Once all processes are done, the
+	 * traces are handed to 'consumer' one shard after the other.
+	 * 
+	 * @param classPath
+	 * @param testClasses
+	 *            the names of the ErrorTest classes.
+	 * @param classesToInclude
+	 * @param jvmOptions
+	 *            additional options for the traced JVMs.
+	 * @param numShards
+	 * @param consumer
+	 *            receives one trace per error test.
+	 */
+	public void runSharded(String classPath, List<String> testClasses, Set<String> classesToInclude,
+			final List<String> jvmOptions, int numShards, TraceConsumer consumer) {
+		// the TestShardRunner (and the PcRecorder) are in the instrumenter.
+		classPath += File.pathSeparator + Main.basePath + "lib/instrumenter.jar";
+		final List<File> dtraceFiles = new LinkedList<File>();
+		final List<File> pcTraceFiles = new LinkedList<File>();
+		ExecutorService executor = Executors.newFixedThreadPool(numShards);
+		List<Future<?>> futures = new LinkedList<Future<?>>();
+		System.out.println("Running Daikon in " + numShards + " shards");
+		for (int shard = 0; shard < numShards; shard++) {
+			final String prefix = shardRunnerClass.substring(shardRunnerClass.lastIndexOf('.') + 1) + shard;
+			final File dtraceFile = new File(prefix + ".dtrace.gz");
+			final File pcTraceFile = new File(prefix + ".pctrace");
+			if (dtraceFile.exists()) {
+				dtraceFile.delete();
+			}
+			dtraceFiles.add(dtraceFile);
+			pcTraceFiles.add(pcTraceFile);
+			final List<String> cmd = createChicoryCommand(classPath, classesToInclude);
+			cmd.add("--dtrace-file=" + dtraceFile.getName());
+			cmd.add(shardRunnerClass);
+			cmd.add(String.valueOf(shard));
+			cmd.add(String.valueOf(numShards));
+			cmd.addAll(testClasses);
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					execute(cmd, createEnvironment(jvmOptions, pcTraceFile));
+				}
+			}));
+		}
+		executor.shutdown();
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		System.err.println("Done generating DTRACE files");
+		for (int shard = 0; shard < numShards; shard++) {
+			parseTraceFiles(dtraceFiles.get(shard), pcTraceFiles.get(shard), consumer);
+		}
+	}
+
+	private void parseTraceFiles(File dtraceFile, File pcTraceFile, TraceConsumer consumer) {
+		if (Options.v().useRecorder()) {
+			parseRecordedTrace(pcTraceFile.getAbsolutePath(), dtraceFile.getAbsolutePath(), consumer);
+		} else {
+			parseDTraceFile(dtraceFile.getAbsolutePath(), consumer);
+		}
+	}
+
+	/**
+	 * Returns the Chicory command up to (but excluding) the main class.
+	 */
+	private List<String> createChicoryCommand(String classPath, Set<String> classesToInclude) {
+		final boolean useRecorder = Options.v().useRecorder();
 		List<String> cmd = new LinkedList<String>();
 		cmd.add("java");
 		cmd.add("-classpath");
 		cmd.add(classPath + File.pathSeparator + Main.basePath+"lib/daikon.jar");
-		cmd.add("daikon.Chicory");
+		cmd.add(chicoryMainClass);
 		cmd.add("--nesting-depth=1");
+		if (Options.v().useMinimalTraceProfile()) {
+			cmd.add("--omit-var=" + minimalProfileOmitRegex);
+		}
 		StringBuilder sb = new StringBuilder();
 		sb.append("--ppt-select-pattern=^(ErrorTestDriver|ErrorTest(\\d)+");
 		for (String className : getNamespacesFromClasses(classesToInclude)) {
 			sb.append("|");
 			sb.append(className);
 		}
+		if (Options.v().useSharedWrappers()) {
+			sb.append("|");
+			sb.append(TraceExtractor.sharedWrapperPackage);
+		}
 		sb.append(")\\S*");
+		if (useRecorder) {
+			// everything except the values of the wrappers is in the pc
+			// trace.
+			sb.append(TraceExtractor.wrapperMethodNameSuffix);
+			sb.append("\\S*");
+		}
 		String inclusionRegex = sb.toString();
 //		System.err.println(inclusionRegex);
 		cmd.add(inclusionRegex);
-		
-//		cmd.add("--dtrace-file=ErrorTestDriver.dtrace");
-		cmd.add(mainClass);
-		System.out.println("Running Daikon");
-		execute(cmd);		
-		// gunzip the dtrace file
-//		cmd = new LinkedList<String>();
-//		cmd.add("gunzip");
-//		cmd.add("-f");
-//		cmd.add(dtraceFileName.getName());
-//		execute(cmd);
-		System.err.println("Done generating DTRACE file");
-		return parseDTraceFile(dtraceFileName.getAbsolutePath());
+		// methods that are not instrumented are called through wrappers, so
+		// Chicory must not report them.
+		cmd.addAll(createPptOmitOptions(Options.v().getInstrumentationIncludePattern(),
+				Options.v().getInstrumentationExcludePattern()));
+		return cmd;
+	}
+
+	/**
+	 * Returns the Chicory options that omit the methods which the
+	 * instrumenter does not instrument because of the include and exclude
+	 * patterns (see bc_instrumenter.MethodFilter). Chicory matches an omit
+	 * pattern (with find) against the class name and the method name as
+	 * well as the ppt name, so the patterns only match ppt names, which are
+	 * the only ones with a ":::" suffix. Like the instrumenter, they never
+	 * omit constructors and static initializers, and they never omit the pc
+	 * methods and wrappers that the instrumenter adds. The include pattern
+	 * does not apply to the ErrorTest classes.
+	 *
+	 * @param includePattern
+	 *            pattern of the methods to instrument or null.
+	 * @param excludePattern
+	 *            pattern of the methods not to instrument or null.
+	 * @return the --ppt-omit-pattern options.
+	 */
+	public static List<String> createPptOmitOptions(String includePattern, String excludePattern) {
+		final String keep = "^(?=.*:::)(?![^(]*<clinit>)(?!(?:[^(]*\\.)?([^.(]+)\\.\\1\\()(?!.*"
+				+ TraceExtractor.wrapperMethodNameSuffix + "|.*" + TraceExtractor.pcMethodNameSuffix + ")";
+		List<String> options = new LinkedList<String>();
+		if (excludePattern != null) {
+			options.add("--ppt-omit-pattern=" + keep + "(?=.*?(?:" + excludePattern + "))");
+		}
+		if (includePattern != null) {
+			options.add("--ppt-omit-pattern=" + keep + "(?!ErrorTest|.*?(?:" + includePattern + "))");
+		}
+		return options;
+	}
+
+	/**
+	 * Returns the environment of the Chicory process. Chicory starts the
+	 * traced program in its own JVM, so the options for the traced JVM are
+	 * passed through JAVA_TOOL_OPTIONS. The launcher JVM of Chicory reads
+	 * them, too, but the instrumentation agent does nothing in that JVM
+	 * (see bc_instrumenter.Agent).
+	 */
+	private Map<String, String> createEnvironment(List<String> jvmOptions, File pcTraceFile) {
+		List<String> tracedJvmOptions = new LinkedList<String>(jvmOptions);
+		if (Options.v().useRecorder()) {
+			tracedJvmOptions.add("-D" + pcTraceFileProperty + "=" + pcTraceFile.getAbsolutePath());
+		}
+		Map<String, String> environment = new HashMap<String, String>();
+		if (!tracedJvmOptions.isEmpty()) {
+			environment.put("JAVA_TOOL_OPTIONS", StringUtils.join(tracedJvmOptions, " "));
+		}
+		return environment;
 	}
 
 	private Set<String> getNamespacesFromClasses(Set<String> classNames) {
@@ -76,72 +435,439 @@ public class DaikonRunner extends AbstractRunner {
 	}
 	
 	public Set<DaikonTrace> parseDTraceFile(String dtraceFileName) {
-		CollectDataProcessor processor = new CollectDataProcessor();
+		TraceCollector collector = new TraceCollector();
+		parseDTraceFile(dtraceFileName, collector);
+		return collector.traces;
+	}
+
+	/**
+	 * Parses the dtrace file and hands each trace to 'consumer' as soon as
+	 * the next test starts (or the file ends).
+	 * 
+	 * @param dtraceFileName
+	 * @param consumer
+	 */
+	public void parseDTraceFile(String dtraceFileName, TraceConsumer consumer) {
+		CollectDataProcessor processor = new CollectDataProcessor(withCleanUp(consumer), pptTable);
 		PptMap ppts = new PptMap();
 		try {
 			FileIO.read_data_trace_files(Arrays.asList(dtraceFileName), ppts, processor, false);
 		} catch (Exception e) {
 			throw new Error(e);
 		}
-		for (DaikonTrace dt : processor.traces) {
-			cleanUpTrailingPptsInTrace(dt);
+		processor.finish();
+	}
+
+	/**
+	 * Reads the binary trace written by the PcRecorder and fills in the
+	 * values of the wrapper calls from the dtrace file.
+	 * 
+	 * @param pcTraceFileName
+	 * @param dtraceFileName
+	 * @return the set of traces, one per error test.
+	 */
+	public Set<DaikonTrace> parseRecordedTrace(String pcTraceFileName, String dtraceFileName) {
+		TraceCollector collector = new TraceCollector();
+		parseRecordedTrace(pcTraceFileName, dtraceFileName, collector);
+		return collector.traces;
+	}
+
+	/**
+	 * Like parseRecordedTrace(String, String) but hands each trace to
+	 * 'consumer' as soon as it is complete. The samples of the wrappers are
+	 * still read up front, but they are much smaller than the pc trace.
+	 * 
+	 * @param pcTraceFileName
+	 * @param dtraceFileName
+	 * @param consumer
+	 */
+	public void parseRecordedTrace(String pcTraceFileName, String dtraceFileName, TraceConsumer consumer) {
+		SampleListProcessor processor = new SampleListProcessor();
+		PptMap ppts = new PptMap();
+		try {
+			FileIO.read_data_trace_files(Arrays.asList(dtraceFileName), ppts, processor, false);
+			new RecordedTraceReader(pptTable).read(new File(pcTraceFileName), processor.samples.iterator(),
+					Options.v().useThreadAwareTracing(), withCleanUp(consumer));
+		} catch (Exception e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Receives the traces from the parser one at a time.
+	 */
+	public interface TraceConsumer {
+		void consume(DaikonTrace trace);
+	}
+
+	/**
+	 * Keeps all traces in memory. This is only reasonable for small trace
+	 * files.
+	 */
+	public static class TraceCollector implements TraceConsumer {
+		public final Set<DaikonTrace> traces = new LinkedHashSet<DaikonTrace>();
+
+		@Override
+		public void consume(DaikonTrace trace) {
+			traces.add(trace);
 		}
-		return processor.traces;
+	}
+
+	private static TraceConsumer withCleanUp(final TraceConsumer consumer) {
+		return new TraceConsumer() {
+			@Override
+			public void consume(DaikonTrace trace) {
+				cleanUpTrailingPptsInTrace(trace);
+				// hash the trace while its values are still in the cache.
+				trace.getFingerprint();
+				consumer.consume(trace);
+			}
+		};
 	}
 
 	/**
-	 * Populates the <code>samples</code> map with all the data read from the
-	 * file.
-	 * This is only reasonable for small trace files, since all the data will
-	 * be retained in memory!
+	 * Collects all samples in the order in which they appear in the file.
+	 */
+	public static class SampleListProcessor extends FileIO.Processor {
+
+		public final List<Pair<PptTopLevel, ValueTuple>> samples = new LinkedList<Pair<PptTopLevel, ValueTuple>>();
+
+		public void process_sample(PptMap all_ppts, PptTopLevel ppt, ValueTuple vt, /* @Nullable */ Integer nonce) {
+			FileIO.compute_orig_variables(ppt, vt.vals, vt.mods, nonce);
+			FileIO.compute_derived_variables(ppt, vt.vals, vt.mods);
+			samples.add(new Pair<PptTopLevel, ValueTuple>(ppt, new ValueTuple(vt.vals, vt.mods)));
+		}
+	}
+
+	/**
+	 * Splits the samples into one trace per error test and hands each trace
+	 * to the consumer once the next test starts. Call finish after the last
+	 * sample to hand out the last trace.
 	 */
 	public static class CollectDataProcessor extends FileIO.Processor {
 
+		private final TraceConsumer consumer;
+		private final PptTable pptTable;
 		private DaikonTrace currentTrace = null;
-		public Set<DaikonTrace> traces = new LinkedHashSet<DaikonTrace>(); 
-		
-		/** Process the sample, by adding it to the <code>samples</code> map. */
+
+		public CollectDataProcessor(TraceConsumer consumer, PptTable pptTable) {
+			this.consumer = consumer;
+			this.pptTable = pptTable;
+		}
+
+		/** Process the sample, by adding it to the current trace. */
 		public void process_sample(PptMap all_ppts, PptTopLevel ppt, ValueTuple vt, /* @Nullable */ Integer nonce) {
 			FileIO.compute_orig_variables(ppt, vt.vals, vt.mods, nonce);
 			FileIO.compute_derived_variables(ppt, vt.vals, vt.mods);
 			// Intern the sample, to save space, since we are storing them all.			
 			vt = new ValueTuple(vt.vals, vt.mods);			
-			final String enterTestRegex = "ErrorTest(\\d)+\\.test(\\d)+\\(\\):::ENTER";			
-			if (ppt.name().matches(enterTestRegex)) {
-				currentTrace = new DaikonTrace();				
-				currentTrace.addPoint(ppt, vt);
-				traces.add(currentTrace);
+			final PptDescriptor d = pptTable.intern(ppt);
+			if (d.isTestEntry) {
+				finish();
+				currentTrace = new DaikonTrace(pptTable);				
+				currentTrace.addPoint(d, vt);
 			} else if (currentTrace!=null) {
-				currentTrace.addPoint(ppt, vt);
+				currentTrace.addPoint(d, vt);
 			}			
 		}
+
+		/**
+		 * Hands the current trace to the consumer.
+		 */
+		public void finish() {
+			if (currentTrace != null) {
+				DaikonTrace done = currentTrace;
+				currentTrace = null;
+				consumer.consume(done);
+			}
+		}
 	}
 
 	/**
 	 * Remove all the program points at the end of the trace that are in the ErrorTestDriver
 	 * @param dt
 	 */
-	private void cleanUpTrailingPptsInTrace(DaikonTrace dt) {		
-		Pair<PptTopLevel, ValueTuple> last = dt.trace.get(dt.trace.size()-1);
-		while (last.a.name.startsWith("ErrorTestDriver.")) {
-			dt.trace.remove(last);				
-			last = dt.trace.get(dt.trace.size()-1);				
+	private static void cleanUpTrailingPptsInTrace(DaikonTrace dt) {		
+		while (dt.getDescriptor(dt.size() - 1).isDriver) {
+			dt.removeLast();
 		}
+		dt.trimToSize();
 	}
 
-	
+	/**
+	 * The sequence of events of one error test. The events are stored in
+	 * parallel arrays: the id of the event's PptDescriptor, and a payload
+	 * that is the pc for the entry of a pc method and the index of the
+	 * ValueTuple for wrapper events and method entries. All other events
+	 * (e.g., the exits of pc methods) have no payload, so they do not keep
+	 * their ValueTuple. An event costs 8 bytes plus the tuple where one is
+	 * kept.
+	 */
 	public static class DaikonTrace {
-		public final List<Pair<PptTopLevel, ValueTuple>> trace = new LinkedList<Pair<PptTopLevel, ValueTuple>>();
-		
+		private static final int NO_PAYLOAD = -1;
+
+		private final PptTable pptTable;
+
+		private int[] ppts = new int[64];
+		private int[] payloads = new int[64];
+		private int size = 0;
+		private final List<ValueTuple> values = new ArrayList<ValueTuple>();
+		private HashCode fingerprint = null;
+		private final List<DaikonTrace> threadTraces = new ArrayList<DaikonTrace>();
+
+		public DaikonTrace(PptTable pptTable) {
+			this.pptTable = pptTable;
+		}
+
+		/**
+		 * Creates a trace from its arrays. Used by the TraceStore.
+		 */
+		DaikonTrace(PptTable pptTable, int[] ppts, int[] payloads, List<ValueTuple> values) {
+			this.pptTable = pptTable;
+			this.ppts = ppts;
+			this.payloads = payloads;
+			this.size = ppts.length;
+			this.values.addAll(values);
+		}
+
+		/**
+		 * Appends an event. The tuple is only kept for wrapper events and
+		 * method entries; for pc entries only the pc is kept.
+		 * 
+		 * @param ppt
+		 * @param val
+		 */
 		public void addPoint(PptTopLevel ppt, ValueTuple val) {
-			trace.add(new Pair<PptTopLevel, ValueTuple>(ppt, val));
+			addPoint(pptTable.intern(ppt), val);
 		}
-		
+
+		public void addPoint(PptDescriptor d, ValueTuple val) {
+			switch (d.kind) {
+			case PC_ENTER:
+				append(d.id, ((Long) val.getValueOrNull(d.pcVar)).intValue());
+				break;
+			case WRAPPER_ENTER:
+			case WRAPPER_EXIT:
+			case METHOD_ENTER:
+				values.add(val);
+				append(d.id, values.size() - 1);
+				break;
+			default:
+				append(d.id, NO_PAYLOAD);
+			}
+		}
+
+		/**
+		 * Appends the entry of the pc method 'ppt' with argument 'pc'
+		 * without creating a ValueTuple.
+		 * 
+		 * @param ppt
+		 * @param pc
+		 */
+		public void addPc(PptTopLevel ppt, int pc) {
+			final PptDescriptor d = pptTable.intern(ppt);
+			Verify.verify(d.kind == PptDescriptor.Kind.PC_ENTER, "Not a pc entry: " + ppt.name);
+			append(d.id, pc);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Adds the events that another thread recorded while this test was
+		 * running (see RecordedTraceReader). The TraceExtractor only slices
+		 * the events of the thread that ran the test; the other threads are
+		 * not part of the fingerprint and are not kept by the TraceStore.
+		 *
+		 * @param threadTrace
+		 */
+		public void addThreadTrace(DaikonTrace threadTrace) {
+			threadTraces.add(threadTrace);
+		}
+
+		public List<DaikonTrace> getThreadTraces() {
+			return threadTraces;
+		}
+
+		public PptTopLevel getPpt(int pos) {
+			return getDescriptor(pos).ppt;
+		}
+
+		public PptDescriptor getDescriptor(int pos) {
+			return pptTable.get(ppts[checkPos(pos)]);
+		}
+
+		public PptTable getPptTable() {
+			return pptTable;
+		}
+
+		/**
+		 * Returns the pc of the pc method entry at 'pos'.
+		 */
+		public long getPc(int pos) {
+			Verify.verify(getDescriptor(pos).kind == PptDescriptor.Kind.PC_ENTER, "Not a pc entry: " + getPpt(pos).name);
+			return payloads[pos];
+		}
+
+		/**
+		 * Returns the values of the event at 'pos' or null if the values of
+		 * this kind of event are not kept.
+		 */
+		public ValueTuple getValues(int pos) {
+			final int payload = payloads[checkPos(pos)];
+			if (getDescriptor(pos).kind == PptDescriptor.Kind.PC_ENTER || payload == NO_PAYLOAD) {
+				return null;
+			}
+			return values.get(payload);
+		}
+
+		public void removeLast() {
+			Verify.verify(size > 0, "Trace is empty.");
+			fingerprint = null;
+			size--;
+			final PptDescriptor.Kind kind = pptTable.get(ppts[size]).kind;
+			if (kind != PptDescriptor.Kind.PC_ENTER && payloads[size] != NO_PAYLOAD
+					&& payloads[size] == values.size() - 1) {
+				values.remove(values.size() - 1);
+			}
+		}
+
+		/**
+		 * Shrinks the event arrays to the size of the trace.
+		 */
+		public void trimToSize() {
+			ppts = Arrays.copyOf(ppts, size);
+			payloads = Arrays.copyOf(payloads, size);
+		}
+
+		int getPptId(int pos) {
+			return ppts[checkPos(pos)];
+		}
+
+		int getPayload(int pos) {
+			return payloads[checkPos(pos)];
+		}
+
+		List<ValueTuple> getValueTuples() {
+			return values;
+		}
+
+		private void append(int id, int payload) {
+			fingerprint = null;
+			if (size == ppts.length) {
+				ppts = Arrays.copyOf(ppts, Math.max(64, 2 * size));
+				payloads = Arrays.copyOf(payloads, ppts.length);
+			}
+			ppts[size] = id;
+			payloads[size] = payload;
+			size++;
+		}
+
+		/**
+		 * Returns the name of the test method that produced this trace,
+		 * e.g., ErrorTest0.test12().
+		 */
+		public String getTestName() {
+			final String name = getPpt(0).name;
+			return name.contains(":::") ? name.substring(0, name.indexOf(":::")) : name;
+		}
+
+		/**
+		 * Returns a hash of everything the TraceExtractor reads from this
+		 * trace except for the entry of the test method: the ppts, the pcs,
+		 * and the values of the wrappers. Object values are hashcodes that
+		 * differ from run to run, so they are numbered in the order in which
+		 * they first occur. The values of method entries are never read and
+		 * are not part of the hash. Ppts are hashed by name, so traces from
+		 * different PptTables can be compared. Two traces with the same fingerprint
+		 * produce the same trace method if their test methods have the same
+		 * code, which only the TraceExtractor can check. The fingerprint is
+		 * computed when the parser hands out the trace.
+		 *
+		 * @return the fingerprint.
+		 */
+		public HashCode getFingerprint() {
+			if (fingerprint == null) {
+				final Hasher hasher = Hashing.murmur3_128().newHasher();
+				final Map<Long, Integer> objectIds = new HashMap<Long, Integer>();
+				for (int i = 1; i < size; i++) {
+					final PptDescriptor d = pptTable.get(ppts[i]);
+					hasher.putLong(d.nameHash);
+					if (d.kind == PptDescriptor.Kind.PC_ENTER) {
+						hasher.putInt(payloads[i]);
+					} else if ((d.kind == PptDescriptor.Kind.WRAPPER_ENTER || d.kind == PptDescriptor.Kind.WRAPPER_EXIT)
+							&& payloads[i] != NO_PAYLOAD) {
+						final ValueTuple vt = values.get(payloads[i]);
+						for (VarInfo vi : d.ppt.var_infos) {
+							putValue(hasher, vi, vt.getValueOrNull(vi), objectIds);
+						}
+					}
+				}
+				fingerprint = hasher.hash();
+			}
+			return fingerprint;
+		}
+
+		private static void putValue(Hasher hasher, VarInfo vi, Object val, Map<Long, Integer> objectIds) {
+			final boolean isObject = vi.file_rep_type == ProglangType.HASHCODE
+					|| vi.file_rep_type == ProglangType.HASHCODE_ARRAY;
+			if (val == null) {
+				hasher.putByte((byte) 0);
+			} else if (val instanceof Long) {
+				hasher.putByte((byte) 1).putLong(isObject ? objectId((Long) val, objectIds) : (Long) val);
+			} else if (val instanceof Double) {
+				hasher.putByte((byte) 2).putDouble((Double) val);
+			} else if (val instanceof String) {
+				hasher.putByte((byte) 3).putInt(((String) val).length()).putUnencodedChars((String) val);
+			} else if (val instanceof long[]) {
+				hasher.putByte((byte) 4).putInt(((long[]) val).length);
+				for (long l : (long[]) val) {
+					hasher.putLong(isObject ? objectId(l, objectIds) : l);
+				}
+			} else if (val instanceof double[]) {
+				hasher.putByte((byte) 5).putInt(((double[]) val).length);
+				for (double dbl : (double[]) val) {
+					hasher.putDouble(dbl);
+				}
+			} else if (val instanceof String[]) {
+				hasher.putByte((byte) 6).putInt(((String[]) val).length);
+				for (String str : (String[]) val) {
+					hasher.putInt(str == null ? -1 : str.length()).putUnencodedChars(str == null ? "" : str);
+				}
+			} else {
+				throw new RuntimeException("Unexpected value " + val + " of " + vi.name());
+			}
+		}
+
+		/**
+		 * Returns the number of the object with hashcode 'hash' in the order
+		 * of first occurrence. The hashcode 0 stands for null and is kept.
+		 */
+		private static long objectId(long hash, Map<Long, Integer> objectIds) {
+			if (hash == 0) {
+				return 0;
+			}
+			Integer id = objectIds.get(hash);
+			if (id == null) {
+				id = objectIds.size() + 1;
+				objectIds.put(hash, id);
+			}
+			return id;
+		}
+
+		private int checkPos(int pos) {
+			if (pos < 0 || pos >= size) {
+				throw new IndexOutOfBoundsException("Position " + pos + " in trace of size " + size);
+			}
+			return pos;
+		}
+
 		@Override
 		public String toString() {
 			StringBuilder sb = new StringBuilder();
-			for (Pair<PptTopLevel, ValueTuple> p : trace) {
-				sb.append(p.a.name());
+			for (int i = 0; i < size; i++) {
+				sb.append(getPpt(i).name());
 				sb.append("; ");
 			}
 			sb.append("\n");
@@ -7,7 +7,10 @@ import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.apache.commons.lang.StringUtils;
+
 import dynslicer.Main;
+import dynslicer.Options;
 
 /**
  * @author schaef
@@ -15,15 +18,130 @@ import dynslicer.Main;
  */
 public class InstrumentationRunner extends AbstractRunner {
 
+	/**
+	 * The generated test classes, which are the entry points of the
+	 * reachability analysis and always instrumented.
+	 */
+	public static final String testClassRegex = "ErrorTest(Driver|\\d+)";
+
 	public void run(final File classDir, File outDir, String classPath) {
+		execute(instrumenterCommand(classDir.getAbsolutePath(), outDir.getAbsolutePath(), classPath));
+	}
+
+	/**
+	 * Instruments the classes in 'inputs' (jar files or class directories)
+	 * and streams them into the jar file 'outJar' without unpacking them.
+	 * 
+	 * @param inputs
+	 * @param outJar
+	 * @param classPath
+	 */
+	public void run(final List<File> inputs, File outJar, String classPath) {
+		List<String> inputPaths = new LinkedList<String>();
+		for (File input : inputs) {
+			inputPaths.add(input.getAbsolutePath());
+		}
+		execute(instrumenterCommand(StringUtils.join(inputPaths, File.pathSeparator), outJar.getAbsolutePath(),
+				classPath));
+	}
+
+	private List<String> instrumenterCommand(String input, String output, String classPath) {
 		final String instrumenterClassPath = classPath + File.pathSeparator + Main.basePath+"lib/instrumenter.jar";
 		List<String> cmd = new LinkedList<String>();
 		cmd.add("java");
 		cmd.add("-classpath");
 		cmd.add(instrumenterClassPath);
 		cmd.add("bc_instrumenter.Main");
-		cmd.add(classDir.getAbsolutePath());
-		cmd.add(outDir.getAbsolutePath());		
-		execute(cmd);
+		cmd.add(input);
+		cmd.add(output);
+		if (Options.v().useBlockSampling()) {
+			cmd.add("-blocks");
+		}
+		if (Options.v().useRecorder()) {
+			cmd.add("-recorder");
+		}
+		if (Options.v().getInstrumentationCacheDir() != null) {
+			cmd.add("-cache");
+			cmd.add(Options.v().getInstrumentationCacheDir().getAbsolutePath());
+		}
+		if (getIncludePattern() != null) {
+			cmd.add("-include");
+			cmd.add(getIncludePattern());
+		}
+		if (Options.v().getInstrumentationExcludePattern() != null) {
+			cmd.add("-exclude");
+			cmd.add(Options.v().getInstrumentationExcludePattern());
+		}
+		if (Options.v().instrumentReachableOnly()) {
+			cmd.add("-reachableFrom");
+			cmd.add(testClassRegex);
+		}
+		if (Options.v().useSharedWrappers()) {
+			cmd.add("-sharedWrappers");
+		}
+		if (Options.v().useThreadAwareTracing()) {
+			cmd.add("-threadIds");
+		}
+		return cmd;
+	}
+
+	/**
+	 * Returns the JVM option that attaches the instrumenter as java agent to
+	 * a JVM. The agent instruments the classes from 'classDir' when they are
+	 * loaded and writes the instrumented classes to 'dumpDir'.
+	 * 
+	 * @param classDir
+	 * @param dumpDir
+	 * @return the -javaagent option.
+	 */
+	public String getAgentOption(final File classDir, File dumpDir) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("-javaagent:");
+		sb.append(Main.basePath + "lib/instrumenter.jar");
+		sb.append("=classDir=");
+		sb.append(classDir.getAbsolutePath());
+		sb.append(",dumpDir=");
+		sb.append(dumpDir.getAbsolutePath());
+		if (Options.v().useBlockSampling()) {
+			sb.append(",blocks=true");
+		}
+		if (Options.v().useRecorder()) {
+			sb.append(",recorder=true");
+		}
+		// the agent arguments are separated by commas, so the cache
+		// directory and the patterns must not contain any.
+		if (Options.v().getInstrumentationCacheDir() != null) {
+			sb.append(",cache=");
+			sb.append(Options.v().getInstrumentationCacheDir().getAbsolutePath());
+		}
+		if (getIncludePattern() != null) {
+			sb.append(",include=");
+			sb.append(getIncludePattern());
+		}
+		if (Options.v().getInstrumentationExcludePattern() != null) {
+			sb.append(",exclude=");
+			sb.append(Options.v().getInstrumentationExcludePattern());
+		}
+		if (Options.v().instrumentReachableOnly()) {
+			sb.append(",reachableFrom=");
+			sb.append(testClassRegex);
+		}
+		if (Options.v().useThreadAwareTracing()) {
+			sb.append(",threadIds=true");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the include pattern for the instrumenter, which also selects
+	 * the generated tests, or null if all methods are included.
+	 * 
+	 * @return the include pattern or null.
+	 */
+	private String getIncludePattern() {
+		if (Options.v().getInstrumentationIncludePattern() == null) {
+			return null;
+		}
+		return "^ErrorTest|" + Options.v().getInstrumentationIncludePattern();
 	}
 }
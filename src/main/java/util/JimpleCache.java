@@ -0,0 +1,402 @@
+/**
+ *
+ */
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.objectweb.asm.ClassReader;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import soot.ClassProvider;
+import soot.ClassSource;
+import soot.FoundFile;
+import soot.JavaClassProvider;
+import soot.JimpleClassProvider;
+import soot.PhaseOptions;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SourceLocator;
+import soot.Type;
+import soot.asm.AsmClassProvider;
+import soot.javaToJimple.IInitialResolver.Dependencies;
+import soot.options.Options;
+
+/**
+ * Persistent cache of the signatures and Jimple bodies of the classes in
+ * the class directory, so that the TraceExtractor does not run Soot's
+ * front end again for classes that did not change. The cache is put in
+ * front of Soot's own class providers (see install). For a class with an
+ * entry, it fills the SootClass from the entry and the bodies are read
+ * from the entry when Soot asks for them. The other classes are loaded by
+ * Soot, and the ones that are loaded with bodies are written to the cache
+ * by storeLoadedClasses.
+ *
+ * An entry is keyed by a context hash that is the same for all classes of
+ * a run (the layout version, the Soot code, the JRE, the classpath except
+ * for the class directory, and the options of the jb pack) and by the class
+ * file. Soot infers the types of locals from the class hierarchy, so an
+ * entry also records the super classes and interfaces of the application
+ * classes that the class refers to, and is only used if they did not
+ * change.
+ *
+ * Like the InstrumentationCache of the instrumenter, entries are written to
+ * a temporary file first and then renamed, and unreadable entries count as
+ * misses.
+ *
+ * @author schaef
+ *
+ */
+public class JimpleCache implements ClassProvider {
+
+	private final File cacheDir;
+	private final File classDir;
+	private final HashCode context;
+
+	/**
+	 * The super class and interfaces of each application class, read from
+	 * the class files when they are needed.
+	 */
+	private final Map<String, List<String>> applicationHierarchy = new HashMap<String, List<String>>();
+
+	/**
+	 * The classes that Soot loaded because there was no entry for them,
+	 * with their entry file and the types they depend on.
+	 */
+	private final Map<String, Miss> missedClasses = new LinkedHashMap<String, Miss>();
+
+	private int hits = 0;
+	private int misses = 0;
+	private int stored = 0;
+
+	/**
+	 * @param cacheDir
+	 * @param classDir
+	 *            the directory of the application classes.
+	 * @param classPath
+	 *            the classpath of the scene. Soot's options have to be set
+	 *            already.
+	 */
+	public JimpleCache(File cacheDir, File classDir, String classPath) {
+		this.cacheDir = cacheDir;
+		this.classDir = classDir;
+		Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putInt(JimpleSerializer.VERSION);
+		hasher.putUnencodedChars(hashSootCode().toString());
+		hasher.putUnencodedChars(System.getProperty("java.home")).putUnencodedChars(System.getProperty("java.version"));
+		hashClassPath(classPath, hasher);
+		hasher.putUnencodedChars(new TreeMap<String, String>(PhaseOptions.v().getPhaseOptions("jb")).toString());
+		hasher.putBoolean(Options.v().keep_line_number()).putBoolean(Options.v().keep_offset());
+		this.context = hasher.hash();
+	}
+
+	/**
+	 * Puts the cache in front of the class providers that Soot uses for
+	 * class files. Has to be called after soot.G.reset.
+	 */
+	public void install() {
+		List<ClassProvider> providers = new LinkedList<ClassProvider>();
+		providers.add(this);
+		// the providers Soot uses for src_prec_class.
+		providers.add(new AsmClassProvider());
+		providers.add(new JimpleClassProvider());
+		providers.add(new JavaClassProvider());
+		SourceLocator.v().setClassProviders(providers);
+	}
+
+	@Override
+	public ClassSource find(String className) {
+		final String fileName = className.replace('.', '/') + ".class";
+		if (!new File(classDir, fileName).isFile()) {
+			return null;
+		}
+		final FoundFile file = SourceLocator.v().lookupInClassPath(fileName);
+		if (file == null) {
+			return null;
+		}
+		final File entry;
+		try {
+			InputStream in = file.inputStream();
+			try {
+				entry = entryFor(ByteStreams.toByteArray(in));
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		} finally {
+			file.close();
+		}
+		if (entry.isFile()) {
+			try {
+				final DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.toByteArray(entry)));
+				final List<String> dependencies = new LinkedList<String>();
+				for (int i = in.readInt(); i > 0; i--) {
+					dependencies.add(in.readUTF());
+				}
+				if (describeHierarchy(dependencies).equals(in.readUTF())) {
+					hits++;
+					return new CachedClassSource(className, dependencies, in);
+				}
+			} catch (IOException e) {
+				// treat unreadable entries as a miss.
+			}
+		}
+		misses++;
+		final ClassSource source = new AsmClassProvider().find(className);
+		return source == null ? null : new RecordingClassSource(className, source, entry);
+	}
+
+	/**
+	 * Writes an entry for each class that Soot loaded with bodies because
+	 * there was no entry for it. This builds the bodies of all their
+	 * methods, so it has to be called right after the scene is loaded,
+	 * before anything changes the bodies.
+	 */
+	public void storeLoadedClasses() {
+		for (Entry<String, Miss> e : missedClasses.entrySet()) {
+			final SootClass sc = Scene.v().getSootClass(e.getKey());
+			if (sc.resolvingLevel() < SootClass.BODIES) {
+				continue;
+			}
+			final Miss miss = e.getValue();
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				final DataOutputStream out = new DataOutputStream(bytes);
+				out.writeInt(miss.dependencies.size());
+				for (String dependency : miss.dependencies) {
+					out.writeUTF(dependency);
+				}
+				out.writeUTF(describeHierarchy(miss.dependencies));
+				JimpleSerializer.writeClass(sc, out);
+				out.flush();
+			} catch (IOException | RuntimeException ex) {
+				// e.g., a tag the serializer does not know, or a body
+				// that Soot cannot build. The class is loaded by Soot
+				// again next time.
+				continue;
+			}
+			try {
+				FileUtils.forceMkdir(miss.entry.getParentFile());
+				File tmp = File.createTempFile(miss.entry.getName(), ".tmp", miss.entry.getParentFile());
+				Files.write(bytes.toByteArray(), tmp);
+				if (!tmp.renameTo(miss.entry)) {
+					// someone else stored the same entry in the meantime.
+					FileUtils.deleteQuietly(tmp);
+				}
+				stored++;
+			} catch (IOException ex) {
+				System.err.println("Failed to write cache entry " + miss.entry.getAbsolutePath() + ": " + ex.getMessage());
+			}
+		}
+		missedClasses.clear();
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+
+	public int getStored() {
+		return stored;
+	}
+
+	private File entryFor(byte[] classBytes) {
+		final Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putBytes(context.asBytes());
+		hasher.putBytes(classBytes);
+		final String key = hasher.hash().toString();
+		return new File(new File(cacheDir, key.substring(0, 2)), key + ".jimple");
+	}
+
+	/**
+	 * Fills a SootClass from an entry of the cache.
+	 */
+	private static class CachedClassSource extends ClassSource {
+		private final List<String> dependencies;
+		private final DataInputStream in;
+
+		CachedClassSource(String className, List<String> dependencies, DataInputStream in) {
+			super(className);
+			this.dependencies = dependencies;
+			this.in = in;
+		}
+
+		@Override
+		public Dependencies resolve(SootClass sc) {
+			try {
+				JimpleSerializer.readClass(sc, in);
+			} catch (IOException e) {
+				throw new RuntimeException("Broken cache entry for " + className, e);
+			}
+			// like Soot's own front end, which only has types to
+			// signatures.
+			final Dependencies deps = new Dependencies();
+			for (String dependency : dependencies) {
+				deps.typesToSignature.add(RefType.v(dependency));
+			}
+			return deps;
+		}
+	}
+
+	/**
+	 * Lets Soot's front end load a class and remembers the types it depends
+	 * on for storeLoadedClasses.
+	 */
+	private class RecordingClassSource extends ClassSource {
+		private final ClassSource source;
+		private final File entry;
+
+		RecordingClassSource(String className, ClassSource source, File entry) {
+			super(className);
+			this.source = source;
+			this.entry = entry;
+		}
+
+		@Override
+		public Dependencies resolve(SootClass sc) {
+			final Dependencies deps = source.resolve(sc);
+			final Set<String> dependencies = new TreeSet<String>();
+			addClassNames(deps.typesToHierarchy, dependencies);
+			addClassNames(deps.typesToSignature, dependencies);
+			missedClasses.put(className, new Miss(entry, dependencies));
+			return deps;
+		}
+
+		@Override
+		public void close() {
+			source.close();
+		}
+	}
+
+	private static class Miss {
+		final File entry;
+		final Collection<String> dependencies;
+
+		Miss(File entry, Collection<String> dependencies) {
+			this.entry = entry;
+			this.dependencies = dependencies;
+		}
+	}
+
+	private static void addClassNames(Collection<Type> types, Set<String> classNames) {
+		for (Type t : types) {
+			if (t instanceof RefType) {
+				classNames.add(((RefType) t).getClassName());
+			}
+		}
+	}
+
+	/**
+	 * Describes the super classes and interfaces of the application
+	 * classes among 'types' and of their application super types.
+	 */
+	private String describeHierarchy(Collection<String> types) {
+		final StringBuilder sb = new StringBuilder();
+		final Set<String> done = new HashSet<String>();
+		final LinkedList<String> todo = new LinkedList<String>(types);
+		while (!todo.isEmpty()) {
+			final String type = todo.removeFirst();
+			final List<String> superTypes = getApplicationSuperTypes(type);
+			if (superTypes != null && done.add(type)) {
+				sb.append(type).append(':').append(superTypes).append(';');
+				todo.addAll(superTypes);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the super class and the interfaces of the application class
+	 * 'className', or null if it is not an application class.
+	 */
+	private List<String> getApplicationSuperTypes(String className) {
+		if (!applicationHierarchy.containsKey(className)) {
+			List<String> superTypes = null;
+			final File classFile = new File(classDir, className.replace('.', '/') + ".class");
+			if (classFile.isFile()) {
+				superTypes = new LinkedList<String>();
+				try {
+					final ClassReader cr = new ClassReader(Files.toByteArray(classFile));
+					if (cr.getSuperName() != null) {
+						superTypes.add(cr.getSuperName().replace('/', '.'));
+					}
+					for (String i : cr.getInterfaces()) {
+						superTypes.add(i.replace('/', '.'));
+					}
+				} catch (IOException | RuntimeException e) {
+					// not a class file Soot can load either.
+					superTypes.add("?");
+				}
+			}
+			applicationHierarchy.put(className, superTypes);
+		}
+		return applicationHierarchy.get(className);
+	}
+
+	/**
+	 * Hashes the entries of the classpath except for the class directory.
+	 * Files are hashed by their size and modification time.
+	 */
+	private void hashClassPath(String classPath, Hasher hasher) {
+		for (String entry : classPath.split(File.pathSeparator)) {
+			final File f = new File(entry).getAbsoluteFile();
+			if (f.equals(classDir.getAbsoluteFile())) {
+				continue;
+			}
+			hasher.putUnencodedChars(f.getPath()).putChar(';');
+			if (f.isFile()) {
+				hasher.putLong(f.length()).putLong(f.lastModified());
+			} else if (f.isDirectory()) {
+				for (File file : new TreeSet<File>(FileUtils.listFiles(f, null, true))) {
+					hasher.putUnencodedChars(file.getPath()).putLong(file.length()).putLong(file.lastModified());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Identifies the Soot jar (or class directory) by its path, size, and
+	 * modification time, so that a new Soot does not reuse old entries.
+	 */
+	private static HashCode hashSootCode() {
+		Hasher hasher = Hashing.sha256().newHasher();
+		try {
+			File codeSource = new File(Scene.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			hasher.putUnencodedChars(codeSource.getAbsolutePath()).putLong(codeSource.length())
+					.putLong(codeSource.lastModified());
+		} catch (URISyntaxException | RuntimeException e) {
+			// no code source, e.g., in an IDE. Entries are still keyed by
+			// everything else.
+		}
+		return hasher.hash();
+	}
+}
@@ -0,0 +1,1198 @@
+/**
+ *
+ */
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import soot.ArrayType;
+import soot.Body;
+import soot.BooleanType;
+import soot.ByteType;
+import soot.CharType;
+import soot.DoubleType;
+import soot.FloatType;
+import soot.IntType;
+import soot.Local;
+import soot.LongType;
+import soot.MethodSource;
+import soot.NullType;
+import soot.RefType;
+import soot.Scene;
+import soot.ShortType;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootFieldRef;
+import soot.SootMethod;
+import soot.SootMethodRef;
+import soot.SootResolver;
+import soot.Trap;
+import soot.Type;
+import soot.Unit;
+import soot.UnitBox;
+import soot.Value;
+import soot.ValueBox;
+import soot.VoidType;
+import soot.jimple.AnyNewExpr;
+import soot.jimple.ArrayRef;
+import soot.jimple.AssignStmt;
+import soot.jimple.BinopExpr;
+import soot.jimple.BreakpointStmt;
+import soot.jimple.CastExpr;
+import soot.jimple.CaughtExceptionRef;
+import soot.jimple.ClassConstant;
+import soot.jimple.DoubleConstant;
+import soot.jimple.DynamicInvokeExpr;
+import soot.jimple.EnterMonitorStmt;
+import soot.jimple.ExitMonitorStmt;
+import soot.jimple.FloatConstant;
+import soot.jimple.GotoStmt;
+import soot.jimple.IdentityStmt;
+import soot.jimple.IfStmt;
+import soot.jimple.InstanceFieldRef;
+import soot.jimple.InstanceInvokeExpr;
+import soot.jimple.InstanceOfExpr;
+import soot.jimple.IntConstant;
+import soot.jimple.InterfaceInvokeExpr;
+import soot.jimple.InvokeExpr;
+import soot.jimple.InvokeStmt;
+import soot.jimple.Jimple;
+import soot.jimple.JimpleBody;
+import soot.jimple.LengthExpr;
+import soot.jimple.LongConstant;
+import soot.jimple.LookupSwitchStmt;
+import soot.jimple.MethodHandle;
+import soot.jimple.MethodType;
+import soot.jimple.NegExpr;
+import soot.jimple.NewArrayExpr;
+import soot.jimple.NewExpr;
+import soot.jimple.NewMultiArrayExpr;
+import soot.jimple.NopStmt;
+import soot.jimple.NullConstant;
+import soot.jimple.ParameterRef;
+import soot.jimple.ReturnStmt;
+import soot.jimple.ReturnVoidStmt;
+import soot.jimple.SpecialInvokeExpr;
+import soot.jimple.StaticFieldRef;
+import soot.jimple.StaticInvokeExpr;
+import soot.jimple.StringConstant;
+import soot.jimple.TableSwitchStmt;
+import soot.jimple.ThisRef;
+import soot.jimple.ThrowStmt;
+import soot.jimple.VirtualInvokeExpr;
+import soot.tagkit.AnnotationAnnotationElem;
+import soot.tagkit.AnnotationArrayElem;
+import soot.tagkit.AnnotationClassElem;
+import soot.tagkit.AnnotationDefaultTag;
+import soot.tagkit.AnnotationDoubleElem;
+import soot.tagkit.AnnotationElem;
+import soot.tagkit.AnnotationEnumElem;
+import soot.tagkit.AnnotationFloatElem;
+import soot.tagkit.AnnotationIntElem;
+import soot.tagkit.AnnotationLongElem;
+import soot.tagkit.AnnotationStringElem;
+import soot.tagkit.AnnotationTag;
+import soot.tagkit.BytecodeOffsetTag;
+import soot.tagkit.DeprecatedTag;
+import soot.tagkit.DoubleConstantValueTag;
+import soot.tagkit.EnclosingMethodTag;
+import soot.tagkit.FloatConstantValueTag;
+import soot.tagkit.Host;
+import soot.tagkit.InnerClassTag;
+import soot.tagkit.IntegerConstantValueTag;
+import soot.tagkit.LineNumberTag;
+import soot.tagkit.LongConstantValueTag;
+import soot.tagkit.SignatureTag;
+import soot.tagkit.SourceFileTag;
+import soot.tagkit.StringConstantValueTag;
+import soot.tagkit.SyntheticTag;
+import soot.tagkit.Tag;
+import soot.tagkit.VisibilityAnnotationTag;
+import soot.tagkit.VisibilityParameterAnnotationTag;
+
+/**
+ * Writes a resolved SootClass, including the Jimple bodies of its methods,
+ * to bytes and reads it back into the scene. Used by the JimpleCache.
+ *
+ * The bodies are written after Soot's jb pack, so reading them back neither
+ * runs the bytecode front end nor the jb pack again. Locals keep their
+ * names (including the ones with a '#' that use-original-names produces)
+ * and statements keep their line numbers.
+ *
+ * Layout of a class:
+ *
+ * <pre>
+ * modifiers, super class, interfaces, outer class, tags,
+ * fields:  per field: name, type, modifiers, tags
+ * methods: per method: name, parameter types, return type, modifiers, exceptions, tags, body
+ * body:    size in bytes (-1 if there is none), locals, statements, traps
+ * </pre>
+ *
+ * Statements and values are written recursively, each starting with a
+ * kind character. Statements refer to locals and jump targets by index.
+ * Everything that cannot be written (e.g., tags that the slicer does not
+ * know) throws an UnsupportedOperationException, and the class is then
+ * not cached.
+ *
+ * @author schaef
+ *
+ */
+final class JimpleSerializer {
+
+	/**
+	 * Has to change whenever the layout changes.
+	 */
+	static final int VERSION = 1;
+
+	private JimpleSerializer() {
+	}
+
+	/**
+	 * Writes the signatures of 'sc' and the bodies of its concrete methods.
+	 * Builds the bodies that do not exist yet, so 'sc' has to be resolved
+	 * to SootClass.BODIES.
+	 */
+	static void writeClass(SootClass sc, DataOutputStream out) throws IOException {
+		out.writeInt(sc.getModifiers());
+		writeNullableString(sc.hasSuperclass() ? sc.getSuperclass().getName() : null, out);
+		out.writeInt(sc.getInterfaceCount());
+		for (SootClass i : sc.getInterfaces()) {
+			out.writeUTF(i.getName());
+		}
+		writeNullableString(sc.hasOuterClass() ? sc.getOuterClass().getName() : null, out);
+		writeTags(sc, out);
+		out.writeInt(sc.getFieldCount());
+		for (SootField f : sc.getFields()) {
+			out.writeUTF(f.getName());
+			writeType(f.getType(), out);
+			out.writeInt(f.getModifiers());
+			writeTags(f, out);
+		}
+		out.writeInt(sc.getMethodCount());
+		for (SootMethod m : sc.getMethods()) {
+			out.writeUTF(m.getName());
+			writeTypes(m.getParameterTypes(), out);
+			writeType(m.getReturnType(), out);
+			out.writeInt(m.getModifiers());
+			out.writeInt(m.getExceptions().size());
+			for (SootClass e : m.getExceptions()) {
+				out.writeUTF(e.getName());
+			}
+			writeTags(m, out);
+			if (m.isConcrete()) {
+				final ByteArrayOutputStream body = new ByteArrayOutputStream();
+				writeBody(m.retrieveActiveBody(), new DataOutputStream(body));
+				out.writeInt(body.size());
+				body.writeTo(out);
+			} else {
+				out.writeInt(-1);
+			}
+		}
+	}
+
+	/**
+	 * Reads the signatures written by writeClass into 'sc'. The bodies are
+	 * only read when Soot asks the source of the method for them.
+	 */
+	static void readClass(SootClass sc, DataInputStream in) throws IOException {
+		sc.setModifiers(in.readInt());
+		final String superName = readNullableString(in);
+		if (superName != null) {
+			sc.setSuperclass(classRef(superName));
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			sc.addInterface(classRef(in.readUTF()));
+		}
+		final String outerName = readNullableString(in);
+		if (outerName != null) {
+			sc.setOuterClass(classRef(outerName));
+		}
+		readTags(sc, in);
+		for (int i = in.readInt(); i > 0; i--) {
+			final String name = in.readUTF();
+			final Type type = readType(in);
+			final SootField f = Scene.v().makeSootField(name, type, in.readInt());
+			readTags(f, in);
+			sc.addField(f);
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			final String name = in.readUTF();
+			final List<Type> parameterTypes = readTypes(in);
+			final Type returnType = readType(in);
+			final int modifiers = in.readInt();
+			final List<SootClass> exceptions = new LinkedList<SootClass>();
+			for (int j = in.readInt(); j > 0; j--) {
+				exceptions.add(classRef(in.readUTF()));
+			}
+			final SootMethod m = Scene.v().makeSootMethod(name, parameterTypes, returnType, modifiers, exceptions);
+			readTags(m, in);
+			final int bodySize = in.readInt();
+			if (bodySize >= 0) {
+				final byte[] body = new byte[bodySize];
+				in.readFully(body);
+				m.setSource(new CachedMethodSource(body));
+			}
+			sc.addMethod(m);
+		}
+	}
+
+	/**
+	 * Builds the body of a method of a cached class from its bytes.
+	 */
+	private static class CachedMethodSource implements MethodSource {
+		private final byte[] body;
+
+		CachedMethodSource(byte[] body) {
+			this.body = body;
+		}
+
+		@Override
+		public Body getBody(SootMethod m, String phaseName) {
+			try {
+				return readBody(m, new DataInputStream(new ByteArrayInputStream(body)));
+			} catch (IOException e) {
+				// the bytes are in memory, so this is a broken entry.
+				throw new RuntimeException("Broken cached body of " + m.getSignature(), e);
+			}
+		}
+	}
+
+	private static void writeBody(Body body, DataOutputStream out) throws IOException {
+		if (!body.getTags().isEmpty()) {
+			throw new UnsupportedOperationException("Body tags of " + body.getMethod().getSignature());
+		}
+		final Map<Local, Integer> locals = new HashMap<Local, Integer>();
+		out.writeInt(body.getLocalCount());
+		for (Local l : body.getLocals()) {
+			locals.put(l, locals.size());
+			out.writeUTF(l.getName());
+			writeType(l.getType(), out);
+		}
+		final Map<Unit, Integer> units = new HashMap<Unit, Integer>();
+		for (Unit u : body.getUnits()) {
+			units.put(u, units.size());
+		}
+		out.writeInt(units.size());
+		for (Unit u : body.getUnits()) {
+			writeStmt(u, locals, out);
+			out.writeInt(u.getUnitBoxes().size());
+			for (UnitBox ub : u.getUnitBoxes()) {
+				out.writeInt(indexOf(ub.getUnit(), units));
+			}
+			writeUnitTags(u, out);
+			for (ValueBox vb : u.getUseAndDefBoxes()) {
+				if (!vb.getTags().isEmpty()) {
+					throw new UnsupportedOperationException("Value tags in " + u);
+				}
+			}
+		}
+		out.writeInt(body.getTraps().size());
+		for (Trap t : body.getTraps()) {
+			out.writeUTF(t.getException().getName());
+			out.writeInt(indexOf(t.getBeginUnit(), units));
+			out.writeInt(indexOf(t.getEndUnit(), units));
+			out.writeInt(indexOf(t.getHandlerUnit(), units));
+		}
+	}
+
+	private static JimpleBody readBody(SootMethod m, DataInputStream in) throws IOException {
+		final JimpleBody body = Jimple.v().newBody(m);
+		final List<Local> locals = new ArrayList<Local>();
+		for (int i = in.readInt(); i > 0; i--) {
+			final String name = in.readUTF();
+			final Local l = Jimple.v().newLocal(name, readType(in));
+			locals.add(l);
+			body.getLocals().add(l);
+		}
+		final int numUnits = in.readInt();
+		final List<Unit> units = new ArrayList<Unit>(numUnits);
+		final List<int[]> targets = new ArrayList<int[]>(numUnits);
+		for (int i = 0; i < numUnits; i++) {
+			final Unit u = readStmt(locals, in);
+			final int[] unitTargets = new int[in.readInt()];
+			for (int j = 0; j < unitTargets.length; j++) {
+				unitTargets[j] = in.readInt();
+			}
+			readUnitTags(u, in);
+			units.add(u);
+			targets.add(unitTargets);
+			body.getUnits().add(u);
+		}
+		// the jump targets can only be set once all statements exist.
+		for (int i = 0; i < numUnits; i++) {
+			final List<UnitBox> boxes = units.get(i).getUnitBoxes();
+			final int[] unitTargets = targets.get(i);
+			if (boxes.size() != unitTargets.length) {
+				throw new IOException("Wrong number of targets for " + units.get(i));
+			}
+			for (int j = 0; j < unitTargets.length; j++) {
+				boxes.get(j).setUnit(units.get(unitTargets[j]));
+			}
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			final SootClass exception = classRef(in.readUTF());
+			final Unit begin = units.get(in.readInt());
+			final Unit end = units.get(in.readInt());
+			final Unit handler = units.get(in.readInt());
+			body.getTraps().add(Jimple.v().newTrap(exception, begin, end, handler));
+		}
+		return body;
+	}
+
+	private static int indexOf(Unit u, Map<Unit, Integer> units) {
+		final Integer idx = units.get(u);
+		if (idx == null) {
+			throw new UnsupportedOperationException("Target is not in the body: " + u);
+		}
+		return idx;
+	}
+
+	private static void writeStmt(Unit u, Map<Local, Integer> locals, DataOutputStream out) throws IOException {
+		if (u instanceof IdentityStmt) {
+			out.writeByte('i');
+			writeValue(((IdentityStmt) u).getLeftOp(), locals, out);
+			writeValue(((IdentityStmt) u).getRightOp(), locals, out);
+		} else if (u instanceof AssignStmt) {
+			out.writeByte('a');
+			writeValue(((AssignStmt) u).getLeftOp(), locals, out);
+			writeValue(((AssignStmt) u).getRightOp(), locals, out);
+		} else if (u instanceof InvokeStmt) {
+			out.writeByte('v');
+			writeValue(((InvokeStmt) u).getInvokeExpr(), locals, out);
+		} else if (u instanceof ReturnStmt) {
+			out.writeByte('r');
+			writeValue(((ReturnStmt) u).getOp(), locals, out);
+		} else if (u instanceof ReturnVoidStmt) {
+			out.writeByte('R');
+		} else if (u instanceof IfStmt) {
+			out.writeByte('f');
+			writeValue(((IfStmt) u).getCondition(), locals, out);
+		} else if (u instanceof GotoStmt) {
+			out.writeByte('g');
+		} else if (u instanceof TableSwitchStmt) {
+			final TableSwitchStmt s = (TableSwitchStmt) u;
+			out.writeByte('t');
+			writeValue(s.getKey(), locals, out);
+			out.writeInt(s.getLowIndex());
+			out.writeInt(s.getHighIndex());
+		} else if (u instanceof LookupSwitchStmt) {
+			final LookupSwitchStmt s = (LookupSwitchStmt) u;
+			out.writeByte('l');
+			writeValue(s.getKey(), locals, out);
+			out.writeInt(s.getTargetCount());
+			for (int i = 0; i < s.getTargetCount(); i++) {
+				out.writeInt(s.getLookupValue(i));
+			}
+		} else if (u instanceof ThrowStmt) {
+			out.writeByte('T');
+			writeValue(((ThrowStmt) u).getOp(), locals, out);
+		} else if (u instanceof EnterMonitorStmt) {
+			out.writeByte('e');
+			writeValue(((EnterMonitorStmt) u).getOp(), locals, out);
+		} else if (u instanceof ExitMonitorStmt) {
+			out.writeByte('x');
+			writeValue(((ExitMonitorStmt) u).getOp(), locals, out);
+		} else if (u instanceof NopStmt) {
+			out.writeByte('n');
+		} else if (u instanceof BreakpointStmt) {
+			out.writeByte('b');
+		} else {
+			throw new UnsupportedOperationException("Statement " + u.getClass().getName());
+		}
+	}
+
+	private static Unit readStmt(List<Local> locals, DataInputStream in) throws IOException {
+		final Jimple j = Jimple.v();
+		final char kind = (char) in.readByte();
+		switch (kind) {
+		case 'i': {
+			final Value left = readValue(locals, in);
+			return j.newIdentityStmt(left, readValue(locals, in));
+		}
+		case 'a': {
+			final Value left = readValue(locals, in);
+			return j.newAssignStmt(left, readValue(locals, in));
+		}
+		case 'v':
+			return j.newInvokeStmt(readValue(locals, in));
+		case 'r':
+			return j.newReturnStmt(readValue(locals, in));
+		case 'R':
+			return j.newReturnVoidStmt();
+		case 'f':
+			return j.newIfStmt(readValue(locals, in), (Unit) null);
+		case 'g':
+			return j.newGotoStmt((Unit) null);
+		case 't': {
+			final Value key = readValue(locals, in);
+			final int low = in.readInt();
+			final int high = in.readInt();
+			final List<Unit> targets = new ArrayList<Unit>();
+			for (int i = low; i <= high; i++) {
+				targets.add(null);
+			}
+			return j.newTableSwitchStmt(key, low, high, targets, (Unit) null);
+		}
+		case 'l': {
+			final Value key = readValue(locals, in);
+			final List<IntConstant> values = new ArrayList<IntConstant>();
+			final List<Unit> targets = new ArrayList<Unit>();
+			for (int i = in.readInt(); i > 0; i--) {
+				values.add(IntConstant.v(in.readInt()));
+				targets.add(null);
+			}
+			return j.newLookupSwitchStmt(key, values, targets, (Unit) null);
+		}
+		case 'T':
+			return j.newThrowStmt(readValue(locals, in));
+		case 'e':
+			return j.newEnterMonitorStmt(readValue(locals, in));
+		case 'x':
+			return j.newExitMonitorStmt(readValue(locals, in));
+		case 'n':
+			return j.newNopStmt();
+		case 'b':
+			return j.newBreakpointStmt();
+		default:
+			throw new IOException("Unknown statement kind " + kind);
+		}
+	}
+
+	private static void writeValue(Value v, Map<Local, Integer> locals, DataOutputStream out) throws IOException {
+		if (v instanceof Local) {
+			out.writeByte('l');
+			out.writeInt(locals.get(v));
+		} else if (v instanceof IntConstant) {
+			out.writeByte('i');
+			out.writeInt(((IntConstant) v).value);
+		} else if (v instanceof LongConstant) {
+			out.writeByte('j');
+			out.writeLong(((LongConstant) v).value);
+		} else if (v instanceof FloatConstant) {
+			out.writeByte('f');
+			out.writeFloat(((FloatConstant) v).value);
+		} else if (v instanceof DoubleConstant) {
+			out.writeByte('d');
+			out.writeDouble(((DoubleConstant) v).value);
+		} else if (v instanceof StringConstant) {
+			out.writeByte('s');
+			out.writeUTF(((StringConstant) v).value);
+		} else if (v instanceof NullConstant) {
+			out.writeByte('n');
+		} else if (v instanceof ClassConstant) {
+			out.writeByte('c');
+			out.writeUTF(((ClassConstant) v).value);
+		} else if (v instanceof MethodHandle) {
+			final MethodHandle h = (MethodHandle) v;
+			out.writeByte('h');
+			out.writeInt(h.getKind());
+			if (h.isFieldRef()) {
+				writeFieldRef(h.getFieldRef(), out);
+			} else {
+				writeMethodRef(h.getMethodRef(), out);
+			}
+		} else if (v instanceof MethodType) {
+			out.writeByte('y');
+			writeTypes(((MethodType) v).getParameterTypes(), out);
+			writeType(((MethodType) v).getReturnType(), out);
+		} else if (v instanceof ThisRef) {
+			out.writeByte('T');
+			writeType(v.getType(), out);
+		} else if (v instanceof ParameterRef) {
+			out.writeByte('P');
+			writeType(v.getType(), out);
+			out.writeInt(((ParameterRef) v).getIndex());
+		} else if (v instanceof CaughtExceptionRef) {
+			out.writeByte('E');
+		} else if (v instanceof ArrayRef) {
+			out.writeByte('A');
+			writeValue(((ArrayRef) v).getBase(), locals, out);
+			writeValue(((ArrayRef) v).getIndex(), locals, out);
+		} else if (v instanceof InstanceFieldRef) {
+			out.writeByte('F');
+			writeValue(((InstanceFieldRef) v).getBase(), locals, out);
+			writeFieldRef(((InstanceFieldRef) v).getFieldRef(), out);
+		} else if (v instanceof StaticFieldRef) {
+			out.writeByte('G');
+			writeFieldRef(((StaticFieldRef) v).getFieldRef(), out);
+		} else if (v instanceof BinopExpr) {
+			// the symbols of the Jimple operators are distinct.
+			out.writeByte('b');
+			out.writeUTF(((BinopExpr) v).getSymbol().trim());
+			writeValue(((BinopExpr) v).getOp1(), locals, out);
+			writeValue(((BinopExpr) v).getOp2(), locals, out);
+		} else if (v instanceof NegExpr) {
+			out.writeByte('m');
+			writeValue(((NegExpr) v).getOp(), locals, out);
+		} else if (v instanceof LengthExpr) {
+			out.writeByte('L');
+			writeValue(((LengthExpr) v).getOp(), locals, out);
+		} else if (v instanceof CastExpr) {
+			out.writeByte('C');
+			writeValue(((CastExpr) v).getOp(), locals, out);
+			writeType(((CastExpr) v).getCastType(), out);
+		} else if (v instanceof InstanceOfExpr) {
+			out.writeByte('I');
+			writeValue(((InstanceOfExpr) v).getOp(), locals, out);
+			writeType(((InstanceOfExpr) v).getCheckType(), out);
+		} else if (v instanceof AnyNewExpr) {
+			writeNewExpr((AnyNewExpr) v, locals, out);
+		} else if (v instanceof InvokeExpr) {
+			writeInvokeExpr((InvokeExpr) v, locals, out);
+		} else {
+			throw new UnsupportedOperationException("Value " + v.getClass().getName());
+		}
+	}
+
+	private static void writeNewExpr(AnyNewExpr v, Map<Local, Integer> locals, DataOutputStream out)
+			throws IOException {
+		if (v instanceof NewExpr) {
+			out.writeByte('N');
+			writeType(((NewExpr) v).getBaseType(), out);
+		} else if (v instanceof NewArrayExpr) {
+			out.writeByte('a');
+			writeType(((NewArrayExpr) v).getBaseType(), out);
+			writeValue(((NewArrayExpr) v).getSize(), locals, out);
+		} else if (v instanceof NewMultiArrayExpr) {
+			final NewMultiArrayExpr e = (NewMultiArrayExpr) v;
+			out.writeByte('M');
+			writeType(e.getBaseType(), out);
+			out.writeInt(e.getSizeCount());
+			for (Value size : e.getSizes()) {
+				writeValue(size, locals, out);
+			}
+		} else {
+			throw new UnsupportedOperationException("Value " + v.getClass().getName());
+		}
+	}
+
+	private static void writeInvokeExpr(InvokeExpr v, Map<Local, Integer> locals, DataOutputStream out)
+			throws IOException {
+		if (v instanceof VirtualInvokeExpr) {
+			out.writeByte('V');
+		} else if (v instanceof SpecialInvokeExpr) {
+			out.writeByte('S');
+		} else if (v instanceof InterfaceInvokeExpr) {
+			out.writeByte('K');
+		} else if (v instanceof StaticInvokeExpr) {
+			out.writeByte('Z');
+		} else if (v instanceof DynamicInvokeExpr) {
+			final DynamicInvokeExpr d = (DynamicInvokeExpr) v;
+			out.writeByte('D');
+			writeMethodRef(d.getBootstrapMethodRef(), out);
+			writeValues(d.getBootstrapArgs(), locals, out);
+			out.writeInt(d.getHandleTag());
+		} else {
+			throw new UnsupportedOperationException("Value " + v.getClass().getName());
+		}
+		if (v instanceof InstanceInvokeExpr) {
+			writeValue(((InstanceInvokeExpr) v).getBase(), locals, out);
+		}
+		writeMethodRef(v.getMethodRef(), out);
+		writeValues(v.getArgs(), locals, out);
+	}
+
+	private static void writeValues(List<Value> values, Map<Local, Integer> locals, DataOutputStream out)
+			throws IOException {
+		out.writeInt(values.size());
+		for (Value v : values) {
+			writeValue(v, locals, out);
+		}
+	}
+
+	private static List<Value> readValues(List<Local> locals, DataInputStream in) throws IOException {
+		final List<Value> values = new ArrayList<Value>();
+		for (int i = in.readInt(); i > 0; i--) {
+			values.add(readValue(locals, in));
+		}
+		return values;
+	}
+
+	private static Value readValue(List<Local> locals, DataInputStream in) throws IOException {
+		final Jimple j = Jimple.v();
+		final char kind = (char) in.readByte();
+		switch (kind) {
+		case 'l':
+			return locals.get(in.readInt());
+		case 'i':
+			return IntConstant.v(in.readInt());
+		case 'j':
+			return LongConstant.v(in.readLong());
+		case 'f':
+			return FloatConstant.v(in.readFloat());
+		case 'd':
+			return DoubleConstant.v(in.readDouble());
+		case 's':
+			return StringConstant.v(in.readUTF());
+		case 'n':
+			return NullConstant.v();
+		case 'c':
+			return ClassConstant.v(in.readUTF());
+		case 'h': {
+			final int handleKind = in.readInt();
+			if (MethodHandle.isFieldRef(handleKind)) {
+				return MethodHandle.v(readFieldRef(in), handleKind);
+			}
+			return MethodHandle.v(readMethodRef(in), handleKind);
+		}
+		case 'y': {
+			final List<Type> parameterTypes = readTypes(in);
+			return MethodType.v(parameterTypes, readType(in));
+		}
+		case 'T':
+			return j.newThisRef((RefType) readType(in));
+		case 'P': {
+			final Type type = readType(in);
+			return j.newParameterRef(type, in.readInt());
+		}
+		case 'E':
+			return j.newCaughtExceptionRef();
+		case 'A': {
+			final Value base = readValue(locals, in);
+			return j.newArrayRef(base, readValue(locals, in));
+		}
+		case 'F': {
+			final Value base = readValue(locals, in);
+			return j.newInstanceFieldRef(base, readFieldRef(in));
+		}
+		case 'G':
+			return j.newStaticFieldRef(readFieldRef(in));
+		case 'b':
+			return readBinopExpr(in.readUTF(), locals, in);
+		case 'm':
+			return j.newNegExpr(readValue(locals, in));
+		case 'L':
+			return j.newLengthExpr(readValue(locals, in));
+		case 'C': {
+			final Value op = readValue(locals, in);
+			return j.newCastExpr(op, readType(in));
+		}
+		case 'I': {
+			final Value op = readValue(locals, in);
+			return j.newInstanceOfExpr(op, readType(in));
+		}
+		case 'N':
+			return j.newNewExpr((RefType) readType(in));
+		case 'a': {
+			final Type baseType = readType(in);
+			return j.newNewArrayExpr(baseType, readValue(locals, in));
+		}
+		case 'M': {
+			final ArrayType baseType = (ArrayType) readType(in);
+			return j.newNewMultiArrayExpr(baseType, readValues(locals, in));
+		}
+		case 'V': {
+			final Local base = (Local) readValue(locals, in);
+			final SootMethodRef ref = readMethodRef(in);
+			return j.newVirtualInvokeExpr(base, ref, readValues(locals, in));
+		}
+		case 'S': {
+			final Local base = (Local) readValue(locals, in);
+			final SootMethodRef ref = readMethodRef(in);
+			return j.newSpecialInvokeExpr(base, ref, readValues(locals, in));
+		}
+		case 'K': {
+			final Local base = (Local) readValue(locals, in);
+			final SootMethodRef ref = readMethodRef(in);
+			return j.newInterfaceInvokeExpr(base, ref, readValues(locals, in));
+		}
+		case 'Z': {
+			final SootMethodRef ref = readMethodRef(in);
+			return j.newStaticInvokeExpr(ref, readValues(locals, in));
+		}
+		case 'D': {
+			final SootMethodRef bootstrapRef = readMethodRef(in);
+			final List<Value> bootstrapArgs = readValues(locals, in);
+			final int tag = in.readInt();
+			final SootMethodRef ref = readMethodRef(in);
+			return j.newDynamicInvokeExpr(bootstrapRef, bootstrapArgs, ref, tag, readValues(locals, in));
+		}
+		default:
+			throw new IOException("Unknown value kind " + kind);
+		}
+	}
+
+	private static Value readBinopExpr(String symbol, List<Local> locals, DataInputStream in) throws IOException {
+		final Jimple j = Jimple.v();
+		final Value op1 = readValue(locals, in);
+		final Value op2 = readValue(locals, in);
+		switch (symbol) {
+		case "+":
+			return j.newAddExpr(op1, op2);
+		case "-":
+			return j.newSubExpr(op1, op2);
+		case "*":
+			return j.newMulExpr(op1, op2);
+		case "/":
+			return j.newDivExpr(op1, op2);
+		case "%":
+			return j.newRemExpr(op1, op2);
+		case "&":
+			return j.newAndExpr(op1, op2);
+		case "|":
+			return j.newOrExpr(op1, op2);
+		case "^":
+			return j.newXorExpr(op1, op2);
+		case "<<":
+			return j.newShlExpr(op1, op2);
+		case ">>":
+			return j.newShrExpr(op1, op2);
+		case ">>>":
+			return j.newUshrExpr(op1, op2);
+		case "cmp":
+			return j.newCmpExpr(op1, op2);
+		case "cmpl":
+			return j.newCmplExpr(op1, op2);
+		case "cmpg":
+			return j.newCmpgExpr(op1, op2);
+		case "==":
+			return j.newEqExpr(op1, op2);
+		case "!=":
+			return j.newNeExpr(op1, op2);
+		case ">=":
+			return j.newGeExpr(op1, op2);
+		case ">":
+			return j.newGtExpr(op1, op2);
+		case "<=":
+			return j.newLeExpr(op1, op2);
+		case "<":
+			return j.newLtExpr(op1, op2);
+		default:
+			throw new IOException("Unknown operator " + symbol);
+		}
+	}
+
+	private static void writeMethodRef(SootMethodRef ref, DataOutputStream out) throws IOException {
+		out.writeUTF(ref.declaringClass().getName());
+		out.writeUTF(ref.name());
+		writeTypes(ref.parameterTypes(), out);
+		writeType(ref.returnType(), out);
+		out.writeBoolean(ref.isStatic());
+	}
+
+	private static SootMethodRef readMethodRef(DataInputStream in) throws IOException {
+		final SootClass declaringClass = classRef(in.readUTF());
+		final String name = in.readUTF();
+		final List<Type> parameterTypes = readTypes(in);
+		final Type returnType = readType(in);
+		return Scene.v().makeMethodRef(declaringClass, name, parameterTypes, returnType, in.readBoolean());
+	}
+
+	private static void writeFieldRef(SootFieldRef ref, DataOutputStream out) throws IOException {
+		out.writeUTF(ref.declaringClass().getName());
+		out.writeUTF(ref.name());
+		writeType(ref.type(), out);
+		out.writeBoolean(ref.isStatic());
+	}
+
+	private static SootFieldRef readFieldRef(DataInputStream in) throws IOException {
+		final SootClass declaringClass = classRef(in.readUTF());
+		final String name = in.readUTF();
+		final Type type = readType(in);
+		return Scene.v().makeFieldRef(declaringClass, name, type, in.readBoolean());
+	}
+
+	private static void writeTypes(List<Type> types, DataOutputStream out) throws IOException {
+		out.writeInt(types.size());
+		for (Type t : types) {
+			writeType(t, out);
+		}
+	}
+
+	private static List<Type> readTypes(DataInputStream in) throws IOException {
+		final List<Type> types = new ArrayList<Type>();
+		for (int i = in.readInt(); i > 0; i--) {
+			types.add(readType(in));
+		}
+		return types;
+	}
+
+	private static void writeType(Type t, DataOutputStream out) throws IOException {
+		if (t instanceof RefType) {
+			out.writeByte('L');
+			out.writeUTF(((RefType) t).getClassName());
+		} else if (t instanceof ArrayType) {
+			out.writeByte('[');
+			out.writeInt(((ArrayType) t).numDimensions);
+			writeType(((ArrayType) t).baseType, out);
+		} else if (t instanceof IntType) {
+			out.writeByte('I');
+		} else if (t instanceof LongType) {
+			out.writeByte('J');
+		} else if (t instanceof FloatType) {
+			out.writeByte('F');
+		} else if (t instanceof DoubleType) {
+			out.writeByte('D');
+		} else if (t instanceof BooleanType) {
+			out.writeByte('Z');
+		} else if (t instanceof ByteType) {
+			out.writeByte('B');
+		} else if (t instanceof CharType) {
+			out.writeByte('C');
+		} else if (t instanceof ShortType) {
+			out.writeByte('S');
+		} else if (t instanceof VoidType) {
+			out.writeByte('V');
+		} else if (t instanceof NullType) {
+			out.writeByte('N');
+		} else {
+			throw new UnsupportedOperationException("Type " + t);
+		}
+	}
+
+	private static Type readType(DataInputStream in) throws IOException {
+		final char kind = (char) in.readByte();
+		switch (kind) {
+		case 'L':
+			return RefType.v(in.readUTF());
+		case '[': {
+			final int numDimensions = in.readInt();
+			return ArrayType.v(readType(in), numDimensions);
+		}
+		case 'I':
+			return IntType.v();
+		case 'J':
+			return LongType.v();
+		case 'F':
+			return FloatType.v();
+		case 'D':
+			return DoubleType.v();
+		case 'Z':
+			return BooleanType.v();
+		case 'B':
+			return ByteType.v();
+		case 'C':
+			return CharType.v();
+		case 'S':
+			return ShortType.v();
+		case 'V':
+			return VoidType.v();
+		case 'N':
+			return NullType.v();
+		default:
+			throw new IOException("Unknown type kind " + kind);
+		}
+	}
+
+	/**
+	 * The line numbers are the only tags the front end puts on statements
+	 * (and the bytecode offsets if Soot keeps them).
+	 */
+	private static void writeUnitTags(Unit u, DataOutputStream out) throws IOException {
+		out.writeInt(u.getTags().size());
+		for (Tag t : u.getTags()) {
+			if (t instanceof LineNumberTag) {
+				out.writeByte('l');
+				out.writeInt(((LineNumberTag) t).getLineNumber());
+			} else if (t instanceof BytecodeOffsetTag) {
+				out.writeByte('o');
+				out.writeInt(((BytecodeOffsetTag) t).getBytecodeOffset());
+			} else {
+				throw new UnsupportedOperationException("Tag " + t.getClass().getName() + " on " + u);
+			}
+		}
+	}
+
+	private static void readUnitTags(Unit u, DataInputStream in) throws IOException {
+		for (int i = in.readInt(); i > 0; i--) {
+			final char kind = (char) in.readByte();
+			if (kind == 'l') {
+				u.addTag(new LineNumberTag(in.readInt()));
+			} else if (kind == 'o') {
+				u.addTag(new BytecodeOffsetTag(in.readInt()));
+			} else {
+				throw new IOException("Unknown unit tag kind " + kind);
+			}
+		}
+	}
+
+	/**
+	 * Writes the tags that the front end puts on classes, fields, and
+	 * methods.
+	 */
+	private static void writeTags(Host h, DataOutputStream out) throws IOException {
+		out.writeInt(h.getTags().size());
+		for (Tag t : h.getTags()) {
+			if (t instanceof SourceFileTag) {
+				out.writeByte('F');
+				writeNullableString(((SourceFileTag) t).getSourceFile(), out);
+				writeNullableString(((SourceFileTag) t).getAbsolutePath(), out);
+			} else if (t instanceof SignatureTag) {
+				out.writeByte('S');
+				out.writeUTF(((SignatureTag) t).getSignature());
+			} else if (t instanceof InnerClassTag) {
+				final InnerClassTag ic = (InnerClassTag) t;
+				out.writeByte('I');
+				writeNullableString(ic.getInnerClass(), out);
+				writeNullableString(ic.getOuterClass(), out);
+				writeNullableString(ic.getShortName(), out);
+				out.writeInt(ic.getAccessFlags());
+			} else if (t instanceof EnclosingMethodTag) {
+				final EnclosingMethodTag em = (EnclosingMethodTag) t;
+				out.writeByte('E');
+				writeNullableString(em.getEnclosingClass(), out);
+				writeNullableString(em.getEnclosingMethod(), out);
+				writeNullableString(em.getEnclosingMethodSig(), out);
+			} else if (t instanceof DeprecatedTag) {
+				out.writeByte('D');
+			} else if (t instanceof SyntheticTag) {
+				out.writeByte('s');
+			} else if (t instanceof IntegerConstantValueTag) {
+				out.writeByte('i');
+				out.writeInt(((IntegerConstantValueTag) t).getIntValue());
+			} else if (t instanceof LongConstantValueTag) {
+				out.writeByte('j');
+				out.writeLong(((LongConstantValueTag) t).getLongValue());
+			} else if (t instanceof FloatConstantValueTag) {
+				out.writeByte('f');
+				out.writeFloat(((FloatConstantValueTag) t).getFloatValue());
+			} else if (t instanceof DoubleConstantValueTag) {
+				out.writeByte('d');
+				out.writeDouble(((DoubleConstantValueTag) t).getDoubleValue());
+			} else if (t instanceof StringConstantValueTag) {
+				out.writeByte('c');
+				out.writeUTF(((StringConstantValueTag) t).getStringValue());
+			} else if (t instanceof VisibilityAnnotationTag) {
+				out.writeByte('A');
+				writeAnnotations((VisibilityAnnotationTag) t, out);
+			} else if (t instanceof VisibilityParameterAnnotationTag) {
+				final VisibilityParameterAnnotationTag p = (VisibilityParameterAnnotationTag) t;
+				out.writeByte('P');
+				out.writeInt(p.getKind());
+				out.writeInt(p.getVisibilityAnnotations().size());
+				for (VisibilityAnnotationTag a : p.getVisibilityAnnotations()) {
+					out.writeBoolean(a != null);
+					if (a != null) {
+						writeAnnotations(a, out);
+					}
+				}
+			} else if (t instanceof AnnotationDefaultTag) {
+				out.writeByte('a');
+				writeAnnotationElem(((AnnotationDefaultTag) t).getDefaultVal(), out);
+			} else {
+				throw new UnsupportedOperationException("Tag " + t.getClass().getName() + " on " + h);
+			}
+		}
+	}
+
+	private static void readTags(Host h, DataInputStream in) throws IOException {
+		for (int i = in.readInt(); i > 0; i--) {
+			final char kind = (char) in.readByte();
+			switch (kind) {
+			case 'F': {
+				final String sourceFile = readNullableString(in);
+				h.addTag(new SourceFileTag(sourceFile, readNullableString(in)));
+				break;
+			}
+			case 'S':
+				h.addTag(new SignatureTag(in.readUTF()));
+				break;
+			case 'I': {
+				final String innerClass = readNullableString(in);
+				final String outerClass = readNullableString(in);
+				final String shortName = readNullableString(in);
+				h.addTag(new InnerClassTag(innerClass, outerClass, shortName, in.readInt()));
+				break;
+			}
+			case 'E': {
+				final String enclosingClass = readNullableString(in);
+				final String enclosingMethod = readNullableString(in);
+				h.addTag(new EnclosingMethodTag(enclosingClass, enclosingMethod, readNullableString(in)));
+				break;
+			}
+			case 'D':
+				h.addTag(new DeprecatedTag());
+				break;
+			case 's':
+				h.addTag(new SyntheticTag());
+				break;
+			case 'i':
+				h.addTag(new IntegerConstantValueTag(in.readInt()));
+				break;
+			case 'j':
+				h.addTag(new LongConstantValueTag(in.readLong()));
+				break;
+			case 'f':
+				h.addTag(new FloatConstantValueTag(in.readFloat()));
+				break;
+			case 'd':
+				h.addTag(new DoubleConstantValueTag(in.readDouble()));
+				break;
+			case 'c':
+				h.addTag(new StringConstantValueTag(in.readUTF()));
+				break;
+			case 'A':
+				h.addTag(readAnnotations(in));
+				break;
+			case 'P': {
+				final int parameterKind = in.readInt();
+				final int numParameters = in.readInt();
+				final VisibilityParameterAnnotationTag p = new VisibilityParameterAnnotationTag(numParameters,
+						parameterKind);
+				for (int j = 0; j < numParameters; j++) {
+					p.addVisibilityAnnotation(in.readBoolean() ? readAnnotations(in) : null);
+				}
+				h.addTag(p);
+				break;
+			}
+			case 'a':
+				h.addTag(new AnnotationDefaultTag(readAnnotationElem(in)));
+				break;
+			default:
+				throw new IOException("Unknown tag kind " + kind);
+			}
+		}
+	}
+
+	private static void writeAnnotations(VisibilityAnnotationTag t, DataOutputStream out) throws IOException {
+		out.writeInt(t.getVisibility());
+		final List<AnnotationTag> annotations = t.getAnnotations() == null ? new LinkedList<AnnotationTag>()
+				: t.getAnnotations();
+		out.writeInt(annotations.size());
+		for (AnnotationTag a : annotations) {
+			writeAnnotation(a, out);
+		}
+	}
+
+	private static VisibilityAnnotationTag readAnnotations(DataInputStream in) throws IOException {
+		final VisibilityAnnotationTag t = new VisibilityAnnotationTag(in.readInt());
+		for (int i = in.readInt(); i > 0; i--) {
+			t.addAnnotation(readAnnotation(in));
+		}
+		return t;
+	}
+
+	private static void writeAnnotation(AnnotationTag a, DataOutputStream out) throws IOException {
+		out.writeUTF(a.getType());
+		final Collection<AnnotationElem> elems = a.getElems();
+		out.writeInt(elems.size());
+		for (AnnotationElem e : elems) {
+			writeAnnotationElem(e, out);
+		}
+	}
+
+	private static AnnotationTag readAnnotation(DataInputStream in) throws IOException {
+		final String type = in.readUTF();
+		final List<AnnotationElem> elems = new ArrayList<AnnotationElem>();
+		for (int i = in.readInt(); i > 0; i--) {
+			elems.add(readAnnotationElem(in));
+		}
+		return new AnnotationTag(type, elems);
+	}
+
+	private static void writeAnnotationElem(AnnotationElem e, DataOutputStream out) throws IOException {
+		if (e instanceof AnnotationIntElem) {
+			out.writeByte('i');
+			out.writeInt(((AnnotationIntElem) e).getValue());
+		} else if (e instanceof AnnotationLongElem) {
+			out.writeByte('j');
+			out.writeLong(((AnnotationLongElem) e).getValue());
+		} else if (e instanceof AnnotationFloatElem) {
+			out.writeByte('f');
+			out.writeFloat(((AnnotationFloatElem) e).getValue());
+		} else if (e instanceof AnnotationDoubleElem) {
+			out.writeByte('d');
+			out.writeDouble(((AnnotationDoubleElem) e).getValue());
+		} else if (e instanceof AnnotationStringElem) {
+			out.writeByte('s');
+			out.writeUTF(((AnnotationStringElem) e).getValue());
+		} else if (e instanceof AnnotationClassElem) {
+			out.writeByte('c');
+			out.writeUTF(((AnnotationClassElem) e).getDesc());
+		} else if (e instanceof AnnotationEnumElem) {
+			out.writeByte('e');
+			out.writeUTF(((AnnotationEnumElem) e).getTypeName());
+			out.writeUTF(((AnnotationEnumElem) e).getConstantName());
+		} else if (e instanceof AnnotationArrayElem) {
+			out.writeByte('[');
+			out.writeInt(((AnnotationArrayElem) e).getNumValues());
+			for (AnnotationElem v : ((AnnotationArrayElem) e).getValues()) {
+				writeAnnotationElem(v, out);
+			}
+		} else if (e instanceof AnnotationAnnotationElem) {
+			out.writeByte('@');
+			writeAnnotation(((AnnotationAnnotationElem) e).getValue(), out);
+		} else {
+			throw new UnsupportedOperationException("Annotation element " + e.getClass().getName());
+		}
+		out.writeChar(e.getKind());
+		writeNullableString(e.getName(), out);
+	}
+
+	private static AnnotationElem readAnnotationElem(DataInputStream in) throws IOException {
+		final char elemClass = (char) in.readByte();
+		switch (elemClass) {
+		case 'i': {
+			final int value = in.readInt();
+			return new AnnotationIntElem(value, in.readChar(), readNullableString(in));
+		}
+		case 'j': {
+			final long value = in.readLong();
+			return new AnnotationLongElem(value, in.readChar(), readNullableString(in));
+		}
+		case 'f': {
+			final float value = in.readFloat();
+			return new AnnotationFloatElem(value, in.readChar(), readNullableString(in));
+		}
+		case 'd': {
+			final double value = in.readDouble();
+			return new AnnotationDoubleElem(value, in.readChar(), readNullableString(in));
+		}
+		case 's': {
+			final String value = in.readUTF();
+			return new AnnotationStringElem(value, in.readChar(), readNullableString(in));
+		}
+		case 'c': {
+			final String desc = in.readUTF();
+			return new AnnotationClassElem(desc, in.readChar(), readNullableString(in));
+		}
+		case 'e': {
+			final String typeName = in.readUTF();
+			final String constantName = in.readUTF();
+			return new AnnotationEnumElem(typeName, constantName, in.readChar(), readNullableString(in));
+		}
+		case '[': {
+			final ArrayList<AnnotationElem> values = new ArrayList<AnnotationElem>();
+			for (int i = in.readInt(); i > 0; i--) {
+				values.add(readAnnotationElem(in));
+			}
+			return new AnnotationArrayElem(values, in.readChar(), readNullableString(in));
+		}
+		case '@': {
+			final AnnotationTag value = readAnnotation(in);
+			return new AnnotationAnnotationElem(value, in.readChar(), readNullableString(in));
+		}
+		default:
+			throw new IOException("Unknown annotation element " + elemClass);
+		}
+	}
+
+	static void writeNullableString(String s, DataOutputStream out) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	static String readNullableString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Returns the class 'name' of the scene, or a reference to it that
+	 * Soot resolves later (like the front end does).
+	 */
+	private static SootClass classRef(String name) {
+		return SootResolver.v().makeClassRef(name);
+	}
+}
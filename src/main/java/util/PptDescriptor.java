@@ -0,0 +1,155 @@
+/**
+ *
+ */
+package util;
+
+import java.util.regex.Pattern;
+
+import com.google.common.hash.Hashing;
+
+import daikon.PptTopLevel;
+import daikon.VarInfo;
+import daikon.VarInfo.VarKind;
+import soot.Scene;
+import soot.SootMethod;
+
+/**
+ * Everything the TraceExtractor needs to know about a program point,
+ * computed once per ppt instead of once per event: the kind of the event,
+ * the variables that hold the pc, the arguments, and the return value, and
+ * the SootMethod of method entries once it has been resolved. Descriptors
+ * are interned in a PptTable, and traces refer to them by id.
+ *
+ * @author schaef
+ *
+ */
+public class PptDescriptor {
+
+	public enum Kind {
+		PC_ENTER, PC_EXIT, WRAPPER_ENTER, WRAPPER_EXIT, METHOD_ENTER, METHOD_EXIT, OTHER
+	}
+
+	private static final Pattern enterTestPattern = Pattern.compile(DaikonRunner.enterTestRegex);
+	private static final String clinitPcPrefix = "._la_clinit_ra";
+
+	public final int id;
+	public final PptTopLevel ppt;
+	public final Kind kind;
+
+	/**
+	 * Hash of the name of the ppt. Unlike the id, it is the same in every
+	 * PptTable, e.g., in the tables of different shards or pipe parsers.
+	 */
+	public final long nameHash;
+
+	/** True for the entry of a generated test method. */
+	public final boolean isTestEntry;
+
+	/** True for the ppts of the ErrorTestDriver. */
+	public final boolean isDriver;
+
+	/**
+	 * True if this is a pc method of a static initializer. Then
+	 * clinitClassName is the class of the initializer if it can be found.
+	 */
+	public final boolean isClinitPc;
+	public final String clinitClassName;
+
+	/** The pc argument of a pc method entry or null. */
+	public final VarInfo pcVar;
+
+	/**
+	 * The variables arg0 .. argN of a wrapper entry or exit. An entry is null
+	 * if Chicory did not record the argument.
+	 */
+	public final VarInfo[] argVars;
+
+	/** The return value of a wrapper exit or null. */
+	public final VarInfo returnVar;
+
+	/**
+	 * Resolved by the TraceExtractor for method entries, together with the
+	 * scene it was resolved in.
+	 */
+	private SootMethod method = null;
+	private Scene methodScene = null;
+
+	PptDescriptor(int id, PptTopLevel ppt) {
+		this.id = id;
+		this.ppt = ppt;
+		final String name = ppt.name;
+		nameHash = Hashing.murmur3_128().hashUnencodedChars(name).asLong();
+		final boolean enter = name.endsWith(":::ENTER");
+		final boolean exit = name.contains(":::EXIT");
+		if (name.contains(TraceExtractor.pcMethodNameSuffix) && enter) {
+			kind = Kind.PC_ENTER;
+		} else if (name.contains(TraceExtractor.pcMethodNameSuffix) && exit) {
+			kind = Kind.PC_EXIT;
+		} else if (name.contains(TraceExtractor.wrapperMethodNameSuffix) && enter) {
+			kind = Kind.WRAPPER_ENTER;
+		} else if (name.contains(TraceExtractor.wrapperMethodNameSuffix) && exit) {
+			kind = Kind.WRAPPER_EXIT;
+		} else if (enter) {
+			kind = Kind.METHOD_ENTER;
+		} else if (exit) {
+			kind = Kind.METHOD_EXIT;
+		} else {
+			kind = Kind.OTHER;
+		}
+		isTestEntry = enter && enterTestPattern.matcher(name).matches();
+		isDriver = name.startsWith("ErrorTestDriver.");
+		isClinitPc = kind == Kind.PC_ENTER && name.contains("clinit");
+		clinitClassName = isClinitPc && name.contains(clinitPcPrefix)
+				? name.substring(0, name.indexOf(clinitPcPrefix)) : null;
+		pcVar = kind == Kind.PC_ENTER ? ppt.find_var_by_name(TraceExtractor.pcMethodArgName) : null;
+
+		if (kind == Kind.WRAPPER_ENTER || kind == Kind.WRAPPER_EXIT) {
+			int numArgs = 0;
+			while (ppt.find_var_by_name(TraceExtractor.wrapperArgPrefix + numArgs) != null) {
+				numArgs++;
+			}
+			argVars = new VarInfo[numArgs];
+			for (int i = 0; i < numArgs; i++) {
+				argVars[i] = ppt.find_var_by_name(TraceExtractor.wrapperArgPrefix + i);
+			}
+		} else {
+			argVars = new VarInfo[0];
+		}
+		VarInfo ret = null;
+		if (kind == Kind.WRAPPER_EXIT) {
+			for (VarInfo vi : ppt.var_infos) {
+				if (vi.var_kind == VarKind.RETURN) {
+					ret = vi;
+					break;
+				}
+			}
+		}
+		returnVar = ret;
+	}
+
+	/**
+	 * Returns the variable argN or null if the wrapper has no such argument.
+	 */
+	public VarInfo getArgVar(int n) {
+		return n < argVars.length ? argVars[n] : null;
+	}
+
+	/**
+	 * Returns the method of this entry in 'scene', or null if it has not
+	 * been resolved in that scene. Descriptors can outlive a soot.G.reset,
+	 * e.g., when the same traces are sliced twice.
+	 */
+	public synchronized SootMethod getMethod(Scene scene) {
+		return scene == methodScene ? method : null;
+	}
+
+	public synchronized void setMethod(SootMethod method, Scene scene) {
+		this.method = method;
+		this.methodScene = scene;
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + ppt.name;
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ *
+ */
+package util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import daikon.PptTopLevel;
+
+/**
+ * Interns one PptDescriptor per PptTopLevel and hands out dense ids, so
+ * that traces can store an int per event and the TraceExtractor can switch
+ * on the precomputed kind instead of matching the ppt name. One table is
+ * shared by all traces parsed by the same DaikonRunner.
+ *
+ * @author schaef
+ *
+ */
+public class PptTable {
+
+	private final Map<PptTopLevel, PptDescriptor> descriptors = new HashMap<PptTopLevel, PptDescriptor>();
+	private final List<PptDescriptor> byId = new ArrayList<PptDescriptor>();
+
+	/**
+	 * Returns the descriptor of 'ppt' and creates it if necessary.
+	 *
+	 * @param ppt
+	 * @return the descriptor.
+	 */
+	public synchronized PptDescriptor intern(PptTopLevel ppt) {
+		PptDescriptor d = descriptors.get(ppt);
+		if (d == null) {
+			d = new PptDescriptor(byId.size(), ppt);
+			descriptors.put(ppt, d);
+			byId.add(d);
+		}
+		return d;
+	}
+
+	public synchronized PptDescriptor get(int id) {
+		return byId.get(id);
+	}
+
+	public synchronized int size() {
+		return byId.size();
+	}
+}
@@ -0,0 +1,360 @@
+/**
+ *
+ */
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Verify;
+import com.google.common.base.VerifyException;
+
+import bc_instrumenter.PcRecorder;
+import daikon.PptTopLevel;
+import daikon.ProglangType;
+import daikon.ValueTuple;
+import daikon.VarComparabilityNone;
+import daikon.VarInfo;
+import daikon.VarInfoAux;
+import daikon.util.Pair;
+import util.DaikonRunner.DaikonTrace;
+import util.DaikonRunner.TraceConsumer;
+
+/**
+ * Reads the binary trace written by bc_instrumenter.PcRecorder and turns it
+ * into DaikonTraces that look like the ones parsed from a full Chicory
+ * dtrace. The pc events and the entries and exits of application methods
+ * only carry a method id and a pc, so we create the corresponding program
+ * points here. The wrapper events are replaced by the samples that Chicory
+ * recorded for them.
+ *
+ * The binary trace consists of chunks that each belong to one thread, and
+ * every thread gets its own traces, so concurrent threads do not interleave.
+ * Chicory writes the samples of all threads into one file. If the wrappers
+ * pass the thread id as last argument (see bc_instrumenter.Options
+ * threadIds), the samples are assigned to threads by that argument.
+ * Otherwise, the n-th wrapper event in the binary trace is assumed to belong
+ * to the n-th sample in the dtrace file, which only holds if a single
+ * thread calls wrappers.
+ *
+ * The events of a thread that does not run a test itself (e.g., a thread of
+ * a pool used by the code under test) belong to the test that was running
+ * when they happened (see the TEST and CHARGE records of PcRecorder). For
+ * each test, they go into a trace of their own that is attached to the
+ * test's trace with DaikonTrace.addThreadTrace. PcRecorder writes all events
+ * of a test before the TEST record of the next one, so a test's trace is
+ * complete when its thread starts the next test. Events that happen before
+ * the first test are dropped and counted (see getDroppedEvents).
+ *
+ * @author schaef
+ *
+ */
+public class RecordedTraceReader {
+
+	private static final int bufferSize = 1 << 20;
+
+	private static final Pattern argNamePattern = Pattern.compile(Pattern.quote(TraceExtractor.wrapperArgPrefix) + "(\\d+)");
+
+	private final Map<String, PptTopLevel> syntheticPpts = new HashMap<String, PptTopLevel>();
+	private final ValueTuple emptyTuple = ValueTuple.makeUninterned(new Object[0], new int[0]);
+	private final PptTable pptTable;
+
+	/** The number and the trace of the last test whose TEST record was read. */
+	private int currentTest = -1;
+	private DaikonTrace currentTestTrace = null;
+	/**
+	 * The traces of threads that charged events to a test whose TEST record
+	 * has not been read yet, by the number of the test. This happens if a
+	 * thread flushes its buffer after enterTest made the test current but
+	 * before the thread of the test wrote the TEST record.
+	 */
+	private final Map<Integer, List<DaikonTrace>> earlyThreadTraces = new HashMap<Integer, List<DaikonTrace>>();
+	private long droppedEvents = 0;
+
+	public RecordedTraceReader(PptTable pptTable) {
+		this.pptTable = pptTable;
+	}
+
+	/**
+	 * Reads the trace in 'traceFile' and hands one DaikonTrace per error test
+	 * to 'consumer'. A trace is handed out as soon as its thread starts the
+	 * next test or the file ends.
+	 *
+	 * @param traceFile
+	 * @param wrapperSamples
+	 *            the samples of all wrapper methods in the order in which
+	 *            Chicory recorded them.
+	 * @param threadIds
+	 *            true if the last argument of each wrapper is the id of the
+	 *            calling thread.
+	 * @param consumer
+	 * @throws IOException
+	 */
+	public void read(File traceFile, Iterator<Pair<PptTopLevel, ValueTuple>> wrapperSamples, boolean threadIds,
+			TraceConsumer consumer) throws IOException {
+		final List<String> methodNames = Files.readAllLines(
+				new File(traceFile.getAbsolutePath() + PcRecorder.methodsFileSuffix).toPath(), StandardCharsets.UTF_8);
+		Map<Long, ThreadState> threads = new LinkedHashMap<Long, ThreadState>();
+		WrapperSamples samples = new WrapperSamples(wrapperSamples, threadIds);
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(traceFile), bufferSize));) {
+			Verify.verify(in.readInt() == PcRecorder.MAGIC, "Not a pc trace: " + traceFile.getAbsolutePath());
+			Verify.verify(in.readInt() == PcRecorder.VERSION, "Unsupported pc trace version.");
+			while (true) {
+				final long threadId;
+				try {
+					threadId = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				ThreadState thread = threads.get(threadId);
+				if (thread == null) {
+					thread = new ThreadState(threadId);
+					threads.put(threadId, thread);
+				}
+				final int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					final int id = in.readInt();
+					final int code = in.readInt();
+					if (code == PcRecorder.TEST) {
+						startTest(thread, id);
+					} else if (code == PcRecorder.CHARGE) {
+						charge(thread, id);
+					} else {
+						readRecord(thread, methodNames.get(id), code, samples, consumer);
+					}
+				}
+			}
+		}
+		for (ThreadState thread : threads.values()) {
+			finishTrace(thread, consumer);
+		}
+		currentTest = -1;
+		currentTestTrace = null;
+		earlyThreadTraces.clear();
+		if (droppedEvents > 0) {
+			System.err.println("Dropped " + droppedEvents + " events of threads that do not belong to a test.");
+		}
+	}
+
+	/**
+	 * Returns the number of events that were dropped because their thread
+	 * could not be linked to a test.
+	 */
+	public long getDroppedEvents() {
+		return droppedEvents;
+	}
+
+	private void readRecord(ThreadState thread, String name, int code, WrapperSamples samples,
+			TraceConsumer consumer) {
+		if (code >= 0) {
+			final DaikonTrace trace = getTrace(thread);
+			if (trace != null) {
+				trace.addPc(getPcPpt(name + ":::ENTER"), code);
+				trace.addPoint(getMethodPpt(name + ":::EXIT"), emptyTuple);
+			}
+		} else if (name.contains(TraceExtractor.wrapperMethodNameSuffix)) {
+			Pair<PptTopLevel, ValueTuple> sample = samples.next(thread.threadId, name);
+			final String expected = name + (code == PcRecorder.ENTER ? ":::ENTER" : ":::EXIT");
+			Verify.verify(sample.a.name.startsWith(expected),
+					"Trace out of sync: expected " + expected + " but found " + sample.a.name);
+			final DaikonTrace trace = getTrace(thread);
+			if (trace != null) {
+				trace.addPoint(sample.a, sample.b);
+			}
+		} else {
+			PptDescriptor d = pptTable
+					.intern(getMethodPpt(name + (code == PcRecorder.ENTER ? ":::ENTER" : ":::EXIT")));
+			if (d.isTestEntry) {
+				finishTrace(thread, consumer);
+				thread.threadTrace = null;
+				thread.currentTrace = new DaikonTrace(pptTable);
+			}
+			final DaikonTrace trace = getTrace(thread);
+			if (trace != null) {
+				trace.addPoint(d, emptyTuple);
+			}
+		}
+	}
+
+	/**
+	 * Makes the test that 'thread' has just entered the test with number
+	 * 'test' and attaches the traces of threads that were charged to it
+	 * early.
+	 */
+	private void startTest(ThreadState thread, int test) {
+		Verify.verifyNotNull(thread.currentTrace, "Test " + test + " does not start with a test method.");
+		currentTest = test;
+		currentTestTrace = thread.currentTrace;
+		final List<DaikonTrace> early = earlyThreadTraces.remove(test);
+		if (early != null) {
+			for (DaikonTrace threadTrace : early) {
+				currentTestTrace.addThreadTrace(threadTrace);
+			}
+		}
+	}
+
+	/**
+	 * Starts a new trace for the events of 'thread' that belong to the test
+	 * with number 'test'. The threads that run the tests are not charged.
+	 */
+	private void charge(ThreadState thread, int test) {
+		if (thread.currentTrace != null) {
+			return;
+		}
+		Verify.verify(test >= currentTest,
+				"Events charged to test " + test + " after test " + currentTest + " has started.");
+		thread.threadTrace = new DaikonTrace(pptTable);
+		if (test == currentTest) {
+			currentTestTrace.addThreadTrace(thread.threadTrace);
+		} else {
+			if (!earlyThreadTraces.containsKey(test)) {
+				earlyThreadTraces.put(test, new LinkedList<DaikonTrace>());
+			}
+			earlyThreadTraces.get(test).add(thread.threadTrace);
+		}
+	}
+
+	/**
+	 * Returns the trace that gets the events of 'thread' or null (and
+	 * counts the event as dropped) if the thread does not belong to a test.
+	 */
+	private DaikonTrace getTrace(ThreadState thread) {
+		if (thread.currentTrace != null) {
+			return thread.currentTrace;
+		}
+		if (thread.threadTrace != null) {
+			return thread.threadTrace;
+		}
+		droppedEvents++;
+		return null;
+	}
+
+	private void finishTrace(ThreadState thread, TraceConsumer consumer) {
+		if (thread.currentTrace != null) {
+			DaikonTrace done = thread.currentTrace;
+			thread.currentTrace = null;
+			consumer.consume(done);
+		}
+	}
+
+	/**
+	 * Returns the thread id that was passed as last argument to the wrapper
+	 * of 'sample', i.e., the value of the variable argN with the largest N.
+	 */
+	private static long getThreadId(Pair<PptTopLevel, ValueTuple> sample) {
+		VarInfo tidVar = null;
+		int maxArg = -1;
+		for (VarInfo vi : sample.a.var_infos) {
+			Matcher m = argNamePattern.matcher(vi.name());
+			if (m.matches() && Integer.parseInt(m.group(1)) > maxArg) {
+				maxArg = Integer.parseInt(m.group(1));
+				tidVar = vi;
+			}
+		}
+		Verify.verifyNotNull(tidVar, "No thread id in " + sample.a.name);
+		return ((Long) sample.b.getValueOrNull(tidVar)).longValue();
+	}
+
+	private static final class ThreadState {
+		final long threadId;
+		/** The trace of the test that this thread is running. */
+		DaikonTrace currentTrace = null;
+		/**
+		 * If the thread does not run a test itself, the trace of its events
+		 * in the test they are charged to.
+		 */
+		DaikonTrace threadTrace = null;
+
+		ThreadState(long threadId) {
+			this.threadId = threadId;
+		}
+	}
+
+	/**
+	 * Hands out the Chicory samples of the wrappers to the threads that
+	 * made the calls. Samples of other threads that we have to skip to find
+	 * the next sample of a thread are kept until that thread asks for them.
+	 */
+	private static final class WrapperSamples {
+		private final Iterator<Pair<PptTopLevel, ValueTuple>> samples;
+		private final boolean threadIds;
+		private final Map<Long, LinkedList<Pair<PptTopLevel, ValueTuple>>> pending =
+				new HashMap<Long, LinkedList<Pair<PptTopLevel, ValueTuple>>>();
+
+		WrapperSamples(Iterator<Pair<PptTopLevel, ValueTuple>> samples, boolean threadIds) {
+			this.samples = samples;
+			this.threadIds = threadIds;
+		}
+
+		Pair<PptTopLevel, ValueTuple> next(long threadId, String wrapperName) {
+			if (!threadIds) {
+				Verify.verify(samples.hasNext(), "No sample for wrapper " + wrapperName);
+				return samples.next();
+			}
+			// the wrappers pass Thread.getId as int.
+			final long id = (int) threadId;
+			LinkedList<Pair<PptTopLevel, ValueTuple>> queue = pending.get(id);
+			if (queue != null && !queue.isEmpty()) {
+				return queue.removeFirst();
+			}
+			while (samples.hasNext()) {
+				Pair<PptTopLevel, ValueTuple> sample = samples.next();
+				final long sampleId = getThreadId(sample);
+				if (sampleId == id) {
+					return sample;
+				}
+				if (!pending.containsKey(sampleId)) {
+					pending.put(sampleId, new LinkedList<Pair<PptTopLevel, ValueTuple>>());
+				}
+				pending.get(sampleId).add(sample);
+			}
+			throw new VerifyException("No sample for wrapper " + wrapperName + " in thread " + threadId);
+		}
+	}
+
+	/**
+	 * Returns a program point for the entry of a pc method, which has a
+	 * single int variable named TraceExtractor.pcMethodArgName.
+	 *
+	 * @param pptName
+	 * @return the ppt.
+	 */
+	private PptTopLevel getPcPpt(String pptName) {
+		if (!syntheticPpts.containsKey(pptName)) {
+			VarInfo arg = new VarInfo(TraceExtractor.pcMethodArgName, ProglangType.INT, ProglangType.INT,
+					VarComparabilityNone.it, VarInfoAux.getDefault());
+			syntheticPpts.put(pptName, new PptTopLevel(pptName, new VarInfo[] { arg }));
+		}
+		return syntheticPpts.get(pptName);
+	}
+
+	/**
+	 * Returns a program point without variables. TraceExtractor only looks at
+	 * the names of these.
+	 *
+	 * @param pptName
+	 * @return the ppt.
+	 */
+	private PptTopLevel getMethodPpt(String pptName) {
+		if (!syntheticPpts.containsKey(pptName)) {
+			syntheticPpts.put(pptName, new PptTopLevel(pptName, new VarInfo[0]));
+		}
+		return syntheticPpts.get(pptName);
+	}
+}
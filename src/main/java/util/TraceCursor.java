@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package util;
+
+import com.google.common.base.Verify;
+
+import daikon.PptTopLevel;
+import daikon.ValueTuple;
+import util.DaikonRunner.DaikonTrace;
+
+/**
+ * A position in a DaikonTrace. The TraceExtractor walks a trace with one
+ * cursor instead of juggling indexes: next() moves to the following event,
+ * peek() looks ahead without moving, and skipPc() consumes the entry and
+ * exit of a pc method whose statement has already been handled. All
+ * operations are O(1).
+ *
+ * @author schaef
+ *
+ */
+public class TraceCursor {
+
+	private final DaikonTrace trace;
+	private int pos;
+
+	/**
+	 * Creates a cursor that points to the first event of 'trace'.
+	 *
+	 * @param trace
+	 */
+	public TraceCursor(DaikonTrace trace) {
+		Verify.verify(trace.size() > 0, "Trace is empty.");
+		this.trace = trace;
+		this.pos = 0;
+	}
+
+	public int position() {
+		return pos;
+	}
+
+	public boolean hasNext() {
+		return pos + 1 < trace.size();
+	}
+
+	/**
+	 * Moves to the next event and returns its descriptor.
+	 */
+	public PptDescriptor next() {
+		Verify.verify(hasNext(), "No event after " + pos);
+		pos++;
+		return current();
+	}
+
+	public PptDescriptor current() {
+		return trace.getDescriptor(pos);
+	}
+
+	public PptTopLevel ppt() {
+		return current().ppt;
+	}
+
+	/**
+	 * Returns the pc of the current event, which must be a pc method entry.
+	 */
+	public long pc() {
+		return trace.getPc(pos);
+	}
+
+	public ValueTuple values() {
+		return trace.getValues(pos);
+	}
+
+	/**
+	 * Returns the descriptor of the next event or null if this is the last
+	 * event.
+	 */
+	public PptDescriptor peek() {
+		return peek(0);
+	}
+
+	/**
+	 * Returns the descriptor 'offset' events after the next event or null
+	 * if the trace ends before.
+	 */
+	public PptDescriptor peek(int offset) {
+		final int nextPos = pos + 1 + offset;
+		if (nextPos < trace.size()) {
+			return trace.getDescriptor(nextPos);
+		}
+		return null;
+	}
+
+	/**
+	 * Consumes the entry and exit of the pc method call with argument 'pc'
+	 * that must follow the current event.
+	 *
+	 * @param pc
+	 * @return false if the trace ended before the entry.
+	 */
+	public boolean skipPc(long pc) {
+		if (!hasNext()) {
+			return false;
+		}
+		Verify.verify(next().kind == PptDescriptor.Kind.PC_ENTER);
+		final long arg = pc();
+		Verify.verify(arg == pc, "Wrong number " + arg + "!=" + pc);
+		Verify.verify(next().kind == PptDescriptor.Kind.PC_EXIT);
+		return true;
+	}
+}
@@ -1,26 +1,35 @@
 package util;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Verify;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import daikon.PptTopLevel;
 import daikon.ProglangType;
 import daikon.ValueTuple;
 import daikon.VarInfo;
-import daikon.VarInfo.VarKind;
-import daikon.util.Pair;
 import soot.Body;
 import soot.BooleanType;
 import soot.ByteType;
@@ -41,6 +50,7 @@ import soot.ShortType;
 import soot.SootClass;
 import soot.SootField;
 import soot.SootMethod;
+import soot.SourceLocator;
 import soot.Type;
 import soot.Unit;
 import soot.Value;
@@ -76,35 +86,144 @@ import soot.tagkit.SourceFileTag;
 import soot.tagkit.Tag;
 import soot.toolkits.scalar.UnusedLocalEliminator;
 import util.DaikonRunner.DaikonTrace;
+import util.DaikonRunner.TraceCollector;
+import util.DaikonRunner.TraceConsumer;
 
 public class TraceExtractor {
 	public static final String pcMethodNameSuffix = "__PC__METHOD";
 	public static final String pcMethodArgName = "arg";
+	/**
+	 * Prefix of the argument variables of wrappers on the traces. The
+	 * wrappers have no local variable table, so Chicory names their
+	 * arguments arg0, arg1, and so on.
+	 */
+	public static final String wrapperArgPrefix = "arg";
 	public static final String wrapperMethodNameSuffix = "__WRAPPER__METHOD";
 	public static final String instanceWrapperSuffix = "__HASBASE__";
+	/**
+	 * Package of the support classes that hold the wrappers shared by all
+	 * application classes (see bc_instrumenter.SharedWrappers). They are
+	 * written next to the instrumented classes, so Soot loads them as
+	 * application classes and calls to them are handled like calls to
+	 * per-class wrappers.
+	 */
+	public static final String sharedWrapperPackage = "dynslicer_wrappers";
 	public static final String assertionMethodName = "my_Assert";
 
 	public Map<soot.Type, SootMethod> assertMethods = new HashMap<soot.Type, SootMethod>();
 
-	private SootMethod newMethod;
-	private SootMethod sm;
-	private Body body;
-	private int newLocalCounter = 0;
+	/**
+	 * The state of the extraction of one trace. Each trace gets its own
+	 * context, so that several traces can be extracted at the same time.
+	 */
+	private static class TraceContext {
+		final DaikonTrace trace;
+		SootMethod newMethod;
+		SootMethod sm;
+		Body body;
+		int newLocalCounter = 0;
+		final Stack<String> pcMethodStack = new Stack<String>();
+		boolean haveToPushToPcStack = false;
+
+		/**
+		 * The positions of the pcs of the trace whose statements are
+		 * copied into the trace method, or null to copy all statements.
+		 */
+		BitSet preSlice = null;
+
+		TraceContext(DaikonTrace trace) {
+			this.trace = trace;
+		}
+	}
 
-	final Stack<String> pcMethodStack = new Stack<String>();
-	private boolean haveToPushToPcStack = false;
+	/**
+	 * Soot's scene is not thread safe. The extraction threads hold this
+	 * lock while they change the scene, i.e., when they add or remove
+	 * trace methods, make fields public, load classes, create types or
+	 * locals, copy statements, or let Soot build the body of a method.
+	 */
+	private final Object sceneLock = new Object();
+	private final Set<Body> resolvedBodies = new HashSet<Body>();
+
+	/**
+	 * The methods of the ppts and the types of their parameters are
+	 * resolved once and shared by all traces. Both caches are guarded by
+	 * the sceneLock. The counters are printed by getResolutionStats.
+	 */
+	private final Map<String, SootMethod> methodCache = new HashMap<String, SootMethod>();
+	private final Map<String, soot.Type> typeCache = new HashMap<String, soot.Type>();
+	private final AtomicLong methodLookups = new AtomicLong();
+	private final AtomicLong methodCacheHits = new AtomicLong();
+	private final AtomicLong methodResolutionNanos = new AtomicLong();
+	private long typeLookups = 0;
+	private long typeCacheHits = 0;
 
-	public static void main(String[] args) {
+	/**
+	 * Extracts the distinct traces if there is more than one slice thread.
+	 * Otherwise, the traces are extracted by the thread that hands them
+	 * over.
+	 */
+	private ForkJoinPool slicePool = null;
+
+	/**
+	 * Limits the number of traces that are submitted to the slice pool but
+	 * not sliced yet to two per thread. The thread that hands over the
+	 * traces waits for a permit, so streamed traces are not all held in
+	 * memory at once.
+	 */
+	private Semaphore slicePermits = null;
+	private int numSlicePermits = 0;
+
+	/**
+	 * True if the classes were instrumented with one pc sample per basic
+	 * block instead of one per instruction.
+	 */
+	private final boolean blockSampling = dynslicer.Options.v().useBlockSampling();
+
+	/**
+	 * Maps the pcs of each original method body to their PcTarget. The
+	 * bodies are never modified during extraction, so each one is indexed
+	 * once when the first pc of the method shows up on a trace.
+	 */
+	private final Map<Body, Map<Integer, PcTarget>> pcIndex = new HashMap<Body, Map<Integer, PcTarget>>();
+
+	/**
+	 * The equal variables of each pair of wrapper entry and exit, see
+	 * getMatchingVariables.
+	 */
+	private final Map<PptTopLevel, Map<PptTopLevel, List<VarInfo[]>>> matchingVariables = new HashMap<PptTopLevel, Map<PptTopLevel, List<VarInfo[]>>>();
+
+	public static void main(String[] args) throws IOException {
 		// For testing only!
 		TraceExtractor sc = new TraceExtractor();
-		DaikonRunner dr = new DaikonRunner();
-		System.out.println("Reading dtrace file");
-		Set<DaikonTrace> traces = dr.parseDTraceFile("ErrorTestDriver.dtrace.gz");
+		// the traces are parsed once and then replayed from the store.
+		final File store = new File(args.length > 2 ? args[2] : "ErrorTestDriver.traces");
+		TraceCollector collector = new TraceCollector();
+		if (store.isFile()) {
+			System.out.println("Reading trace store");
+			try (TraceStore.Reader reader = new TraceStore.Reader(store)) {
+				reader.readAll(collector);
+			}
+		} else {
+			DaikonRunner dr = new DaikonRunner();
+			System.out.println("Reading dtrace file");
+			try (TraceStore.Writer writer = new TraceStore.Writer(store, collector)) {
+				dr.parseDTraceFile("ErrorTestDriver.dtrace.gz", writer);
+			}
+		}
 		System.out.println("Start slicing");
-		sc.computeErrorSlices(new File(args[0]), args[1], traces);
+		sc.computeErrorSlices(new File(args[0]), args[1], collector.traces);
 	}
 
-	public static int slicerErrors = 0;
+	/**
+	 * The number of tests whose trace could not be turned into a trace
+	 * method.
+	 */
+	private final AtomicInteger slicerErrors = new AtomicInteger();
+
+	public int getSlicerErrors() {
+		return slicerErrors.get();
+	}
 
 	/**
 	 * Returns a soot class that contains one method per trace. Each method
@@ -116,12 +235,85 @@ public class TraceExtractor {
 	 * @return
 	 */
 	public SootClass computeErrorSlices(File classDir, String classPath, Collection<DaikonTrace> traces) {
+		SootClass myClass = createTraceClass(classDir, classPath,
+				dynslicer.Options.v().useLazySceneLoading() ? collectTraceClasses(traces) : null);
+		for (DaikonTrace t : traces) {
+			submitSlice(t, myClass);
+		}
+		awaitSlices(myClass);
+		return myClass;
+	}
+
+	/**
+	 * Computes the slices while the traces are parsed. Each trace is sliced
+	 * as soon as the parser hands it over and can be garbage collected
+	 * afterwards. The Soot scene is loaded when the first trace arrives (or
+	 * when getTraceClass is called), because the instrumentation agent only
+	 * writes the classes while the traced program runs.
+	 */
+	public class StreamingSlicer implements TraceConsumer {
+		private final File classDir;
+		private final String classPath;
+		private SootClass traceClass = null;
+		private int numTraces = 0;
+
+		public StreamingSlicer(File classDir, String classPath) {
+			this.classDir = classDir;
+			this.classPath = classPath;
+		}
+
+		@Override
+		public void consume(DaikonTrace trace) {
+			numTraces++;
+			submitSlice(trace, createTraceClassIfNecessary());
+		}
+
+		/**
+		 * Returns the class that contains one method per trace consumed so
+		 * far, once all of them are extracted.
+		 * 
+		 * @return the trace class.
+		 */
+		public SootClass getTraceClass() {
+			awaitSlices(createTraceClassIfNecessary());
+			return traceClass;
+		}
+
+		private SootClass createTraceClassIfNecessary() {
+			if (traceClass == null) {
+				traceClass = createTraceClass(classDir, classPath, null);
+			}
+			return traceClass;
+		}
+
+		public int getNumTraces() {
+			return numTraces;
+		}
+	}
 
+	/**
+	 * Loads the Soot scene and creates the class that holds the trace
+	 * methods and the assertion methods.
+	 * 
+	 * @param traceClasses
+	 *            the classes that show up on the traces, or null to load
+	 *            all classes in classDir with bodies.
+	 */
+	private SootClass createTraceClass(File classDir, String classPath, Set<String> traceClasses) {
 		System.out.println("Computing slices for input: ");
 		System.out.println("ClassDir: " + classDir.getAbsolutePath());
 		System.out.println("ClassPath: " + classPath);
 
-		loadSootScene(classDir, classPath);
+		loadSootScene(classDir, classPath, traceClasses);
+		if (dynslicer.Options.v().useBytecodePreSlice()) {
+			preSlicer = new BytecodePreSlicer(classDir);
+		}
+		final int numThreads = dynslicer.Options.v().getNumSliceThreads();
+		if (numThreads > 1) {
+			slicePool = new ForkJoinPool(numThreads);
+			numSlicePermits = 2 * numThreads;
+			slicePermits = new Semaphore(numSlicePermits);
+		}
 
 		SootClass myClass = new SootClass("HelloWorld", Modifier.PUBLIC);
 		SootClass objClass = Scene.v().getSootClass("java.lang.Object");
@@ -133,25 +325,217 @@ public class TraceExtractor {
 		assertMethods.put(FloatType.v(), makeAssertMethod(myClass, FloatType.v()));
 		assertMethods.put(DoubleType.v(), makeAssertMethod(myClass, DoubleType.v()));
 		assertMethods.put(LongType.v(), makeAssertMethod(myClass, LongType.v()));
+		return myClass;
+	}
 
+	/**
+	 * Returns the names of the classes of all method entries, pc methods,
+	 * and wrappers that show up on 'traces', except for the driver. The
+	 * ppts are taken from the PptTables of the traces, so each ppt is
+	 * looked at once.
+	 */
+	private Set<String> collectTraceClasses(Collection<DaikonTrace> traces) {
+		final Set<PptTable> tables = new HashSet<PptTable>();
+		final Set<String> classNames = new HashSet<String>();
 		for (DaikonTrace t : traces) {
-			try {
-				computeErrorSlice(t, myClass);
-			} catch (Throwable e) {
-				slicerErrors++;
-				e.printStackTrace(System.err);
+			if (!tables.add(t.getPptTable())) {
+				continue;
+			}
+			for (int id = 0; id < t.getPptTable().size(); id++) {
+				final PptDescriptor d = t.getPptTable().get(id);
+				if (d.isDriver || d.kind == PptDescriptor.Kind.OTHER) {
+					continue;
+				}
+				final String qualifiedMethodName = d.ppt.name.substring(0, d.ppt.name.indexOf("("));
+				classNames.add(qualifiedMethodName.substring(0, qualifiedMethodName.lastIndexOf('.')));
+				if (d.clinitClassName != null) {
+					classNames.add(d.clinitClassName);
+				}
 			}
-			resetFields();
 		}
-		return myClass;
+		return classNames;
+	}
+
+	/**
+	 * The tests that produced the same trace. Only the first of them is
+	 * turned into a trace method.
+	 */
+	private static class DistinctTrace {
+		final List<String> testNames = new LinkedList<String>();
+		/** The name of the trace method or null if slicing failed. */
+		String methodName = null;
+		/** True if slicing failed. */
+		boolean failed = false;
+	}
+
+	/**
+	 * The distinct traces in the order in which they were handed over.
+	 * Changes to the distinct traces are made while holding the lock of
+	 * this map.
+	 */
+	private final Map<HashCode, DistinctTrace> distinctTraces = new LinkedHashMap<HashCode, DistinctTrace>();
+	private final Map<String, DistinctTrace> distinctTracesByMethod = new HashMap<String, DistinctTrace>();
+
+	/**
+	 * Slices 't' unless a trace of another test has already been handed
+	 * over that executes the same code with the same values. Then the name
+	 * of the test of 't' is only added to that trace. With a slice pool,
+	 * 't' is sliced on the pool and this method returns as soon as there
+	 * is a permit for it.
+	 */
+	private void submitSlice(final DaikonTrace t, final SootClass myClass) {
+		final DistinctTrace distinct = addDistinctTrace(t);
+		if (distinct == null) {
+			return;
+		}
+		if (slicePool == null) {
+			sliceDistinctTrace(distinct, t, myClass);
+			return;
+		}
+		slicePermits.acquireUninterruptibly();
+		slicePool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sliceDistinctTrace(distinct, t, myClass);
+				} finally {
+					slicePermits.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits until all traces that were submitted to the slice pool are
+	 * sliced. Then the trace methods are put into the order of their
+	 * traces, so that the result does not depend on the scheduling.
+	 */
+	private void awaitSlices(SootClass myClass) {
+		if (slicePool == null) {
+			return;
+		}
+		// all permits are back once the last submitted trace is sliced.
+		slicePermits.acquireUninterruptibly(numSlicePermits);
+		slicePermits.release(numSlicePermits);
+		for (String methodName : getTraceMethodNames()) {
+			final SootMethod m = myClass.getMethodByName(methodName);
+			myClass.removeMethod(m);
+			myClass.addMethod(m);
+		}
+	}
+
+	/**
+	 * Returns the DistinctTrace that 't' starts, or null if 't' does not
+	 * have to be sliced because it has the same key as an earlier trace.
+	 */
+	private DistinctTrace addDistinctTrace(DaikonTrace t) {
+		try {
+			final HashCode key = computeTraceKey(t);
+			synchronized (distinctTraces) {
+				DistinctTrace distinct = distinctTraces.get(key);
+				if (distinct != null) {
+					distinct.testNames.add(t.getTestName());
+					if (distinct.failed) {
+						slicerErrors.incrementAndGet();
+					}
+					return null;
+				}
+				distinct = new DistinctTrace();
+				distinct.testNames.add(t.getTestName());
+				distinctTraces.put(key, distinct);
+				return distinct;
+			}
+		} catch (Throwable e) {
+			synchronized (distinctTraces) {
+				slicerErrors.incrementAndGet();
+			}
+			e.printStackTrace(System.err);
+			return null;
+		}
+	}
+
+	private void sliceDistinctTrace(DistinctTrace distinct, DaikonTrace t, SootClass myClass) {
+		String methodName = null;
+		try {
+			methodName = computeErrorSlice(t, myClass).getName();
+		} catch (Throwable e) {
+			e.printStackTrace(System.err);
+		}
+		synchronized (distinctTraces) {
+			if (methodName == null) {
+				// this counts the tests with the same trace that were
+				// handed over while the trace was sliced.
+				distinct.failed = true;
+				slicerErrors.addAndGet(distinct.testNames.size());
+			} else {
+				distinct.methodName = methodName;
+				distinctTracesByMethod.put(methodName, distinct);
+			}
+		}
+	}
+
+	/**
+	 * Combines the fingerprint of 't' with the code of its test method,
+	 * because the pcs of the test method refer to different statements in
+	 * different test methods.
+	 */
+	private HashCode computeTraceKey(DaikonTrace t) {
+		final Hasher hasher = Hashing.murmur3_128().newHasher();
+		hasher.putBytes(t.getFingerprint().asBytes());
+		for (Unit u : retrieveBody(findMethodForPpt(t.getDescriptor(0))).getUnits()) {
+			hasher.putUnencodedChars(u.toString()).putByte((byte) 0);
+		}
+		return hasher.hash();
+	}
+
+	/**
+	 * Returns the names of the tests whose trace was turned into the trace
+	 * method 'methodName', or null if there is no such trace method.
+	 * 
+	 * @param methodName
+	 * @return the test names, the test that was sliced first.
+	 */
+	public List<String> getTestNames(String methodName) {
+		final DistinctTrace distinct = distinctTracesByMethod.get(methodName);
+		return distinct == null ? null : distinct.testNames;
+	}
+
+	/**
+	 * Returns the names of all trace methods, one per distinct trace that
+	 * could be sliced.
+	 */
+	public Set<String> getTraceMethodNames() {
+		final Set<String> names = new LinkedHashSet<String>();
+		for (DistinctTrace distinct : distinctTraces.values()) {
+			if (distinct.methodName != null) {
+				names.add(distinct.methodName);
+			}
+		}
+		return names;
+	}
+
+	public int getNumDistinctTraces() {
+		return distinctTraces.size();
+	}
+
+	/**
+	 * Returns the number of method lookups for ppts and type lookups for
+	 * their parameters, how many of them were cache hits, and the time
+	 * spent on resolving the misses.
+	 */
+	public String getResolutionStats() {
+		final long lookups = methodLookups.get();
+		final long hits = methodCacheHits.get();
+		synchronized (sceneLock) {
+			return String.format("%d method lookups, %d cache hits (%.1f%%), %d ms resolving; "
+					+ "%d type lookups, %d cache hits (%.1f%%)", lookups, hits, percent(hits, lookups),
+					methodResolutionNanos.get() / 1000000, typeLookups, typeCacheHits,
+					percent(typeCacheHits, typeLookups));
+		}
 	}
 
-	private void resetFields() {
-		newMethod = null;
-		sm = null;
-		body = null;
-		newLocalCounter = 0;
-		pcMethodStack.clear();
+	private static double percent(long part, long total) {
+		return total == 0 ? 0 : 100.0 * part / total;
 	}
 
 	private SootMethod makeAssertMethod(SootClass myClass, soot.Type type) {
@@ -170,7 +554,10 @@ public class TraceExtractor {
 		return sm;
 	}
 
-	private DaikonTrace currentTrace;
+	/**
+	 * Computes the pre-slices if the bytecode pre-slice is enabled.
+	 */
+	private BytecodePreSlicer preSlicer = null;
 
 	/**
 	 * For a given trace, create a method that contains the sequqnce of
@@ -178,36 +565,64 @@ public class TraceExtractor {
 	 * 
 	 * @param trace
 	 * @param containingClass
+	 * @return the trace method.
 	 */
-	public void computeErrorSlice(final DaikonTrace trace, final SootClass containingClass) {
-		this.currentTrace = trace;
-		 System.err.println("****** All Events");
-		 for (Pair<PptTopLevel, ValueTuple> ppt : trace.trace) {
-		 System.err.println(ppt.a.name);
-		 }
-		 System.err.println("****** ");
+	public SootMethod computeErrorSlice(final DaikonTrace trace, final SootClass containingClass) {
+		TraceContext ctx = new TraceContext(trace);
+		if (dynslicer.Options.v().debugOutput()) {
+			System.err.println("****** All Events");
+			for (int i = 0; i < trace.size(); i++) {
+				System.err.println(trace.getPpt(i).name);
+			}
+			System.err.println("****** ");
+		}
+		ctx.preSlice = preSlicer == null ? null : preSlicer.computePreSlice(trace);
 		try {
-			Iterator<Pair<PptTopLevel, ValueTuple>> iterator = trace.trace.iterator();
-			SootMethod sm = createTraceMethod(iterator, containingClass);
+			SootMethod sm = createTraceMethod(ctx, containingClass);
 			addAssertFalseIfNecessary(sm);
+			if (ctx.preSlice != null && !endsWithAssertion(sm)) {
+				/*
+				 * The pre-slice starts at the failing pc, but the Slicer
+				 * starts at the last assertion, which is somewhere else if the
+				 * trace did not end with an exception. Build the full method.
+				 */
+				synchronized (sceneLock) {
+					containingClass.removeMethod(sm);
+				}
+				ctx = new TraceContext(trace);
+				sm = createTraceMethod(ctx, containingClass);
+				addAssertFalseIfNecessary(sm);
+			}
 			addFakeReturn(sm);
 
 			try {
-				sm.getActiveBody().validate();
+				// the validators resolve the fields and methods that are used.
+				synchronized (sceneLock) {
+					sm.getActiveBody().validate();
+				}
 			} catch (Exception e) {
 				System.err.println(e.getMessage());
-				System.err.println(newMethod.getActiveBody());
+				System.err.println(sm.getActiveBody());
 				throw e;
 			}
 
 			UnusedLocalEliminator.v().transform(sm.getActiveBody());
-			System.err.println(sm.getActiveBody());
+			if (dynslicer.Options.v().debugOutput()) {
+				System.err.println(sm.getActiveBody());
+			}
+			return sm;
 		} catch (Throwable e) {
 			System.err.println("FAILED TO GENERATE TRACE");
 			throw e;
 		} 
 	}
 
+	private boolean endsWithAssertion(SootMethod sm) {
+		final Unit last = sm.getActiveBody().getUnits().getLast();
+		return last instanceof InvokeStmt
+				&& ((InvokeStmt) last).getInvokeExpr().getMethod().getName().equals(assertionMethodName);
+	}
+
 	/**
 	 * Add a fake return statement to the end of a method.
 	 * 
@@ -264,15 +679,20 @@ public class TraceExtractor {
 		return IntConstant.v(0);
 	}
 
-	private Unit copySootStmt(Unit u, Map<Value, Value> substiutionMap) {
-		Unit ret = (Unit) u.clone();
+	private Unit copySootStmt(TraceContext ctx, Unit u, Map<Value, Value> substiutionMap) {
+		final Unit ret;
+		final List<Tag> classTags;
+		synchronized (sceneLock) {
+			ret = (Unit) u.clone();
+			classTags = new ArrayList<Tag>(ctx.sm.getDeclaringClass().getTags());
+		}
 		for (ValueBox vb : ret.getUseAndDefBoxes()) {
 			if (substiutionMap.containsKey(vb.getValue())) {
 				vb.setValue(substiutionMap.get(vb.getValue()));
 			}
 		}
 		ret.addAllTagsOf(u);
-		for (Tag t : this.sm.getDeclaringClass().getTags()) {
+		for (Tag t : classTags) {
 			if (t instanceof SourceFileTag) {
 				ret.addTag(t);
 			}
@@ -280,71 +700,87 @@ public class TraceExtractor {
 		return ret;
 	}
 
+	/**
+	 * Creates a local. Soot numbers all locals of the scene, so this holds
+	 * the sceneLock.
+	 */
+	private Local newLocal(String name, soot.Type type) {
+		synchronized (sceneLock) {
+			return Jimple.v().newLocal(name, type);
+		}
+	}
+
 	private SootMethod createNewMethod(final SootMethod orig, final SootClass containingClass) {
 		final String method_prefix = "XY_";
 		SootMethod newMethod = new SootMethod(method_prefix + orig.getName(), orig.getParameterTypes(),
 				orig.getReturnType(), orig.getModifiers());
-		containingClass.addMethod(newMethod);
+		synchronized (sceneLock) {
+			containingClass.addMethod(newMethod);
+		}
 		JimpleBody newBody = Jimple.v().newBody(newMethod);
 		newMethod.setActiveBody(newBody);
 		return newMethod;
 	}
 
-	private SootMethod createTraceMethod(Iterator<Pair<PptTopLevel, ValueTuple>> iterator,
-			final SootClass containingClass) {
+	private SootMethod createTraceMethod(final TraceContext ctx, final SootClass containingClass) {
+		final DaikonTrace trace = ctx.trace;
 		// final List<Unit> sootTrace = new LinkedList<Unit>();
 		final Stack<SootMethod> methodStack = new Stack<SootMethod>();
 		final Stack<Unit> callStack = new Stack<Unit>();
 
-		pcMethodStack.clear();
+		ctx.pcMethodStack.clear();
 
-		Pair<PptTopLevel, ValueTuple> ppt = iterator.next();
-		Verify.verify(ppt.a.name.endsWith(":::ENTER"), "Ppt is not a procedure entry: " + ppt.a.name);
+		final TraceCursor cursor = new TraceCursor(trace);
+		PptTopLevel ppt = cursor.ppt();
+		Verify.verify(cursor.current().kind == PptDescriptor.Kind.METHOD_ENTER,
+				"Ppt is not a procedure entry: " + ppt.name);
 
 		final Map<Value, Value> substiutionMap = new HashMap<Value, Value>();
 
-		sm = findMethodForPpt(ppt.a);
+		ctx.sm = findMethodForPpt(cursor.current());
 		// get the active body and start adding to it.
-		newMethod = createNewMethod(sm, containingClass);
-		final Body newBody = newMethod.getActiveBody();
+		ctx.newMethod = createNewMethod(ctx.sm, containingClass);
+		final Body newBody = ctx.newMethod.getActiveBody();
 
-		enterMethod(ppt, methodStack, callStack, newBody, substiutionMap);
+		enterMethod(ctx, cursor.current(), methodStack, callStack, newBody, substiutionMap);
 
-		while (iterator.hasNext()) {
-			ppt = iterator.next();
+		while (cursor.hasNext()) {
+			PptDescriptor d = cursor.next();
+			ppt = d.ppt;
 
 			boolean exceptionalJump = false;
 			boolean justPushedOnCallStack = false;
 
-			if (ppt.a.name.contains(pcMethodNameSuffix) && ppt.a.name.endsWith(":::ENTER")
-					&& ppt.a.name.contains("clinit") && !sm.getName().equals("<clinit>")) {
+			if (d.isClinitPc && !ctx.sm.getName().equals("<clinit>")) {
 				//check if we just jumped into a static initializer.
-				final String cName = ppt.a.name.substring(0, ppt.a.name.indexOf("._la_clinit_ra"));
-				SootClass sc = Scene.v().getSootClass(cName);
-				SootMethod staticInitializer = sc.getMethodByName("<clinit>");
-				sm = staticInitializer;
-				body = staticInitializer.retrieveActiveBody();
+				Verify.verifyNotNull(d.clinitClassName, "No class for " + ppt.name);
+				final SootMethod staticInitializer;
+				synchronized (sceneLock) {
+					staticInitializer = Scene.v().getSootClass(d.clinitClassName).getMethodByName("<clinit>");
+				}
+				ctx.sm = staticInitializer;
+				ctx.body = retrieveBody(staticInitializer);
 				methodStack.push(staticInitializer);
 				Unit cinitInvoke = Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(staticInitializer.makeRef()));
 				callStack.push(cinitInvoke);
-				haveToPushToPcStack = true;
-				for (SootField field : sm.getDeclaringClass().getFields()) {
+				ctx.haveToPushToPcStack = true;
+				for (SootField field : ctx.sm.getDeclaringClass().getFields()) {
 					if (field.isStatic()) {
 						Value rhs = getDefaultValue(field.getType());
 						Value lhs = Jimple.v().newStaticFieldRef(field.makeRef());
 						Unit init = Jimple.v().newAssignStmt(lhs, rhs);
-						newBody.getUnits().add(copySootStmt(init, substiutionMap));
+						newBody.getUnits().add(copySootStmt(ctx, init, substiutionMap));
 					}
 				}
-				for (Local l : body.getLocals()) {
+				for (Local l : ctx.body.getLocals()) {
 					if (!substiutionMap.containsKey(l)) {
 						if (l.getType() instanceof NullType) {
 							System.out.println("ignoring local " + l.getName() + " because it doesn't have a type");
 							continue;
 						}
-						Local newLocal = Jimple.v().newLocal(sm.getName() + "_" + l.getName(), l.getType());
+						Local newLocal = newLocal(ctx.sm.getName() + "_" + l.getName(), l.getType());
 						substiutionMap.put(l, newLocal);
-						newMethod.getActiveBody().getLocals().add(newLocal);
+						ctx.newMethod.getActiveBody().getLocals().add(newLocal);
 					}
 				}				
 //TODO				
@@ -356,20 +792,21 @@ public class TraceExtractor {
 			 * exception and we have to find the method on the method stack where the
 			 * exception got caught
 			 */
-			if (ppt.a.name.contains(pcMethodNameSuffix) && ppt.a.name.endsWith(":::ENTER")) {
+			switch (d.kind) {
+			case PC_ENTER: {
 				/**
 				 * =============================================================
 				 * ===
 				 * This part handles exceptional back jumps
 				 */
-				if (haveToPushToPcStack) {
-					pcMethodStack.push(ppt.a.name);
-					haveToPushToPcStack = false;
+				if (ctx.haveToPushToPcStack) {
+					ctx.pcMethodStack.push(ppt.name);
+					ctx.haveToPushToPcStack = false;
 				} else {
-					if (!pcMethodStack.isEmpty() && !ppt.a.name.equals(pcMethodStack.peek())) {
+					if (!ctx.pcMethodStack.isEmpty() && !ppt.name.equals(ctx.pcMethodStack.peek())) {
 						// then there was an exception and we have to pop stuff
 						// from our stacks until we have the right method again.
-						while (!pcMethodStack.isEmpty() && !ppt.a.name.equals(pcMethodStack.peek())) {
+						while (!ctx.pcMethodStack.isEmpty() && !ppt.name.equals(ctx.pcMethodStack.peek())) {
 							if (!callStack.isEmpty()) {
 								callStack.pop();
 								// I dont think we have to do this because
@@ -387,7 +824,7 @@ public class TraceExtractor {
 								// //not sure if the condition above is
 								// necessary.
 								// Unit asn =
-								// copySootStmt(Jimple.v().newAssignStmt(ivk.getBase(),
+								// copySootStmt(ctx, Jimple.v().newAssignStmt(ivk.getBase(),
 								// NullConstant.v()), substiutionMap);
 								// asn.addAllTagsOf(callee);
 								// newBody.getUnits().add(asn);
@@ -395,14 +832,14 @@ public class TraceExtractor {
 								// }
 							}
 							methodStack.pop();
-							pcMethodStack.pop();
+							ctx.pcMethodStack.pop();
 						}
-						if (!pcMethodStack.isEmpty()) {
-							sm = methodStack.peek();
-							body = sm.retrieveActiveBody();
+						if (!ctx.pcMethodStack.isEmpty()) {
+							ctx.sm = methodStack.peek();
+							ctx.body = retrieveBody(ctx.sm);
 							exceptionalJump = true;
 						} else {
-							return newMethod;
+							return ctx.newMethod;
 						}
 					}
 				}
@@ -411,14 +848,17 @@ public class TraceExtractor {
 				 * ===
 				 */
 
-				VarInfo vi = ppt.a.find_var_by_name(pcMethodArgName);
-				long arg = (Long) ppt.b.getValueOrNull(vi);
+				final long arg = cursor.pc();
+				final int pcPos = cursor.position();
 
 				// skip the exit of this method as well.
-				ppt = iterator.next();
+				ppt = cursor.next().ppt;
 
-				List<Integer> skipList = new LinkedList<Integer>();
-				Unit u = findUnitAtPos(body, arg, skipList);
+				final PcTarget target = findUnitsAtPos(ctx.body, arg);
+				final List<Integer> skipList = target.skipList;
+				final List<Unit> block = target.units;
+				final boolean inPreSlice = isInPreSlice(ctx, pcPos, skipList.size());
+				Unit u = block.isEmpty() ? null : block.get(0);
 				// Unit u= findUnitAtPos(body, arg, iterator);
 				// System.err.println(" " + u + "\t" + sm.getName());
 
@@ -430,7 +870,7 @@ public class TraceExtractor {
 								&& ((DefinitionStmt) pre).getRightOp() instanceof CaughtExceptionRef) {
 							break;
 						}
-						pre = sm.getActiveBody().getUnits().getPredOf(pre);
+						pre = ctx.sm.getActiveBody().getUnits().getPredOf(pre);
 					}
 					if (pre != null) {
 						CaughtExceptionRef cer = (CaughtExceptionRef) (((DefinitionStmt) pre).getRightOp());
@@ -441,34 +881,36 @@ public class TraceExtractor {
 							newBody.getUnits().removeLast();
 							Unit newasn = Jimple.v().newAssignStmt(((DefinitionStmt) pre).getLeftOp(),
 									((ThrowStmt) last).getOp());
-							newBody.getUnits().add(copySootStmt(newasn, substiutionMap));
+							newBody.getUnits().add(copySootStmt(ctx, newasn, substiutionMap));
 						} else {
 
 							// create a new runtimeexception here.
 							final String name = "__exLocal" + newBody.getLocalCount();
 							RefType t = (RefType) cer.getType();
-							if (t.getSootClass().isAbstract()) {
-								t = RefType.v(Scene.v().getSootClass("java.lang.RuntimeException"));
+							final SootMethod constr;
+							synchronized (sceneLock) {
+								if (t.getSootClass().isAbstract()) {
+									t = RefType.v(Scene.v().getSootClass("java.lang.RuntimeException"));
+								}
+								constr = t.getSootClass().getMethod("<init>", new LinkedList<Type>(), VoidType.v());
 							}
-							Local exVar = Jimple.v().newLocal(name, t);
+							Local exVar = newLocal(name, t);
 							newBody.getLocals().add(exVar);
 							Stmt s = Jimple.v().newAssignStmt(exVar, Jimple.v().newNewExpr(t));
 							s.addAllTagsOf(pre);
 							newBody.getUnits().add(s);
 
-							SootMethod constr = t.getSootClass().getMethod("<init>", new LinkedList<Type>(),
-									VoidType.v());
 							s = Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(exVar, constr.makeRef()));
 							s.addAllTagsOf(pre);
 							newBody.getUnits().add(s);
 
 							Unit newasn = Jimple.v().newAssignStmt(((DefinitionStmt) pre).getLeftOp(), exVar);
-							newBody.getUnits().add(copySootStmt(newasn, substiutionMap));
+							newBody.getUnits().add(copySootStmt(ctx, newasn, substiutionMap));
 						}
 					} else {
 						// TODO
 						System.err.println("No catch found for " + u + ". Guess we are done here.");
-						return newMethod;
+						return ctx.newMethod;
 					}
 				}
 
@@ -476,78 +918,84 @@ public class TraceExtractor {
 					// TODO:
 					continue;
 				}
-				for (ValueBox vb : u.getUseAndDefBoxes()) {
-					if (vb.getValue() instanceof FieldRef) {
-						if (!((FieldRef) vb.getValue()).getField().isPublic()) {
-							if (((FieldRef) vb.getValue()).getField().isStatic()) {
-								((FieldRef) vb.getValue()).getField().setModifiers(Modifier.PUBLIC | Modifier.STATIC);
-							} else {
-								((FieldRef) vb.getValue()).getField().setModifiers(Modifier.PUBLIC);
+				// In block sampling mode, one pc stands for all statements up
+				// to the next pc. Otherwise the block is just u.
+				for (Unit blockUnit : block) {
+					u = blockUnit;
+					for (ValueBox vb : u.getUseAndDefBoxes()) {
+						if (vb.getValue() instanceof FieldRef) {
+							synchronized (sceneLock) {
+								if (!((FieldRef) vb.getValue()).getField().isPublic()) {
+									if (((FieldRef) vb.getValue()).getField().isStatic()) {
+										((FieldRef) vb.getValue()).getField().setModifiers(Modifier.PUBLIC | Modifier.STATIC);
+									} else {
+										((FieldRef) vb.getValue()).getField().setModifiers(Modifier.PUBLIC);
+									}
+								}
 							}
 						}
-					}
 
-				}
-				if (u instanceof IfStmt || u instanceof SwitchStmt || u instanceof GotoStmt) {
-					// ignore
-				} else if (u instanceof ReturnVoidStmt) {
-					// do nothing
-					if (callStack.isEmpty()) {
-						newBody.getUnits().add(copySootStmt(u, substiutionMap));
-					} else {
-						callStack.pop();
 					}
-				} else if (u instanceof ReturnStmt) {
-					ReturnStmt rstmt = (ReturnStmt) u;
-					if (callStack.isEmpty()) {
-						newBody.getUnits().add(copySootStmt(u, substiutionMap));
-					} else {
-						Unit callee = callStack.pop();
-						if (callee instanceof DefinitionStmt) {
-							DefinitionStmt call = (DefinitionStmt) callee;
-							Unit asn = copySootStmt(Jimple.v().newAssignStmt(call.getLeftOp(), rstmt.getOp()),
-									substiutionMap);
-							asn.addAllTagsOf(rstmt);// keep the line number of
-													// the return
-							newBody.getUnits().add(asn);
-						} else if (callee instanceof InvokeStmt) {
-							// if the callee was an InvokeStmt, the return value
-							// is
-							// ignored.
+					if (u instanceof IfStmt || u instanceof SwitchStmt || u instanceof GotoStmt) {
+						// ignore
+					} else if (u instanceof ReturnVoidStmt) {
+						// do nothing
+						if (callStack.isEmpty()) {
+							newBody.getUnits().add(copySootStmt(ctx, u, substiutionMap));
 						} else {
-							throw new RuntimeException("Not implemented " + callee + "\n" + ppt.a.name);
+							callStack.pop();
 						}
+					} else if (u instanceof ReturnStmt) {
+						ReturnStmt rstmt = (ReturnStmt) u;
+						if (callStack.isEmpty()) {
+							newBody.getUnits().add(copySootStmt(ctx, u, substiutionMap));
+						} else {
+							Unit callee = callStack.pop();
+							if (callee instanceof DefinitionStmt) {
+								DefinitionStmt call = (DefinitionStmt) callee;
+								Unit asn = copySootStmt(ctx, Jimple.v().newAssignStmt(call.getLeftOp(), rstmt.getOp()),
+										substiutionMap);
+								asn.addAllTagsOf(rstmt);// keep the line number of
+														// the return
+								if (inPreSlice) {
+									newBody.getUnits().add(asn);
+								}
+							} else if (callee instanceof InvokeStmt) {
+								// if the callee was an InvokeStmt, the return value
+								// is
+								// ignored.
+							} else {
+								throw new RuntimeException("Not implemented " + callee + "\n" + ppt.name);
+							}
+						}
+					} else if (((Stmt) u).containsInvokeExpr()) {
+						InvokeExpr ivk = ((Stmt) u).getInvokeExpr();
+
+						if (ivk.getMethod().getDeclaringClass().isLibraryClass()
+								|| ivk.getMethod().getDeclaringClass().isJavaLibraryClass()) {
+							// do not try to inline library calls.
+							if (inPreSlice) {
+								newBody.getUnits().add(copySootStmt(ctx, u, substiutionMap));
+							}
+						} else {
+							callStack.push(u);
+							justPushedOnCallStack = true;
+						}
+					} else if (inPreSlice || u instanceof ThrowStmt) {
+						// throws are kept for the catch blocks.
+						newBody.getUnits().add(copySootStmt(ctx, u, substiutionMap));
 					}
-				} else if (((Stmt) u).containsInvokeExpr()) {
-					InvokeExpr ivk = ((Stmt) u).getInvokeExpr();
-
-					if (ivk.getMethod().getDeclaringClass().isLibraryClass()
-							|| ivk.getMethod().getDeclaringClass().isJavaLibraryClass()) {
-						// do not try to inline library calls.
-						newBody.getUnits().add(copySootStmt(u, substiutionMap));
-					} else {
-						callStack.push(u);
-						justPushedOnCallStack = true;
-					}
-				} else {
-					newBody.getUnits().add(copySootStmt(u, substiutionMap));
 				}
 
 				for (int i : skipList) {
-					if (!iterator.hasNext()) {
+					if (!cursor.skipPc(i)) {
 						// Then the trace just threw an exception and we're
 						// done.
-						return newMethod;
+						return ctx.newMethod;
 					}
-					ppt = iterator.next();
-					Verify.verify(ppt.a.name.contains(pcMethodNameSuffix) && ppt.a.name.endsWith(":::ENTER"));
-					vi = ppt.a.find_var_by_name(pcMethodArgName);
-					arg = (Long) ppt.b.getValueOrNull(vi);
-					Verify.verify(arg == (long) i, "Wrong number " + arg + "!=" + i);
-					ppt = iterator.next();
-					Verify.verify(ppt.a.name.contains(pcMethodNameSuffix) && ppt.a.name.contains(":::EXIT"));
+					ppt = cursor.ppt();
 				}
-				if (!iterator.hasNext() && justPushedOnCallStack) {
+				if (!cursor.hasNext() && justPushedOnCallStack) {
 					/*
 					 * In this case we just put an InstanceInvoke on the call
 					 * stack
@@ -560,18 +1008,22 @@ public class TraceExtractor {
 					Value v1 = ivk.getBase();
 					Value v2 = NullConstant.v();
 					Unit asrt = makeAssertNotEquals(u, v1, v2);
-					asrt = copySootStmt(asrt, substiutionMap);
+					asrt = copySootStmt(ctx, asrt, substiutionMap);
 					newBody.getUnits().add(asrt);
-					return newMethod;
+					return ctx.newMethod;
 				}
-			} else if (ppt.a.name.contains(wrapperMethodNameSuffix) && ppt.a.name.endsWith(":::ENTER")) {
-				Pair<PptTopLevel, ValueTuple> next = peekNextPpt(ppt);
+				break;
+			}
+			case WRAPPER_ENTER: {
+				PptDescriptor next = cursor.peek();
 				Unit call = callStack.pop();
 				SootMethod callee = ((Stmt) call).getInvokeExpr().getMethod();
-				if (next != null && next.a.name.contains(wrapperMethodNameSuffix) && next.a.name.contains(":::EXIT")) {
-					Pair<PptTopLevel, ValueTuple> pre = ppt;
-					ppt = iterator.next();
-					Set<VarInfo> changedVars = findChangedVariables(pre, ppt);
+				if (next != null && next.kind == PptDescriptor.Kind.WRAPPER_EXIT) {
+					final PptTopLevel prePpt = ppt;
+					final ValueTuple preValues = cursor.values();
+					d = cursor.next();
+					ppt = d.ppt;
+					Set<VarInfo> changedVars = findChangedVariables(prePpt, preValues, ppt, cursor.values());
 					for (VarInfo vi : changedVars) {
 						throw new RuntimeException("Not implementd ");// TODO
 																		// side
@@ -579,22 +1031,16 @@ public class TraceExtractor {
 					}
 					// update the return value.
 					if (call instanceof DefinitionStmt) {
-						VarInfo retVi = null;
-						for (VarInfo vi : ppt.a.var_infos) {
-							if (vi.var_kind == VarKind.RETURN) {
-								retVi = vi;
-								break;
-							}
-						}
+						VarInfo retVi = d.returnVar;
 						if (retVi != null) {
-							Value rhs = daikonValueToSootValue(retVi, ppt, newBody);
+							Value rhs = daikonValueToSootValue(ctx, retVi, ppt, cursor.values(), newBody);
 							Unit asn = Jimple.v().newAssignStmt(((DefinitionStmt) call).getLeftOp(), rhs);
 							asn.addAllTagsOf(call);
-							newBody.getUnits().add(copySootStmt(asn, substiutionMap));
+							newBody.getUnits().add(copySootStmt(ctx, asn, substiutionMap));
 						} else {
 							System.err.println(
-									"Could not find return var for " + ppt.a.name + " ignoring the statement.");
-							for (VarInfo vi : ppt.a.var_infos) {
+									"Could not find return var for " + ppt.name + " ignoring the statement.");
+							for (VarInfo vi : ppt.var_infos) {
 								System.err.println("\t" + vi.toString());
 							}
 						}
@@ -610,45 +1056,52 @@ public class TraceExtractor {
 						Value v2 = NullConstant.v();
 						Unit asrt = makeAssertNotEquals(call, v1, v2);
 						asrt.addAllTagsOf(call);
-						asrt = copySootStmt(asrt, substiutionMap);
+						asrt = copySootStmt(ctx, asrt, substiutionMap);
 						newBody.getUnits().add(asrt);
 					} else {
 						// dont do anything.
 					}
 					// TODO: assert that the current input is illegal.
-					// throw new RuntimeException("throws an ex "+ppt.a.name);
+					// throw new RuntimeException("throws an ex "+ppt.name);
 					for (int i = offset; i < ((Stmt) call).getInvokeExpr().getArgCount(); i++) {
 						Value v1 = ((Stmt) call).getInvokeExpr().getArg(i);
-						VarInfo argVar = ppt.a.find_var_by_name("arg" + i);
-						Value v2 = daikonValueToSootValue(argVar, ppt, newBody);
+						VarInfo argVar = d.getArgVar(i);
+						Value v2 = daikonValueToSootValue(ctx, argVar, ppt, cursor.values(), newBody);
 						if (v1.equals(v2)) {
 							System.err.println("Not adding " + v1 + "!=" + v2 + " beause its trivial");
 						} else {
 							Unit asrt = makeAssertNotEquals(call, v1, v2);
 							asrt.addAllTagsOf(call);
-							newBody.getUnits().add(copySootStmt(asrt, substiutionMap));
+							newBody.getUnits().add(copySootStmt(ctx, asrt, substiutionMap));
 						}
 						// System.err.println("adding assertion " + asrt);
 					}
 					if (next == null) {
-						return newMethod;
+						return ctx.newMethod;
 					}
 				}
-			} else if (ppt.a.name.endsWith(":::ENTER")) {
-				enterMethod(ppt, methodStack, callStack, newBody, substiutionMap);
-			} else if (ppt.a.name.contains(":::EXIT")) {
+				break;
+			}
+			case METHOD_ENTER:
+				enterMethod(ctx, d, methodStack, callStack, newBody, substiutionMap);
+				break;
+			case PC_EXIT:
+			case WRAPPER_EXIT:
+			case METHOD_EXIT: {
 				SootMethod exitedMethod = methodStack.pop();
-				sm = methodStack.peek();
-				body = sm.retrieveActiveBody();
-				Verify.verify(!pcMethodStack.isEmpty(), "pcMethodStack must not be empty when goign from "
-						+ exitedMethod.getName() + " to " + sm.getName());
-				pcMethodStack.pop();
-			} else {
-				System.err.println("Don't know how to handle " + ppt.a.name);
+				ctx.sm = methodStack.peek();
+				ctx.body = retrieveBody(ctx.sm);
+				Verify.verify(!ctx.pcMethodStack.isEmpty(), "pcMethodStack must not be empty when goign from "
+						+ exitedMethod.getName() + " to " + ctx.sm.getName());
+				ctx.pcMethodStack.pop();
+				break;
+			}
+			default:
+				System.err.println("Don't know how to handle " + ppt.name);
 			}
 		}
 
-		return newMethod;
+		return ctx.newMethod;
 	}
 
 	public Unit makeAssertNotEquals(Unit host, Value v1, Value v2) {
@@ -664,8 +1117,8 @@ public class TraceExtractor {
 		return asrt;
 	}
 
-	private Value daikonValueToSootValue(VarInfo vi, Pair<PptTopLevel, ValueTuple> ppt, Body newBody) {
-		Object val = ppt.b.getValueOrNull(vi);
+	private Value daikonValueToSootValue(TraceContext ctx, VarInfo vi, PptTopLevel ppt, ValueTuple vt, Body newBody) {
+		Object val = vt.getValueOrNull(vi);
 		if (val == null) {
 			return NullConstant.v();
 		} else if (vi.type == ProglangType.INT || vi.type == ProglangType.BOOLEAN || vi.type == ProglangType.CHAR) {
@@ -675,19 +1128,25 @@ public class TraceExtractor {
 		} else if (vi.type == ProglangType.DOUBLE) {
 			return DoubleConstant.v((Double) val);
 		} else if (vi.type == ProglangType.STRING) {
-			VarInfo vi_str = ppt.a.find_var_by_name(vi.name() + ".toString");
-			val = ppt.b.getValueOrNull(vi_str);
+			VarInfo vi_str = ppt.find_var_by_name(vi.name() + ".toString");
+			val = vt.getValueOrNull(vi_str);
 			return StringConstant.v(String.valueOf(val));
 		}
 
 		// System.err.println(this.sm.getName()+ " "+vi.name() + " " + vi.type +
 		// " " + val);
 		// System.err.println(vi);
-		if (Scene.v().containsClass(vi.type.toString())) {
-			SootClass sc = Scene.v().loadClass(vi.type.toString(), SootClass.SIGNATURES);
-			Local newlocal = Jimple.v().newLocal("newLocal_" + (newLocalCounter++), RefType.v(sc));
+		RefType type = null;
+		Local newlocal = null;
+		synchronized (sceneLock) {
+			if (Scene.v().containsClass(vi.type.toString())) {
+				type = RefType.v(Scene.v().loadClass(vi.type.toString(), SootClass.SIGNATURES));
+				newlocal = Jimple.v().newLocal("newLocal_" + (ctx.newLocalCounter++), type);
+			}
+		}
+		if (newlocal != null) {
 			newBody.getLocals().add(newlocal);
-			newBody.getUnits().add(Jimple.v().newAssignStmt(newlocal, Jimple.v().newNewExpr(RefType.v(sc))));
+			newBody.getUnits().add(Jimple.v().newAssignStmt(newlocal, Jimple.v().newNewExpr(type)));
 			// TODO ------------------
 			return newlocal;
 		}
@@ -695,39 +1154,56 @@ public class TraceExtractor {
 		throw new RuntimeException("not implemented for type " + vi.type + " of value " + val);
 	}
 
-	private Pair<PptTopLevel, ValueTuple> peekNextPpt(Pair<PptTopLevel, ValueTuple> ppt) {
-		return peekNextPpt(ppt, 0);
-	}
-
-	private Pair<PptTopLevel, ValueTuple> peekNextPpt(Pair<PptTopLevel, ValueTuple> ppt, int offset) {
-		int currentPos = this.currentTrace.trace.indexOf(ppt);
-		ListIterator<Pair<PptTopLevel, ValueTuple>> lit = this.currentTrace.trace.listIterator(currentPos + 1 + offset);
-		if (lit.hasNext()) {
-			return lit.next();
+	private Set<VarInfo> findChangedVariables(PptTopLevel pre, ValueTuple preValues, PptTopLevel post,
+			ValueTuple postValues) {
+		Set<VarInfo> changedVars = new HashSet<VarInfo>();
+		for (VarInfo[] pair : getMatchingVariables(pre, post)) {
+			final VarInfo a = pair[0];
+			Object v1 = preValues.getValueOrNull(a);
+			Object v2 = postValues.getValueOrNull(a);
+			if (v1 == null && v2 == null) {
+				// nothing changed; ignore
+			} else if (v1 != null && v1.equals(v2)) {
+				// nothing changed; ignore
+			} else {
+				// value changed. remember update.
+				if (dynslicer.Options.v().debugOutput()) {
+					System.err.println("Var " + a.name() + " changed from " + v1 + " to " + v2);
+				}
+				changedVars.add(pair[1]);
+			}
 		}
-		return null;
+		return changedVars;
 	}
 
-	private Set<VarInfo> findChangedVariables(Pair<PptTopLevel, ValueTuple> pre, Pair<PptTopLevel, ValueTuple> post) {
-		Set<VarInfo> changedVars = new HashSet<VarInfo>();
-		for (VarInfo a : pre.a.var_infos) {
-			for (VarInfo b : post.a.var_infos) {
-				if (a.equals(b)) {
-					Object v1 = pre.b.getValueOrNull(a);
-					Object v2 = post.b.getValueOrNull(a);
-					if (v1 == null && v2 == null) {
-						// nothing changed; ignore
-					} else if (v1 != null && v1.equals(v2)) {
-						// nothing changed; ignore
-					} else {
-						// value changed. remember update.
-						System.err.println("Var " + a.name() + " changed from " + v1 + " to " + v2);
-						changedVars.add(b);
+	/**
+	 * Returns the pairs of equal variables of 'pre' and 'post'. The pairs
+	 * are computed once per pair of ppts.
+	 */
+	private List<VarInfo[]> getMatchingVariables(PptTopLevel pre, PptTopLevel post) {
+		synchronized (matchingVariables) {
+			Map<PptTopLevel, List<VarInfo[]>> byPost = matchingVariables.get(pre);
+			if (byPost == null) {
+				byPost = new HashMap<PptTopLevel, List<VarInfo[]>>();
+				matchingVariables.put(pre, byPost);
+			}
+			List<VarInfo[]> pairs = byPost.get(post);
+			if (pairs == null) {
+				final Map<VarInfo, VarInfo> postVars = new HashMap<VarInfo, VarInfo>();
+				for (VarInfo b : post.var_infos) {
+					postVars.put(b, b);
+				}
+				pairs = new ArrayList<VarInfo[]>();
+				for (VarInfo a : pre.var_infos) {
+					final VarInfo b = postVars.get(a);
+					if (b != null) {
+						pairs.add(new VarInfo[] { a, b });
 					}
 				}
+				byPost.put(post, pairs);
 			}
+			return pairs;
 		}
-		return changedVars;
 	}
 
 	// private void findChangedVariables(Pair<PptTopLevel, ValueTuple> ppt, Unit
@@ -762,112 +1238,185 @@ public class TraceExtractor {
 	// }
 	// }
 
-	private void enterMethod(Pair<PptTopLevel, ValueTuple> ppt, final Stack<SootMethod> methodStack,
+	private void enterMethod(TraceContext ctx, PptDescriptor ppt, final Stack<SootMethod> methodStack,
 			final Stack<Unit> callStack, Body newBody, final Map<Value, Value> substiutionMap) {
-		sm = findMethodForPpt(ppt.a);
+		ctx.sm = findMethodForPpt(ppt);
 
-		body = sm.retrieveActiveBody();
-		methodStack.push(sm);
-		haveToPushToPcStack = true;
+		ctx.body = retrieveBody(ctx.sm);
+		methodStack.push(ctx.sm);
+		ctx.haveToPushToPcStack = true;
 		// Add all the locals from sm to newMethod
-		for (Local l : body.getLocals()) {
+		for (Local l : ctx.body.getLocals()) {
 			if (!substiutionMap.containsKey(l)) {
 				if (l.getType() instanceof NullType) {
 					System.out.println("ignoring local " + l.getName() + " because it doesn't have a type");
 					continue;
 				}
-				Local newLocal = Jimple.v().newLocal(sm.getName() + "_" + l.getName(), l.getType());
+				Local newLocal = newLocal(ctx.sm.getName() + "_" + l.getName(), l.getType());
 				substiutionMap.put(l, newLocal);
-				newMethod.getActiveBody().getLocals().add(newLocal);
+				ctx.newMethod.getActiveBody().getLocals().add(newLocal);
 			}
 		}
 
 		// Add the IdentityStmts that assign Parameters to Locals
 		// because those do not show up on the trace otherwise.
-		for (Unit u : body.getUnits()) {
+		for (Unit u : ctx.body.getUnits()) {
 			if (u instanceof IdentityStmt && ((IdentityStmt) u).getRightOp() instanceof ParameterRef) {
 				IdentityStmt idStmt = (IdentityStmt) u;
 				ParameterRef pr = (ParameterRef) idStmt.getRightOp();
 				if (!callStack.isEmpty()) {
 					InvokeExpr ivk = ((Stmt) callStack.peek()).getInvokeExpr();
-					Verify.verify(ivk.getMethod().getName().equals(sm.getName()),
-							ivk.getMethod().getName() + "!=" + sm.getName());
+					Verify.verify(ivk.getMethod().getName().equals(ctx.sm.getName()),
+							ivk.getMethod().getName() + "!=" + ctx.sm.getName());
 					// Now we have to add and AssignStmt instead of a
 					// DefinitionStmt.
 					try {
-						Unit s = copySootStmt(Jimple.v().newAssignStmt(idStmt.getLeftOp(), ivk.getArg(pr.getIndex())),
+						Unit s = copySootStmt(ctx, Jimple.v().newAssignStmt(idStmt.getLeftOp(), ivk.getArg(pr.getIndex())),
 								substiutionMap);
-						s.addAllTagsOf(sm);
+						s.addAllTagsOf(ctx.sm);
 						// find the line number of the first stmt
-						s.addAllTagsOf(((JimpleBody) body).getFirstNonIdentityStmt());
+						s.addAllTagsOf(((JimpleBody) ctx.body).getFirstNonIdentityStmt());
 						newBody.getUnits().add(s);
 					} catch (Exception e) {
 						System.err.println("Failed to inline call");
-						System.err.println("In method " + sm.getSignature());
+						System.err.println("In method " + ctx.sm.getSignature());
 						System.err.println(u);
 						System.err.println(callStack.peek());
 						e.printStackTrace(System.err);
 						throw new RuntimeException();
 					}
 				} else {
-					newBody.getUnits().add(copySootStmt(u, substiutionMap));
+					newBody.getUnits().add(copySootStmt(ctx, u, substiutionMap));
 				}
 			} else if (u instanceof IdentityStmt && ((IdentityStmt) u).getRightOp() instanceof ThisRef) {
 				IdentityStmt idStmt = (IdentityStmt) u;
 				if (!callStack.isEmpty() && ((Stmt) callStack.peek()).getInvokeExpr() instanceof InstanceInvokeExpr) {
 					InstanceInvokeExpr ivk = (InstanceInvokeExpr) ((Stmt) callStack.peek()).getInvokeExpr();
 					Stmt s = Jimple.v().newAssignStmt(idStmt.getLeftOp(), ivk.getBase());
-					newBody.getUnits().add(copySootStmt(s, substiutionMap));
+					newBody.getUnits().add(copySootStmt(ctx, s, substiutionMap));
 				} else {
-					newBody.getUnits().add(copySootStmt(u, substiutionMap));
+					newBody.getUnits().add(copySootStmt(ctx, u, substiutionMap));
 				}
 			}
 		}
 
 		// init all fields if its a constructor
-		if (sm.isConstructor()) {
-			for (SootField field : sm.getDeclaringClass().getFields()) {
+		if (ctx.sm.isConstructor()) {
+			for (SootField field : ctx.sm.getDeclaringClass().getFields()) {
 				if (!field.isStatic()) {
 					Value rhs = getDefaultValue(field.getType());
-					Value lhs = Jimple.v().newInstanceFieldRef(body.getThisLocal(), field.makeRef());
+					Value lhs = Jimple.v().newInstanceFieldRef(ctx.body.getThisLocal(), field.makeRef());
 					Unit init = Jimple.v().newAssignStmt(lhs, rhs);
-					newBody.getUnits().add(copySootStmt(init, substiutionMap));
+					newBody.getUnits().add(copySootStmt(ctx, init, substiutionMap));
 				}
 			}
-		} else if (sm.isStaticInitializer()) {
-			for (SootField field : sm.getDeclaringClass().getFields()) {
+		} else if (ctx.sm.isStaticInitializer()) {
+			for (SootField field : ctx.sm.getDeclaringClass().getFields()) {
 				if (field.isStatic()) {
 					Value rhs = getDefaultValue(field.getType());
 					Value lhs = Jimple.v().newStaticFieldRef(field.makeRef());
 					Unit init = Jimple.v().newAssignStmt(lhs, rhs);
-					newBody.getUnits().add(copySootStmt(init, substiutionMap));
+					newBody.getUnits().add(copySootStmt(ctx, init, substiutionMap));
 				}
 			}
 		}
 
 	}
 
-	private Unit findUnitAtPos(Body body, long pos, List<Integer> outSkipList) {
-		PatchingChain<Unit> units = body.getUnits();
-		Unit ret = null;
+	/**
+	 * The statements that are executed after the call to a pc method and
+	 * the pcs of the pc method calls that immediately follow it. Those pcs
+	 * show up on the trace as well and have to be skipped. Without block
+	 * sampling, units contains at most one statement. With block sampling,
+	 * it contains all statements up to the next call to a pc method, i.e.,
+	 * the rest of the basic block.
+	 */
+	private static class PcTarget {
+		private static final PcTarget NONE = new PcTarget(Collections.<Unit> emptyList(),
+				Collections.<Integer> emptyList());
+
+		// shared by all threads that extract traces, so they are read-only.
+		final List<Unit> units;
+		final List<Integer> skipList;
+
+		PcTarget(List<Unit> units, List<Integer> skipList) {
+			this.units = Collections.unmodifiableList(units);
+			this.skipList = Collections.unmodifiableList(skipList);
+		}
+	}
+
+	/**
+	 * Returns the PcTarget of the call to the pc method with argument 'pc'
+	 * in 'body', or an empty one if there is no such call.
+	 * 
+	 * @param body
+	 * @param pc
+	 * @return the statements executed for this pc and the pcs to skip.
+	 */
+	private PcTarget findUnitsAtPos(Body body, long pc) {
+		Map<Integer, PcTarget> index;
+		synchronized (pcIndex) {
+			index = pcIndex.get(body);
+			if (index == null) {
+				index = buildPcIndex(body);
+				pcIndex.put(body, index);
+			}
+		}
+		final PcTarget target = index.get((int) pc);
+		return target == null ? PcTarget.NONE : target;
+	}
+
+	private Map<Integer, PcTarget> buildPcIndex(Body body) {
+		final PatchingChain<Unit> units = body.getUnits();
+		final Map<Integer, PcTarget> index = new HashMap<Integer, PcTarget>();
 		for (Unit u : units) {
-			if (u instanceof InvokeStmt) {
-				InvokeStmt ivk = (InvokeStmt) u;
-				InvokeExpr ie = ivk.getInvokeExpr();
-				List<Value> args = ie.getArgs();
-
-				if (isPcMethod(ivk) && (((IntConstant) args.get(0)).value == (int) pos)) {
-					Unit next = units.getSuccOf(u);
-					while (isPcMethod(next) && next != null) {
-						Value v = ((InvokeStmt) next).getInvokeExpr().getArg(0);
-						outSkipList.add(((IntConstant) v).value);
+			if (!isPcMethod(u)) {
+				continue;
+			}
+			final int pc = ((IntConstant) ((InvokeStmt) u).getInvokeExpr().getArg(0)).value;
+			if (index.containsKey(pc)) {
+				// the first call with this pc wins.
+				continue;
+			}
+			List<Unit> ret = new LinkedList<Unit>();
+			List<Integer> skipList = new LinkedList<Integer>();
+			Unit next = units.getSuccOf(u);
+			while (isPcMethod(next) && next != null) {
+				Value v = ((InvokeStmt) next).getInvokeExpr().getArg(0);
+				skipList.add(((IntConstant) v).value);
+				next = units.getSuccOf(next);
+			}
+			if (next != null) {
+				ret.add(next);
+				if (blockSampling) {
+					next = units.getSuccOf(next);
+					while (next != null && !isPcMethod(next)) {
+						ret.add(next);
 						next = units.getSuccOf(next);
 					}
-					return next;
 				}
 			}
+			index.put(pc, new PcTarget(ret, skipList));
 		}
-		return ret;
+		return index;
+	}
+
+	/**
+	 * Returns true if there is no pre-slice or if one of the pcs that start
+	 * at 'pcPos' is in the pre-slice. The statements after a run of pc calls
+	 * are copied when the first pc of the run is processed. The other
+	 * numSkipped pcs of the run follow as pairs of entry and exit.
+	 */
+	private boolean isInPreSlice(TraceContext ctx, int pcPos, int numSkipped) {
+		if (ctx.preSlice == null) {
+			return true;
+		}
+		for (int i = 0; i <= numSkipped; i++) {
+			if (ctx.preSlice.get(pcPos + 2 * i)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	private boolean isPcMethod(Unit u) {
@@ -878,7 +1427,72 @@ public class TraceExtractor {
 		return false;
 	}
 
+	/**
+	 * Returns the active body of 'm'. Soot builds bodies and resolves the
+	 * methods and fields they use lazily, which changes the scene. So this
+	 * resolves all of them the first time a body is retrieved, and the
+	 * extraction threads can use the body without the lock afterwards.
+	 */
+	private Body retrieveBody(SootMethod m) {
+		synchronized (sceneLock) {
+			final Body b = m.retrieveActiveBody();
+			if (resolvedBodies.add(b)) {
+				for (ValueBox vb : b.getUseAndDefBoxes()) {
+					try {
+						if (vb.getValue() instanceof InvokeExpr) {
+							((InvokeExpr) vb.getValue()).getMethod();
+						} else if (vb.getValue() instanceof FieldRef) {
+							((FieldRef) vb.getValue()).getField();
+						}
+					} catch (RuntimeException e) {
+						// fails again if the statement is on a trace.
+					}
+				}
+			}
+			return b;
+		}
+	}
+
+	/**
+	 * Returns the method of the entry 'd'. The method is resolved once per
+	 * scene and then kept in the descriptor.
+	 */
+	private SootMethod findMethodForPpt(PptDescriptor d) {
+		methodLookups.incrementAndGet();
+		final Scene scene = Scene.v();
+		SootMethod sm = d.getMethod(scene);
+		if (sm == null) {
+			sm = findMethodForPpt(d.ppt);
+			d.setMethod(sm, scene);
+		} else {
+			methodCacheHits.incrementAndGet();
+		}
+		return sm;
+	}
+
+	/**
+	 * Returns the method of the entry 'ppt'. The methods are cached by the
+	 * name of the ppt without the ":::ENTER", because the traces of
+	 * different DaikonRunners (e.g., of different shards) have their own
+	 * ppts and descriptors.
+	 */
 	private SootMethod findMethodForPpt(PptTopLevel ppt) {
+		final String key = ppt.name.substring(0, ppt.name.indexOf(":::"));
+		synchronized (sceneLock) {
+			SootMethod sm = methodCache.get(key);
+			if (sm != null) {
+				methodCacheHits.incrementAndGet();
+				return sm;
+			}
+			final long start = System.nanoTime();
+			sm = resolveMethodForPpt(ppt);
+			methodResolutionNanos.addAndGet(System.nanoTime() - start);
+			methodCache.put(key, sm);
+			return sm;
+		}
+	}
+
+	private SootMethod resolveMethodForPpt(PptTopLevel ppt) {
 		final String qualifiedMethodName = ppt.name.substring(0, ppt.name.indexOf("("));
 		final String className = qualifiedMethodName.substring(0, qualifiedMethodName.lastIndexOf('.'));
 		String methodName = qualifiedMethodName.substring(qualifiedMethodName.lastIndexOf('.') + 1,
@@ -906,7 +1520,23 @@ public class TraceExtractor {
 		return sm;
 	}
 
+	/**
+	 * Returns the type with the name 's' as used in ppt names. Must be
+	 * called while holding the sceneLock.
+	 */
 	private soot.Type stringToType(String s) {
+		typeLookups++;
+		soot.Type t = typeCache.get(s);
+		if (t == null) {
+			t = parseType(s);
+			typeCache.put(s, t);
+		} else {
+			typeCacheHits++;
+		}
+		return t;
+	}
+
+	private soot.Type parseType(String s) {
 		soot.Type t;
 		if (s.endsWith("[]")) {
 			return stringToType(s.substring(0, s.length() - 2)).makeArrayType();
@@ -933,8 +1563,13 @@ public class TraceExtractor {
 		return t;
 	}
 
-	private void loadSootScene(File classDir, String classPath) {
+	private void loadSootScene(File classDir, String classPath, Set<String> traceClasses) {
 		soot.G.reset();
+		// the bodies of the old scene are gone.
+		pcIndex.clear();
+		resolvedBodies.clear();
+		methodCache.clear();
+		typeCache.clear();
 		Options sootOpt = Options.v();
 		// general soot options
 		sootOpt.set_keep_line_number(true);
@@ -951,21 +1586,60 @@ public class TraceExtractor {
 		}
 		sootOpt.set_soot_classpath(classPath);
 
-		List<String> processDirs = new LinkedList<String>();
-		processDirs.add(classDir.getAbsolutePath());
-		sootOpt.set_process_dir(processDirs);
+		List<String> applicationClasses = null;
+		if (traceClasses == null) {
+			List<String> processDirs = new LinkedList<String>();
+			processDirs.add(classDir.getAbsolutePath());
+			sootOpt.set_process_dir(processDirs);
+		} else {
+			/*
+			 * Only the classes on the traces need bodies. The others are
+			 * still application classes, because calls to library classes
+			 * are not inlined, so their signatures are loaded.
+			 */
+			applicationClasses = SourceLocator.v().getClassesUnder(classDir.getAbsolutePath());
+			int withBodies = 0;
+			for (String name : applicationClasses) {
+				if (traceClasses.contains(name)) {
+					Scene.v().addBasicClass(name, SootClass.BODIES);
+					withBodies++;
+				} else {
+					Scene.v().addBasicClass(name, SootClass.SIGNATURES);
+				}
+			}
+			// used for exceptions that are caught as an abstract type.
+			Scene.v().addBasicClass("java.lang.RuntimeException", SootClass.SIGNATURES);
+			System.out.println("Loading " + withBodies + " of " + applicationClasses.size() + " classes with bodies");
+		}
 
 		sootOpt.setPhaseOption("jb.a", "enabled:false");
 		sootOpt.setPhaseOption("jop.cpf", "enabled:false");
 		sootOpt.setPhaseOption("jop.cfg", "enabled:true");
 		sootOpt.setPhaseOption("jb", "use-original-names:true");
 
+		JimpleCache jimpleCache = null;
+		if (dynslicer.Options.v().getInstrumentationCacheDir() != null) {
+			jimpleCache = new JimpleCache(new File(dynslicer.Options.v().getInstrumentationCacheDir(), "jimple"),
+					classDir, classPath);
+			jimpleCache.install();
+		}
+
 		// Scene.v().loadClassAndSupport("java.lang.System");
 		// Scene.v().loadClassAndSupport("java.lang.Thread");
 		// Scene.v().loadClassAndSupport("java.lang.ThreadGroup");
 
 		Scene.v().loadBasicClasses();
 		Scene.v().loadNecessaryClasses();
+		if (applicationClasses != null) {
+			for (String name : applicationClasses) {
+				Scene.v().getSootClass(name).setApplicationClass();
+			}
+		}
+		if (jimpleCache != null) {
+			jimpleCache.storeLoadedClasses();
+			System.out.println("Jimple cache: " + jimpleCache.getHits() + " hits, " + jimpleCache.getMisses()
+					+ " misses, " + jimpleCache.getStored() + " classes stored");
+		}
 
 		// for (String s :
 		// dynslicer.Main.getClasses(classDir.getAbsolutePath())) {
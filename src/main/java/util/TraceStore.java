@@ -0,0 +1,377 @@
+/**
+ *
+ */
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Verify;
+import com.google.common.io.CountingOutputStream;
+
+import daikon.PptTopLevel;
+import daikon.ProglangType;
+import daikon.ValueTuple;
+import daikon.VarComparabilityNone;
+import daikon.VarInfo;
+import daikon.VarInfo.VarKind;
+import daikon.VarInfoAux;
+import util.DaikonRunner.DaikonTrace;
+import util.DaikonRunner.TraceConsumer;
+
+/**
+ * Binary file that holds the parsed traces of a run, so that the slicing
+ * can be repeated without tracing and parsing the dtrace file again.
+ *
+ * Layout (all numbers big endian):
+ *
+ * <pre>
+ * header: MAGIC, VERSION, offset of the ppt table (long), offset of the index (long)
+ * traces: per trace: size, ppt ids[size], payloads[size], number of tuples, tuples
+ * ppts:   number of ppts, per ppt: name, number of vars, per var: name, type, rep type, kind, value index
+ * index:  number of traces, offset of each trace (long)
+ * </pre>
+ *
+ * The offsets in the header are written when the Writer is closed. The
+ * Reader maps each trace separately, so traces can be read in any order and
+ * from several threads.
+ *
+ * @author schaef
+ *
+ */
+public class TraceStore {
+
+	public static final int MAGIC = 0x44595452;
+	public static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+
+	private static final byte NULL_VALUE = 0;
+	private static final byte LONG_VALUE = 1;
+	private static final byte DOUBLE_VALUE = 2;
+	private static final byte STRING_VALUE = 3;
+	private static final byte LONG_ARRAY_VALUE = 4;
+	private static final byte DOUBLE_ARRAY_VALUE = 5;
+	private static final byte STRING_ARRAY_VALUE = 6;
+
+	/**
+	 * Writes every trace it consumes to the store and passes it on to the
+	 * next consumer (if any).
+	 */
+	public static class Writer implements TraceConsumer, Closeable {
+		private final File file;
+		private final TraceConsumer next;
+		private final CountingOutputStream counter;
+		private final DataOutputStream out;
+		private final List<Long> offsets = new ArrayList<Long>();
+		private PptTable pptTable = null;
+
+		public Writer(File file, TraceConsumer next) throws IOException {
+			this.file = file;
+			this.next = next;
+			counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out = new DataOutputStream(counter);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			// offsets of the ppt table and the index are patched in close.
+			out.writeLong(0);
+			out.writeLong(0);
+		}
+
+		@Override
+		public void consume(DaikonTrace trace) {
+			if (pptTable == null) {
+				pptTable = trace.getPptTable();
+			}
+			Verify.verify(pptTable == trace.getPptTable(), "All traces in a store must share one ppt table.");
+			try {
+				offsets.add(counter.getCount());
+				out.writeInt(trace.size());
+				for (int i = 0; i < trace.size(); i++) {
+					out.writeInt(trace.getPptId(i));
+				}
+				for (int i = 0; i < trace.size(); i++) {
+					out.writeInt(trace.getPayload(i));
+				}
+				List<ValueTuple> values = trace.getValueTuples();
+				out.writeInt(values.size());
+				for (ValueTuple vt : values) {
+					writeValueTuple(out, vt);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write " + file.getAbsolutePath() + ": " + e.getMessage());
+			}
+			if (next != null) {
+				next.consume(trace);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			final long pptTableOffset = counter.getCount();
+			final int numPpts = pptTable == null ? 0 : pptTable.size();
+			out.writeInt(numPpts);
+			for (int i = 0; i < numPpts; i++) {
+				writePpt(out, pptTable.get(i).ppt);
+			}
+			final long indexOffset = counter.getCount();
+			out.writeInt(offsets.size());
+			for (Long offset : offsets) {
+				out.writeLong(offset);
+			}
+			out.close();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.seek(8);
+				raf.writeLong(pptTableOffset);
+				raf.writeLong(indexOffset);
+			}
+			System.out.println("Wrote " + offsets.size() + " traces to " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Reads the traces of a store. The ppt table and the index are read when
+	 * the store is opened; the traces are decoded on demand.
+	 */
+	public static class Reader implements Closeable {
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final PptTable pptTable = new PptTable();
+		private final long[] offsets;
+		private final long pptTableOffset;
+
+		public Reader(File file) throws IOException {
+			raf = new RandomAccessFile(file, "r");
+			channel = raf.getChannel();
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+			Verify.verify(header.getInt() == MAGIC, "Not a trace store: " + file.getAbsolutePath());
+			Verify.verify(header.getInt() == VERSION, "Unsupported trace store version.");
+			pptTableOffset = header.getLong();
+			final long indexOffset = header.getLong();
+			Verify.verify(pptTableOffset > 0 && indexOffset > 0, "Trace store was not closed properly.");
+
+			MappedByteBuffer ppts = channel.map(MapMode.READ_ONLY, pptTableOffset, indexOffset - pptTableOffset);
+			final int numPpts = ppts.getInt();
+			for (int i = 0; i < numPpts; i++) {
+				PptDescriptor d = pptTable.intern(readPpt(ppts));
+				Verify.verify(d.id == i, "Duplicate ppt in trace store.");
+			}
+			MappedByteBuffer index = channel.map(MapMode.READ_ONLY, indexOffset, channel.size() - indexOffset);
+			offsets = new long[index.getInt()];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = index.getLong();
+			}
+		}
+
+		public int size() {
+			return offsets.length;
+		}
+
+		public PptTable getPptTable() {
+			return pptTable;
+		}
+
+		/**
+		 * Decodes the i-th trace. Can be called from several threads.
+		 *
+		 * @param i
+		 * @return the trace.
+		 * @throws IOException
+		 */
+		public DaikonTrace read(int i) throws IOException {
+			final long end = (i + 1 < offsets.length) ? offsets[i + 1] : pptTableOffset;
+			MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, offsets[i], end - offsets[i]);
+			final int size = buf.getInt();
+			int[] ppts = new int[size];
+			buf.asIntBuffer().get(ppts);
+			buf.position(buf.position() + 4 * size);
+			int[] payloads = new int[size];
+			buf.asIntBuffer().get(payloads);
+			buf.position(buf.position() + 4 * size);
+			final int numValues = buf.getInt();
+			List<ValueTuple> values = new ArrayList<ValueTuple>(numValues);
+			for (int j = 0; j < numValues; j++) {
+				values.add(readValueTuple(buf));
+			}
+			return new DaikonTrace(pptTable, ppts, payloads, values);
+		}
+
+		/**
+		 * Hands all traces to 'consumer' in the order in which they were
+		 * written.
+		 *
+		 * @param consumer
+		 * @throws IOException
+		 */
+		public void readAll(TraceConsumer consumer) throws IOException {
+			for (int i = 0; i < offsets.length; i++) {
+				consumer.consume(read(i));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			raf.close();
+		}
+	}
+
+	private static void writePpt(DataOutputStream out, PptTopLevel ppt) throws IOException {
+		writeString(out, ppt.name);
+		out.writeInt(ppt.var_infos.length);
+		for (VarInfo vi : ppt.var_infos) {
+			writeString(out, vi.name());
+			writeString(out, vi.type.format());
+			writeString(out, vi.file_rep_type.format());
+			out.writeInt(vi.var_kind.ordinal());
+			out.writeInt(vi.value_index);
+		}
+	}
+
+	private static PptTopLevel readPpt(ByteBuffer buf) {
+		final String name = readString(buf);
+		VarInfo[] vars = new VarInfo[buf.getInt()];
+		int[] valueIndices = new int[vars.length];
+		for (int i = 0; i < vars.length; i++) {
+			final String varName = readString(buf);
+			final ProglangType type = ProglangType.parse(readString(buf));
+			final ProglangType repType = ProglangType.parse(readString(buf));
+			vars[i] = new VarInfo(varName, type, repType, VarComparabilityNone.it, VarInfoAux.getDefault());
+			vars[i].var_kind = VarKind.values()[buf.getInt()];
+			valueIndices[i] = buf.getInt();
+		}
+		PptTopLevel ppt = new PptTopLevel(name, vars);
+		// the tuples are indexed like in the traced ppt.
+		for (int i = 0; i < vars.length; i++) {
+			ppt.var_infos[i].value_index = valueIndices[i];
+		}
+		return ppt;
+	}
+
+	private static void writeValueTuple(DataOutputStream out, ValueTuple vt) throws IOException {
+		if (vt == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(vt.vals.length);
+		for (int i = 0; i < vt.vals.length; i++) {
+			out.writeInt(vt.mods[i]);
+			writeValue(out, vt.vals[i]);
+		}
+	}
+
+	private static ValueTuple readValueTuple(ByteBuffer buf) {
+		final int numVals = buf.getInt();
+		if (numVals < 0) {
+			return null;
+		}
+		Object[] vals = new Object[numVals];
+		int[] mods = new int[vals.length];
+		for (int i = 0; i < vals.length; i++) {
+			mods[i] = buf.getInt();
+			vals[i] = readValue(buf);
+		}
+		return ValueTuple.makeUninterned(vals, mods);
+	}
+
+	private static void writeValue(DataOutputStream out, Object val) throws IOException {
+		if (val == null) {
+			out.writeByte(NULL_VALUE);
+		} else if (val instanceof Long) {
+			out.writeByte(LONG_VALUE);
+			out.writeLong((Long) val);
+		} else if (val instanceof Double) {
+			out.writeByte(DOUBLE_VALUE);
+			out.writeDouble((Double) val);
+		} else if (val instanceof String) {
+			out.writeByte(STRING_VALUE);
+			writeString(out, (String) val);
+		} else if (val instanceof long[]) {
+			long[] arr = (long[]) val;
+			out.writeByte(LONG_ARRAY_VALUE);
+			out.writeInt(arr.length);
+			for (long l : arr) {
+				out.writeLong(l);
+			}
+		} else if (val instanceof double[]) {
+			double[] arr = (double[]) val;
+			out.writeByte(DOUBLE_ARRAY_VALUE);
+			out.writeInt(arr.length);
+			for (double d : arr) {
+				out.writeDouble(d);
+			}
+		} else if (val instanceof String[]) {
+			String[] arr = (String[]) val;
+			out.writeByte(STRING_ARRAY_VALUE);
+			out.writeInt(arr.length);
+			for (String str : arr) {
+				// Daikon uses null for missing elements.
+				out.writeBoolean(str != null);
+				if (str != null) {
+					writeString(out, str);
+				}
+			}
+		} else {
+			throw new RuntimeException("Cannot store value of type " + val.getClass().getName());
+		}
+	}
+
+	private static Object readValue(ByteBuffer buf) {
+		final byte tag = buf.get();
+		switch (tag) {
+		case NULL_VALUE:
+			return null;
+		case LONG_VALUE:
+			return Long.valueOf(buf.getLong());
+		case DOUBLE_VALUE:
+			return Double.valueOf(buf.getDouble());
+		case STRING_VALUE:
+			return readString(buf).intern();
+		case LONG_ARRAY_VALUE: {
+			long[] arr = new long[buf.getInt()];
+			for (int i = 0; i < arr.length; i++) {
+				arr[i] = buf.getLong();
+			}
+			return arr;
+		}
+		case DOUBLE_ARRAY_VALUE: {
+			double[] arr = new double[buf.getInt()];
+			for (int i = 0; i < arr.length; i++) {
+				arr[i] = buf.getDouble();
+			}
+			return arr;
+		}
+		case STRING_ARRAY_VALUE: {
+			String[] arr = new String[buf.getInt()];
+			for (int i = 0; i < arr.length; i++) {
+				arr[i] = (buf.get() != 0) ? readString(buf).intern() : null;
+			}
+			return arr;
+		}
+		default:
+			throw new RuntimeException("Corrupt trace store: unknown value tag " + tag);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
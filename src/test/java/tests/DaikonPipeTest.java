@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.DaikonRunner;
+import util.DaikonRunner.DaikonTrace;
+import util.DaikonRunner.TraceCollector;
+
+/**
+ * Parses a dtrace with Daikon's FileIO from a named pipe that another
+ * process writes (see DaikonRunner.runPiped), including the case where the
+ * process exits without ever opening the pipe.
+ *
+ * @author schaef
+ *
+ */
+public class DaikonPipeTest {
+
+	private static final List<String> dtrace = Arrays.asList("decl-version 2.0", "var-comparability none", "",
+			"ppt ErrorTest0.test1():::ENTER", "ppt-type enter", "", "ppt ErrorTest0.test1():::EXIT5",
+			"ppt-type subexit", "", "ppt ErrorTest0.test2():::ENTER", "ppt-type enter", "",
+			"ppt ErrorTest0.test2():::EXIT7", "ppt-type subexit", "", "ErrorTest0.test1():::ENTER",
+			"this_invocation_nonce", "0", "", "ErrorTest0.test1():::EXIT5", "this_invocation_nonce", "0", "",
+			"ErrorTest0.test2():::ENTER", "this_invocation_nonce", "1", "", "ErrorTest0.test2():::EXIT7",
+			"this_invocation_nonce", "1", "");
+
+	@Test(timeout = 60000)
+	public void testPipedDTrace() throws IOException {
+		File dtraceFile = File.createTempFile("piped", ".dtrace");
+		File pipe = new File(dtraceFile.getParentFile(), "piped_" + System.nanoTime() + ".dtrace");
+		try {
+			Files.write(dtraceFile.toPath(), dtrace, StandardCharsets.UTF_8);
+			// give the parser time to open the pipe before the writer.
+			List<String> cmd = shell("sleep 1; cat '" + dtraceFile.getAbsolutePath() + "' > '"
+					+ pipe.getAbsolutePath() + "'");
+			List<DaikonTrace> traces = runPiped(cmd, pipe);
+			Assert.assertEquals(2, traces.size());
+			Assert.assertEquals("ErrorTest0.test1()", traces.get(0).getTestName());
+			Assert.assertEquals("ErrorTest0.test2()", traces.get(1).getTestName());
+			Assert.assertEquals(2, traces.get(1).size());
+			Assert.assertFalse(pipe.exists());
+		} finally {
+			dtraceFile.delete();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testWriterNeverOpensPipe() throws IOException {
+		File pipe = File.createTempFile("unused", ".dtrace");
+		pipe.delete();
+		List<DaikonTrace> traces = runPiped(shell("exit 1"), pipe);
+		Assert.assertTrue(traces.isEmpty());
+		Assert.assertFalse(pipe.exists());
+	}
+
+	private static List<DaikonTrace> runPiped(List<String> cmd, File pipe) {
+		TraceCollector collector = new TraceCollector();
+		new DaikonRunner().runPiped(cmd, pipe, Collections.<String, String> emptyMap(), collector);
+		return new ArrayList<DaikonTrace>(collector.traces);
+	}
+
+	private static List<String> shell(String script) {
+		List<String> cmd = new LinkedList<String>();
+		cmd.add("sh");
+		cmd.add("-c");
+		cmd.add(script);
+		return cmd;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import soot.Printer;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.SourceLocator;
+import soot.Unit;
+import soot.options.Options;
+import util.JimpleCache;
+import util.Util;
+
+/**
+ * Loads the test classes with Soot, once filling the JimpleCache and once
+ * from it, and compares the Jimple and the tags of all classes. (Soot
+ * names the stack locals by the order in which it builds the bodies, so
+ * the output of a run without the cache is only equivalent.)
+ *
+ * @author schaef
+ *
+ */
+public class JimpleCacheTest {
+
+	private JimpleCache cache = null;
+
+	@Test
+	public void testCachedClassesAreUnchanged() throws IOException {
+		final File classDir = Files.createTempDir();
+		final File cacheDir = Files.createTempDir();
+		try {
+			Util.compileJavaFiles(new File("src/test/resources/"), ".", classDir);
+			final int numClasses = SourceLocator.v().getClassesUnder(classDir.getAbsolutePath()).size();
+
+			final String stored = loadAndPrint(classDir, cacheDir);
+			Assert.assertTrue(stored.contains("class test07.Test07"));
+			Assert.assertEquals(numClasses, cache.getMisses());
+			Assert.assertEquals(numClasses, cache.getStored());
+
+			Assert.assertEquals(stored, loadAndPrint(classDir, cacheDir));
+			Assert.assertEquals(numClasses, cache.getHits());
+			Assert.assertEquals(0, cache.getMisses());
+		} finally {
+			FileUtils.deleteQuietly(classDir);
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+
+	/**
+	 * Loads the classes in 'classDir' with the same Soot options as the
+	 * TraceExtractor and prints them with the tags of the classes,
+	 * members, and statements. The JRE is not on the classpath, so the
+	 * test does not depend on the JRE it runs on, and the library classes
+	 * are phantoms.
+	 */
+	private String loadAndPrint(File classDir, File cacheDir) {
+		soot.G.reset();
+		Options sootOpt = Options.v();
+		sootOpt.set_keep_line_number(true);
+		sootOpt.set_allow_phantom_refs(true);
+		sootOpt.set_output_format(Options.output_format_none);
+		sootOpt.set_src_prec(Options.src_prec_class);
+		sootOpt.set_java_version(Options.java_version_1_8);
+		sootOpt.set_soot_classpath(classDir.getAbsolutePath());
+		List<String> processDirs = new LinkedList<String>();
+		processDirs.add(classDir.getAbsolutePath());
+		sootOpt.set_process_dir(processDirs);
+		sootOpt.setPhaseOption("jb.a", "enabled:false");
+		sootOpt.setPhaseOption("jop.cpf", "enabled:false");
+		sootOpt.setPhaseOption("jop.cfg", "enabled:true");
+		sootOpt.setPhaseOption("jb", "use-original-names:true");
+
+		cache = null;
+		if (cacheDir != null) {
+			cache = new JimpleCache(cacheDir, classDir, classDir.getAbsolutePath());
+			cache.install();
+		}
+		Scene.v().loadBasicClasses();
+		Scene.v().loadNecessaryClasses();
+		if (cache != null) {
+			cache.storeLoadedClasses();
+		}
+
+		final StringWriter sw = new StringWriter();
+		final PrintWriter pw = new PrintWriter(sw);
+		for (String name : new TreeSet<String>(SourceLocator.v().getClassesUnder(classDir.getAbsolutePath()))) {
+			final SootClass sc = Scene.v().getSootClass(name);
+			pw.println(sc.getTags());
+			for (SootField f : sc.getFields()) {
+				pw.println(f.getSignature() + " " + f.getTags());
+			}
+			for (SootMethod m : sc.getMethods()) {
+				pw.println(m.getSignature() + " " + m.getTags() + " " + m.getExceptions());
+				if (m.isConcrete()) {
+					for (Unit u : m.retrieveActiveBody().getUnits()) {
+						pw.println(u + " " + u.getTags());
+					}
+				}
+			}
+			Printer.v().printTo(sc, pw);
+		}
+		pw.flush();
+		return sw.toString();
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ *
+ */
+package tests;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.DaikonRunner;
+import util.TraceExtractor;
+
+/**
+ * Checks the --ppt-omit-pattern options that DaikonRunner passes to
+ * Chicory for the include and exclude patterns of the instrumenter. Like
+ * Chicory, a method is omitted if an omit pattern is found in its class
+ * name, its method name, or its ppt name.
+ *
+ * @author schaef
+ *
+ */
+public class PptOmitPatternTest {
+
+	private final List<Pattern> omitPatterns = new LinkedList<Pattern>();
+
+	public PptOmitPatternTest() {
+		final String prefix = "--ppt-omit-pattern=";
+		for (String option : DaikonRunner.createPptOmitOptions("pkg\\.Cls\\.keep", "drop")) {
+			Assert.assertTrue(option.startsWith(prefix));
+			omitPatterns.add(Pattern.compile(option.substring(prefix.length())));
+		}
+		Assert.assertEquals(2, omitPatterns.size());
+	}
+
+	@Test
+	public void testApplicationPcMethodIsTraced() {
+		final String pcMethod = "keep" + "_SIG__LP__RP_V" + TraceExtractor.pcMethodNameSuffix;
+		Assert.assertFalse(isOmitted("pkg.Cls", pcMethod, "pkg.Cls." + pcMethod + "(int):::ENTER"));
+		Assert.assertFalse(isOmitted("pkg.Cls", "keep", "pkg.Cls.keep():::ENTER"));
+	}
+
+	@Test
+	public void testGeneratedMethodsAreTraced() {
+		final String wrapper = "pkg_Cls_drop" + TraceExtractor.wrapperMethodNameSuffix;
+		Assert.assertFalse(isOmitted("pkg.Other", wrapper, "pkg.Other." + wrapper + "(int):::ENTER"));
+		Assert.assertFalse(isOmitted("ErrorTest0", "test1", "ErrorTest0.test1():::ENTER"));
+		Assert.assertFalse(isOmitted("pkg.Cls", "<init>", "pkg.Cls.Cls(int):::ENTER"));
+		Assert.assertFalse(isOmitted("pkg.Cls", "<clinit>", "pkg.Cls.<clinit>:::ENTER"));
+	}
+
+	@Test
+	public void testExcludedMethodsAreOmitted() {
+		Assert.assertTrue(isOmitted("pkg.Cls", "other", "pkg.Cls.other(int):::ENTER"));
+		Assert.assertTrue(isOmitted("pkg.Cls", "keep_drop", "pkg.Cls.keep_drop():::ENTER"));
+		Assert.assertTrue(isOmitted("pkg.Inner$Cls", "Cls", "pkg.Inner$Cls.Cls():::ENTER"));
+	}
+
+	private boolean isOmitted(String className, String methodName, String pptName) {
+		for (Pattern pattern : omitPatterns) {
+			if (pattern.matcher(className).find() || pattern.matcher(methodName).find()
+					|| pattern.matcher(pptName).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
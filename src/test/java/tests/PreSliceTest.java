@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.joogie.GlobalsCache;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import dynslicer.GroupTraces;
+import dynslicer.Main;
+import dynslicer.Options;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import util.DaikonRunner.TraceCollector;
+import util.Slicer;
+import util.TraceExtractor;
+import util.TraceStore;
+import util.Util;
+
+/**
+ * Traces the error tests of each subject once and slices the traces with
+ * and without the bytecode pre-slice (dynslicer.preSlice). The pre-slice
+ * must not change the result, so the sliced trace methods of both runs have
+ * to be identical.
+ *
+ * @author schaef
+ *
+ */
+@RunWith(Parameterized.class)
+public class PreSliceTest {
+
+	private static final String userDir = System.getProperty("user.dir") + "/";
+	private static final String testRoot = userDir + "src/test/resources/";
+
+	@Parameterized.Parameters(name = "{index}: check ({0})")
+	public static Collection<Object[]> data() {
+		List<Object[]> srcDirs = new LinkedList<Object[]>();
+		File[] directoryListing = new File(testRoot).listFiles();
+		if (directoryListing != null) {
+			for (File child : directoryListing) {
+				if (child.isDirectory()) {
+					srcDirs.add(new Object[] { child.getAbsoluteFile() });
+				}
+			}
+		}
+		if (srcDirs.isEmpty()) {
+			throw new RuntimeException("Test data not found!");
+		}
+		return srcDirs;
+	}
+
+	private final File srcDir;
+
+	public PreSliceTest(File testDir) {
+		this.srcDir = testDir;
+		GlobalsCache.restInstance();
+	}
+
+	@Test
+	public void test() throws IOException {
+		File classDir = new File("classes_and_tests");
+		if (classDir.exists()) {
+			FileUtils.deleteDirectory(classDir);
+		}
+		Assert.assertTrue(classDir.mkdir());
+		File testDir = new File("slicerData");
+		if (testDir.exists()) {
+			FileUtils.deleteDirectory(testDir);
+		}
+		Assert.assertTrue(testDir.mkdir());
+		final File store = new File(testDir, "traces.store");
+		try {
+			Util.compileJavaFiles(srcDir, ".", classDir);
+			// record the traces once, so that both slices see the same tests.
+			Options.v().setUseBytecodePreSlice(false);
+			Options.v().setTraceStoreFile(store);
+			Main.main(new String[] { ".", classDir.getAbsolutePath(), testDir.getAbsolutePath() });
+			Assert.assertTrue(store.isFile());
+
+			final Map<String, String> full = sliceStoredTraces(store, false);
+			final Map<String, String> preSliced = sliceStoredTraces(store, true);
+			Assert.assertEquals(full.keySet(), preSliced.keySet());
+			for (Map.Entry<String, String> entry : full.entrySet()) {
+				Assert.assertEquals("Slice of " + entry.getKey(), entry.getValue(), preSliced.get(entry.getKey()));
+			}
+		} finally {
+			Options.v().setTraceStoreFile(null);
+			Options.v().setUseBytecodePreSlice(false);
+			FileUtils.deleteDirectory(classDir);
+			FileUtils.deleteDirectory(testDir);
+		}
+	}
+
+	/**
+	 * Builds the trace methods for the traces in 'store' and slices them
+	 * like GroupTraces does.
+	 *
+	 * @return the statements of each sliced trace method by the name of
+	 *         the test that was sliced.
+	 */
+	private Map<String, String> sliceStoredTraces(File store, boolean preSlice) throws IOException {
+		soot.G.reset();
+		GlobalsCache.restInstance();
+		Options.v().setUseBytecodePreSlice(preSlice);
+
+		TraceCollector collector = new TraceCollector();
+		try (TraceStore.Reader reader = new TraceStore.Reader(store)) {
+			reader.readAll(collector);
+		}
+		// see dynslicer.Main
+		final File transformedClassDirectory = new File("./PlayItSafeFolderName/");
+		final String classPath = "." + File.pathSeparator + Main.basePath + "lib/junit.jar" + File.pathSeparator
+				+ transformedClassDirectory;
+		TraceExtractor ss = new TraceExtractor();
+		SootClass traceClass = ss.computeErrorSlices(transformedClassDirectory, classPath, collector.traces);
+
+		Map<String, String> slices = new LinkedHashMap<String, String>();
+		GroupTraces gt = new GroupTraces();
+		for (String methodName : ss.getTraceMethodNames()) {
+			SootMethod sm = traceClass.getMethodByName(methodName);
+			gt.simplifyTraceMethod(sm, ss);
+			new Slicer().sliceFromLastAssertion(sm);
+			// the pre-slice may leave other unused locals behind, so only
+			// the statements are compared.
+			StringBuilder sb = new StringBuilder();
+			for (Unit u : sm.getActiveBody().getUnits()) {
+				sb.append(u).append('\n');
+			}
+			slices.put(ss.getTestNames(methodName).get(0), sb.toString());
+		}
+		return slices;
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package tests;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bc_instrumenter.PcRecorder;
+import daikon.PptTopLevel;
+import daikon.ValueTuple;
+import daikon.util.Pair;
+import util.DaikonRunner.DaikonTrace;
+import util.DaikonRunner.TraceCollector;
+import util.PptTable;
+import util.RecordedTraceReader;
+import util.TraceExtractor;
+
+/**
+ * Reads a hand written binary pc trace in which the chunks of three threads
+ * interleave: the thread that runs the tests, a pool thread that runs tasks
+ * during both tests, and a thread that records before the first test.
+ *
+ * @author schaef
+ *
+ */
+public class RecordedTraceReaderTest {
+
+	private static final long mainThread = 1;
+	private static final long workerThread = 7;
+	private static final long otherThread = 9;
+
+	private static final int TEST1 = 0;
+	private static final int TEST2 = 1;
+	private static final int RUN = 2;
+	private static final int TEST1_PC = 3;
+	private static final int RUN_PC = 4;
+
+	private static final List<String> methodNames = Arrays.asList("ErrorTest0.test1()", "ErrorTest0.test2()",
+			"pkg.Worker.run()", "ErrorTest0.test1" + TraceExtractor.pcMethodNameSuffix + "(int)",
+			"pkg.Worker.run" + TraceExtractor.pcMethodNameSuffix + "(int)");
+
+	@Test
+	public void testInterleavedThreads() throws IOException {
+		File traceFile = File.createTempFile("pctrace", ".bin");
+		File methodsFile = new File(traceFile.getAbsolutePath() + PcRecorder.methodsFileSuffix);
+		try {
+			Files.write(methodsFile.toPath(), methodNames, StandardCharsets.UTF_8);
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(traceFile));) {
+				out.writeInt(PcRecorder.MAGIC);
+				out.writeInt(PcRecorder.VERSION);
+				writeChunk(out, otherThread, RUN, PcRecorder.ENTER, RUN, PcRecorder.EXIT);
+				writeChunk(out, mainThread, TEST1, PcRecorder.ENTER, 0, PcRecorder.TEST);
+				writeChunk(out, workerThread, 0, PcRecorder.CHARGE, RUN, PcRecorder.ENTER, RUN_PC, 5);
+				writeChunk(out, mainThread, TEST1_PC, 3, TEST1, PcRecorder.EXIT);
+				writeChunk(out, workerThread, RUN_PC, 6, RUN, PcRecorder.EXIT);
+				// the pool thread is charged to test2 before test2's TEST
+				// record is in the file.
+				writeChunk(out, workerThread, 1, PcRecorder.CHARGE, RUN, PcRecorder.ENTER, RUN_PC, 7);
+				writeChunk(out, mainThread, TEST2, PcRecorder.ENTER, 1, PcRecorder.TEST);
+				writeChunk(out, mainThread, TEST1_PC, 4, TEST2, PcRecorder.EXIT);
+				writeChunk(out, workerThread, RUN, PcRecorder.EXIT);
+			}
+
+			TraceCollector collector = new TraceCollector();
+			RecordedTraceReader reader = new RecordedTraceReader(new PptTable());
+			reader.read(traceFile, Collections.<Pair<PptTopLevel, ValueTuple>> emptyIterator(), false, collector);
+
+			List<DaikonTrace> traces = new ArrayList<DaikonTrace>(collector.traces);
+			Assert.assertEquals(2, traces.size());
+			DaikonTrace test1 = traces.get(0);
+			DaikonTrace test2 = traces.get(1);
+			Assert.assertEquals("ErrorTest0.test1()", test1.getTestName());
+			Assert.assertEquals("ErrorTest0.test2()", test2.getTestName());
+
+			// enter, pc entry and exit, exit
+			Assert.assertEquals(4, test1.size());
+			Assert.assertEquals(4, test2.size());
+			Assert.assertEquals(3, test1.getPc(1));
+			Assert.assertEquals(4, test2.getPc(1));
+
+			// the pool thread's events are not mixed into the test's thread,
+			// and each test gets the events that ran while it was running.
+			Assert.assertEquals(1, test1.getThreadTraces().size());
+			DaikonTrace task1 = test1.getThreadTraces().get(0);
+			Assert.assertEquals(6, task1.size());
+			Assert.assertEquals("pkg.Worker.run():::ENTER", task1.getPpt(0).name);
+			Assert.assertEquals(5, task1.getPc(1));
+			Assert.assertEquals(6, task1.getPc(3));
+			Assert.assertEquals("pkg.Worker.run():::EXIT", task1.getPpt(5).name);
+
+			Assert.assertEquals(1, test2.getThreadTraces().size());
+			DaikonTrace task2 = test2.getThreadTraces().get(0);
+			Assert.assertEquals(4, task2.size());
+			Assert.assertEquals(7, task2.getPc(1));
+			Assert.assertEquals("pkg.Worker.run():::EXIT", task2.getPpt(3).name);
+
+			// the thread that recorded before the first test.
+			Assert.assertEquals(2, reader.getDroppedEvents());
+		} finally {
+			traceFile.delete();
+			methodsFile.delete();
+		}
+	}
+
+	/**
+	 * Writes a chunk of 'thread' with the records (id, code) in 'records'.
+	 */
+	private static void writeChunk(DataOutputStream out, long thread, int... records) throws IOException {
+		out.writeLong(thread);
+		out.writeInt(records.length / 2);
+		for (int record : records) {
+			out.writeInt(record);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ *
+ */
+package tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import daikon.PptTopLevel;
+import daikon.ProglangType;
+import daikon.ValueTuple;
+import daikon.VarComparabilityNone;
+import daikon.VarInfo;
+import daikon.VarInfoAux;
+import util.DaikonRunner.DaikonTrace;
+import util.PptTable;
+import util.TraceExtractor;
+
+/**
+ * Checks the fingerprint by which the TraceExtractor puts the traces of
+ * the same test method into one bucket: traces that only differ in the
+ * object hashcodes (and in the test that produced them) share a bucket,
+ * traces that differ in a value, a pc, or in which objects are the same do
+ * not.
+ *
+ * @author schaef
+ *
+ */
+public class TraceDedupTest {
+
+	private final PptTable pptTable = new PptTable();
+
+	private final PptTopLevel test1Entry;
+	private final PptTopLevel test2Entry;
+	private final PptTopLevel pcEntry;
+	private final PptTopLevel pcExit;
+	private final PptTopLevel wrapperEntry;
+
+	public TraceDedupTest() {
+		this(0);
+	}
+
+	/**
+	 * @param shift
+	 *            the number of other ppts that are interned first, which
+	 *            shifts the ids of the ppts of the test.
+	 */
+	private TraceDedupTest(int shift) {
+		for (int i = 0; i < shift; i++) {
+			ppt("ErrorTest1.test" + i + "():::ENTER");
+		}
+		test1Entry = ppt("ErrorTest0.test1():::ENTER");
+		test2Entry = ppt("ErrorTest0.test2():::ENTER");
+		pcEntry = ppt("ErrorTest0.test1" + TraceExtractor.pcMethodNameSuffix + "(int):::ENTER",
+				var(TraceExtractor.pcMethodArgName, ProglangType.INT));
+		pcExit = ppt("ErrorTest0.test1" + TraceExtractor.pcMethodNameSuffix + "(int):::EXIT4");
+		wrapperEntry = ppt(
+				"ErrorTest0.pkg_Libput" + TraceExtractor.wrapperMethodNameSuffix
+						+ "(pkg.Lib, java.lang.Object, int):::ENTER",
+				var("arg0", ProglangType.HASHCODE), var("arg1", ProglangType.HASHCODE), var("arg2", ProglangType.INT),
+				var("arg3", ProglangType.HASHCODE_ARRAY));
+	}
+
+	@Test
+	public void testHashcodesOnly() {
+		final DaikonTrace a = createTrace(test1Entry, 7, 100L, 200L, 3);
+		final DaikonTrace b = createTrace(test2Entry, 7, 5551L, 777L, 3);
+		Assert.assertEquals(a.getFingerprint(), b.getFingerprint());
+	}
+
+	@Test
+	public void testDifferentValue() {
+		final DaikonTrace a = createTrace(test1Entry, 7, 100L, 200L, 3);
+		final DaikonTrace b = createTrace(test1Entry, 7, 100L, 200L, 4);
+		Assert.assertNotEquals(a.getFingerprint(), b.getFingerprint());
+	}
+
+	@Test
+	public void testDifferentPc() {
+		final DaikonTrace a = createTrace(test1Entry, 7, 100L, 200L, 3);
+		final DaikonTrace b = createTrace(test1Entry, 8, 100L, 200L, 3);
+		Assert.assertNotEquals(a.getFingerprint(), b.getFingerprint());
+	}
+
+	@Test
+	public void testDifferentAliasing() {
+		final DaikonTrace a = createTrace(test1Entry, 7, 100L, 200L, 3);
+		final DaikonTrace b = createTrace(test1Entry, 7, 100L, 100L, 3);
+		Assert.assertNotEquals(a.getFingerprint(), b.getFingerprint());
+	}
+
+	/**
+	 * Shards and pipe parsers each have their own PptTable, so the same ppt
+	 * gets different ids.
+	 */
+	@Test
+	public void testSeparatePptTables() {
+		final TraceDedupTest other = new TraceDedupTest(3);
+		Assert.assertNotEquals(pptTable.intern(pcEntry).id, other.pptTable.intern(other.pcEntry).id);
+		final DaikonTrace a = createTrace(test1Entry, 7, 100L, 200L, 3);
+		final DaikonTrace b = other.createTrace(other.test1Entry, 7, 100L, 200L, 3);
+		Assert.assertEquals(a.getFingerprint(), b.getFingerprint());
+		final DaikonTrace c = other.createTrace(other.test1Entry, 8, 100L, 200L, 3);
+		Assert.assertNotEquals(a.getFingerprint(), c.getFingerprint());
+	}
+
+	/**
+	 * Creates a trace of 'testEntry' that samples the pc 'pc' and calls a
+	 * library method with the receiver 'receiver', the argument 'arg', the
+	 * int 'value', and an array that contains both objects.
+	 */
+	private DaikonTrace createTrace(PptTopLevel testEntry, int pc, long receiver, long arg, long value) {
+		DaikonTrace trace = new DaikonTrace(pptTable);
+		trace.addPoint(testEntry, null);
+		trace.addPc(pcEntry, pc);
+		trace.addPoint(pcExit, tuple());
+		trace.addPoint(wrapperEntry, tuple(Long.valueOf(receiver), Long.valueOf(arg), Long.valueOf(value),
+				new long[] { arg, receiver }));
+		return trace;
+	}
+
+	private PptTopLevel ppt(String name, VarInfo... vars) {
+		PptTopLevel ppt = new PptTopLevel(name, vars);
+		pptTable.intern(ppt);
+		return ppt;
+	}
+
+	private static VarInfo var(String name, ProglangType type) {
+		return new VarInfo(name, type, type, VarComparabilityNone.it, VarInfoAux.getDefault());
+	}
+
+	private static ValueTuple tuple(Object... vals) {
+		int[] mods = new int[vals.length];
+		for (int i = 0; i < mods.length; i++) {
+			mods[i] = ValueTuple.MODIFIED;
+		}
+		return ValueTuple.makeUninterned(vals, mods);
+	}
+}
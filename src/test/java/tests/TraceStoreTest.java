@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import daikon.PptTopLevel;
+import daikon.ProglangType;
+import daikon.ValueTuple;
+import daikon.VarComparabilityNone;
+import daikon.VarInfo;
+import daikon.VarInfo.VarKind;
+import daikon.VarInfoAux;
+import util.DaikonRunner.DaikonTrace;
+import util.PptDescriptor;
+import util.PptTable;
+import util.TraceExtractor;
+import util.TraceStore;
+
+/**
+ * Writes traces with every kind of value that the TraceStore supports and
+ * with null tuples, reads them back by index, and compares them with the
+ * originals.
+ *
+ * @author schaef
+ *
+ */
+public class TraceStoreTest {
+
+	private final PptTable pptTable = new PptTable();
+
+	private final PptTopLevel testEntry = ppt("ErrorTest0.test1():::ENTER");
+	private final PptTopLevel testExit = ppt("ErrorTest0.test1():::EXIT12");
+	private final PptTopLevel pcEntry = ppt(
+			"ErrorTest0.test1" + TraceExtractor.pcMethodNameSuffix + "(int):::ENTER",
+			var(TraceExtractor.pcMethodArgName, ProglangType.INT));
+	private final PptTopLevel pcExit = ppt(
+			"ErrorTest0.test1" + TraceExtractor.pcMethodNameSuffix + "(int):::EXIT4");
+	private final PptTopLevel wrapperEntry = ppt(
+			"ErrorTest0.pkg_Libcall" + TraceExtractor.wrapperMethodNameSuffix + "(pkg.Lib):::ENTER",
+			var("arg0", ProglangType.HASHCODE), var("arg1", ProglangType.INT), var("arg2", ProglangType.DOUBLE),
+			var("arg3", ProglangType.STRING), var("arg4", ProglangType.parse("int[]")),
+			var("arg5", ProglangType.parse("double[]")), var("arg6", ProglangType.parse("java.lang.String[]")),
+			var("arg7", ProglangType.STRING));
+	private final PptTopLevel wrapperExit = ppt(
+			"ErrorTest0.pkg_Libcall" + TraceExtractor.wrapperMethodNameSuffix + "(pkg.Lib):::EXIT3",
+			var("arg0", ProglangType.HASHCODE), var("return", ProglangType.INT));
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		wrapperExit.var_infos[1].var_kind = VarKind.RETURN;
+
+		List<DaikonTrace> traces = new ArrayList<DaikonTrace>();
+		traces.add(createTrace(1234L, "first", new String[] { "a", null, "" }));
+		traces.add(createTrace(-1L, "second\nline \u00e4", new String[0]));
+
+		File storeFile = File.createTempFile("traces", ".store");
+		try {
+			try (TraceStore.Writer writer = new TraceStore.Writer(storeFile, null);) {
+				for (DaikonTrace trace : traces) {
+					writer.consume(trace);
+				}
+			}
+			try (TraceStore.Reader reader = new TraceStore.Reader(storeFile);) {
+				Assert.assertEquals(traces.size(), reader.size());
+				Assert.assertEquals(pptTable.size(), reader.getPptTable().size());
+				for (int i = 0; i < pptTable.size(); i++) {
+					assertSamePpt(pptTable.get(i).ppt, reader.getPptTable().get(i).ppt);
+				}
+				// read in reverse order to check that the index is used.
+				for (int i = traces.size() - 1; i >= 0; i--) {
+					assertSameTrace(traces.get(i), reader.read(i));
+				}
+			}
+		} finally {
+			storeFile.delete();
+		}
+	}
+
+	private DaikonTrace createTrace(long hashcode, String str, String[] strings) {
+		DaikonTrace trace = new DaikonTrace(pptTable);
+		// the values of the test entry are not recorded.
+		trace.addPoint(testEntry, null);
+		trace.addPoint(pcEntry, tuple(Long.valueOf(7)));
+		trace.addPoint(pcExit, tuple());
+		trace.addPoint(wrapperEntry,
+				tuple(Long.valueOf(hashcode), Long.valueOf(Long.MIN_VALUE), Double.valueOf(-0.5), str,
+						new long[] { 1, Long.MAX_VALUE }, new double[] { Double.NaN, 2.5 }, strings, null));
+		trace.addPoint(wrapperExit, tuple(Long.valueOf(hashcode), Long.valueOf(42)));
+		trace.addPc(pcEntry, 8);
+		trace.addPoint(pcExit, tuple());
+		trace.addPoint(testExit, tuple());
+		trace.trimToSize();
+		return trace;
+	}
+
+	private static void assertSameTrace(DaikonTrace expected, DaikonTrace actual) {
+		Assert.assertEquals(expected.size(), actual.size());
+		Assert.assertEquals(expected.getTestName(), actual.getTestName());
+		for (int pos = 0; pos < expected.size(); pos++) {
+			Assert.assertEquals(expected.getDescriptor(pos).id, actual.getDescriptor(pos).id);
+			Assert.assertEquals(expected.getPpt(pos).name, actual.getPpt(pos).name);
+			Assert.assertEquals(expected.getDescriptor(pos).kind, actual.getDescriptor(pos).kind);
+			if (expected.getDescriptor(pos).kind == PptDescriptor.Kind.PC_ENTER) {
+				Assert.assertEquals(expected.getPc(pos), actual.getPc(pos));
+			}
+			final ValueTuple expectedValues = expected.getValues(pos);
+			final ValueTuple actualValues = actual.getValues(pos);
+			if (expectedValues == null) {
+				Assert.assertNull("Tuple at " + pos, actualValues);
+			} else {
+				Assert.assertNotNull("Tuple at " + pos, actualValues);
+				Assert.assertArrayEquals(expectedValues.mods, actualValues.mods);
+				Assert.assertArrayEquals(expectedValues.vals, actualValues.vals);
+			}
+		}
+		Assert.assertEquals(expected.getFingerprint(), actual.getFingerprint());
+	}
+
+	private static void assertSamePpt(PptTopLevel expected, PptTopLevel actual) {
+		Assert.assertEquals(expected.name, actual.name);
+		Assert.assertEquals(expected.var_infos.length, actual.var_infos.length);
+		for (int i = 0; i < expected.var_infos.length; i++) {
+			final VarInfo e = expected.var_infos[i];
+			final VarInfo a = actual.var_infos[i];
+			Assert.assertEquals(e.name(), a.name());
+			Assert.assertEquals(e.type.format(), a.type.format());
+			Assert.assertEquals(e.file_rep_type.format(), a.file_rep_type.format());
+			Assert.assertEquals(e.var_kind, a.var_kind);
+			Assert.assertEquals(e.value_index, a.value_index);
+		}
+	}
+
+	private PptTopLevel ppt(String name, VarInfo... vars) {
+		PptTopLevel ppt = new PptTopLevel(name, vars);
+		pptTable.intern(ppt);
+		return ppt;
+	}
+
+	private static VarInfo var(String name, ProglangType type) {
+		return new VarInfo(name, type, type, VarComparabilityNone.it, VarInfoAux.getDefault());
+	}
+
+	private static ValueTuple tuple(Object... vals) {
+		int[] mods = new int[vals.length];
+		for (int i = 0; i < mods.length; i++) {
+			mods[i] = ValueTuple.MODIFIED;
+		}
+		return ValueTuple.makeUninterned(vals, mods);
+	}
+}